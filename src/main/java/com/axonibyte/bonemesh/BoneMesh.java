@@ -16,10 +16,37 @@
 
 package com.axonibyte.bonemesh;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -30,17 +57,37 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.axonibyte.bonemesh.listener.AckListener;
+import com.axonibyte.bonemesh.listener.BroadcastAckListener;
+import com.axonibyte.bonemesh.listener.ByteListener;
 import com.axonibyte.bonemesh.listener.DataListener;
+import com.axonibyte.bonemesh.listener.FutureAckListener;
 import com.axonibyte.bonemesh.listener.LogListener;
+import com.axonibyte.bonemesh.listener.StreamListener;
 import com.axonibyte.bonemesh.listener.cheap.CheapDataListener;
 import com.axonibyte.bonemesh.listener.cheap.CheapLogListener;
+import com.axonibyte.bonemesh.message.BinaryCodec;
+import com.axonibyte.bonemesh.message.BroadcastMessage;
+import com.axonibyte.bonemesh.message.BytesMessage;
+import com.axonibyte.bonemesh.message.DatagramMessage;
 import com.axonibyte.bonemesh.message.DiscoveryMessage;
 import com.axonibyte.bonemesh.message.GenericMessage;
+import com.axonibyte.bonemesh.message.JsonCodec;
+import com.axonibyte.bonemesh.message.MessageCodec;
+import com.axonibyte.bonemesh.node.Feature;
 import com.axonibyte.bonemesh.node.Node;
 import com.axonibyte.bonemesh.node.NodeMap;
+import com.axonibyte.bonemesh.node.RouteUpdate;
+import com.axonibyte.bonemesh.socket.DatagramTransport;
+import com.axonibyte.bonemesh.socket.DeliveryException;
+import com.axonibyte.bonemesh.socket.FrameCompressor;
+import com.axonibyte.bonemesh.socket.MulticastDiscovery;
+import com.axonibyte.bonemesh.socket.NioServerEngine;
+import com.axonibyte.bonemesh.socket.OverflowPolicy;
 import com.axonibyte.bonemesh.socket.Payload;
+import com.axonibyte.bonemesh.socket.SharedPayload;
 import com.axonibyte.bonemesh.socket.SocketClient;
 import com.axonibyte.bonemesh.socket.SocketServer;
+import com.axonibyte.bonemesh.socket.StreamManager;
 
 /**
  * Virtual point-to-point mesh network driver for Java.
@@ -49,14 +96,48 @@ import com.axonibyte.bonemesh.socket.SocketServer;
  */
 public class BoneMesh implements AckListener {
   
+  private static final int BROADCAST_HISTORY = 4096; // broadcasts remembered for duplicate suppression
+  private static final long HEARTBEAT_TICK = 100L; // milliseconds between checks on the direct nodes
+  
+  private AtomicReference<Set<Feature>> features = null;
+  private AtomicReference<List<MessageCodec>> codecs = null;
+  private AtomicReference<byte[]> compressionDictionary = null;
+  private AtomicLong asyncTimeout = null;
+  private AtomicLong compressionDictionaryID = null;
+  private AtomicReference<Executor> asyncExecutor = null;
+  private AtomicReference<MulticastDiscovery> multicastDiscovery = null;
   private Logger logger = null;
+  private Map<String, Boolean> broadcastHistory = null;
   private NodeMap nodeMap = null;
+  private ScheduledThreadPoolExecutor asyncTimer = null;
+  private SocketClient relayClient = null;
   private SocketClient socketClient = null;
   private SocketServer socketServer = null;
+  private StreamManager streamManager = null;
   private String instanceLabel = null;
   private Thread heartbeatThread = null;
 
   private BoneMesh(String label) {
+    this.features = new AtomicReference<>(Collections.unmodifiableSet(EnumSet.allOf(Feature.class)));
+    this.codecs = new AtomicReference<>(Collections.unmodifiableList(
+        Arrays.asList(new JsonCodec(), new BinaryCodec())));
+    this.compressionDictionary = new AtomicReference<>();
+    this.compressionDictionaryID = new AtomicLong(-1L);
+    this.asyncExecutor = new AtomicReference<>(ForkJoinPool.commonPool());
+    this.multicastDiscovery = new AtomicReference<>();
+    this.asyncTimeout = new AtomicLong(30000L);
+    this.asyncTimer = new ScheduledThreadPoolExecutor(1, r -> {
+      Thread thread = new Thread(r);
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.asyncTimer.setRemoveOnCancelPolicy(true);
+    this.broadcastHistory = Collections.synchronizedMap(new LinkedHashMap<String, Boolean>() {
+      private static final long serialVersionUID = 1L;
+      @Override protected boolean removeEldestEntry(Entry<String, Boolean> eldest) {
+        return size() > BROADCAST_HISTORY;
+      }
+    });
     this.logger = new Logger();
     this.instanceLabel = label;
     this.nodeMap = new NodeMap(label);
@@ -73,9 +154,25 @@ public class BoneMesh implements AckListener {
    * @return BoneMesh the new BoneMesh instance
    */
   public static BoneMesh build(String label, int port) {
+    return build(label, port, null);
+  }
+  
+  /**
+   * Builds a BoneMesh instance
+   * 
+   * @param label the name of this instance
+   * @param port the port to listen to
+   * @param engine the non-blocking server engine, or <code>null</code> to
+   *        handle each incoming connection on its own thread
+   * @return BoneMesh the new BoneMesh instance
+   */
+  public static BoneMesh build(String label, int port, NioServerEngine engine) {
     BoneMesh boneMesh = new BoneMesh(label);
     boneMesh.socketClient = SocketClient.build(boneMesh, boneMesh.logger);
-    boneMesh.socketServer = SocketServer.build(boneMesh, boneMesh.logger, port);
+    boneMesh.relayClient = SocketClient.build(boneMesh, boneMesh.logger);
+    boneMesh.nodeMap.setQueueDepths(node -> boneMesh.getQueueDepth(node.getLabel()));
+    boneMesh.socketServer = SocketServer.build(boneMesh, boneMesh.logger, port, engine);
+    boneMesh.streamManager = new StreamManager(boneMesh, boneMesh.logger);
     boneMesh.heartbeatThread.start();
     return boneMesh;
   }
@@ -92,6 +189,8 @@ public class BoneMesh implements AckListener {
     options.addOption("h", "help", false, "Displays a friendly help message.");
     options.addOption("l", "node_label", true, "Node label.");
     options.addOption("p", "listening_port", true, "Server listening port.");
+    options.addOption("n", "nio", false, "Serves connections with the non-blocking engine.");
+    options.addOption("m", "multicast", false, "Discovers nodes on the local network over multicast.");
     Option targetNodesOption = new Option("t", "target_nodes", true, "Target nodes.");
     targetNodesOption.setArgs(Option.UNLIMITED_VALUES);
     targetNodesOption.setValueSeparator(',');
@@ -111,10 +210,13 @@ public class BoneMesh implements AckListener {
       if(!cmd.hasOption("listening_port")) throw new Exception ("Missing listening port.");
       BoneMesh boneMesh = BoneMesh.build(
           cmd.getOptionValue("node_label"),
-          Integer.parseInt(cmd.getOptionValue("listening_port")));
+          Integer.parseInt(cmd.getOptionValue("listening_port")),
+          cmd.hasOption("nio") ? new NioServerEngine() : null);
       
       boneMesh.logger.addListener(new CheapLogListener());
       
+      if(cmd.hasOption("multicast")) boneMesh.enableMulticastDiscovery();
+      
       if(cmd.hasOption("target_nodes")) {
         String[] targetNodes = cmd.getOptionValues("target_nodes");
         for(String targetNode : targetNodes) {
@@ -163,12 +265,7 @@ public class BoneMesh implements AckListener {
     int port = Integer.parseInt(splitAddress[1]);
     Node node = new Node(label, splitAddress[0], port);
     nodeMap.addOrReplaceNode(node, false);
-    DiscoveryMessage message = new DiscoveryMessage(instanceLabel,
-        label,
-        nodeMap.getKnownNodes(),
-        socketServer.getPort());
-    Payload payload = new Payload(message, node.getLabel(), this, false);
-    socketClient.queuePayload(payload);
+    sendDiscovery(node, false);
   }
   
   /**
@@ -199,10 +296,253 @@ public class BoneMesh implements AckListener {
    * @return <code>true</code> if broadcasting was successful
    */
   public boolean broadcastDatum(JSONObject datum, boolean retryOnFailure) {
-    boolean success = true;
-    for(String node : nodeMap.getAllKnownNodeLabels()) 
-      success = sendDatum(node, datum, retryOnFailure) && success;
-    return success;
+    return broadcast(datum, getBroadcastTargets(), retryOnFailure,
+        Collections.singletonList(this)).isEmpty();
+  }
+  
+  /**
+   * Passes a broadcast from another node on to the targets that this node is
+   * responsible for. Generally used by the socket handlers.
+   * 
+   * @param message the broadcast message
+   * @return <code>true</code> if this node is one of the broadcast's targets
+   *         and hasn't seen the broadcast before
+   */
+  public boolean forwardBroadcast(BroadcastMessage message) {
+    if(broadcastHistory.put(message.getCorrelationID(), Boolean.TRUE) != null) {
+      logger.logDebug("BONEMESH", String.format("Suppressed duplicate broadcast %1$s.", message.getCorrelationID()));
+      return false;
+    }
+    List<String> targets = message.getTargets();
+    boolean local = targets.removeIf(label -> label.equalsIgnoreCase(instanceLabel));
+    targets.removeIf(label -> label.equalsIgnoreCase(message.getFrom()));
+    if(!targets.isEmpty()) {
+      List<String> failures = broadcast(relayClient, message, targets, false,
+          OverflowPolicy.FAIL, // never hold up the socket handler
+          Collections.singletonList(this));
+      if(!failures.isEmpty())
+        logger.logError("BONEMESH", String.format("Could not forward broadcast %1$s to %2$s.",
+            message.getCorrelationID(), failures));
+    }
+    return local;
+  }
+  
+  /**
+   * Broadcasts data to the entire network without blocking.
+   * 
+   * @param datum the datum to be broadcasted
+   * @return a future that completes once every node has either acknowledged
+   *         the datum or failed to, with a map of node labels and whether
+   *         or not each one acknowledged it; the future itself never fails
+   */
+  public CompletableFuture<Map<String, Boolean>> broadcastDatumAsync(JSONObject datum) {
+    return broadcastDatumAsync(datum, true, asyncTimeout.get(), asyncExecutor.get());
+  }
+  
+  /**
+   * Broadcasts data to the entire network without blocking.
+   * 
+   * @param datum the datum to be broadcasted
+   * @param retryOnFailure resend the payload if there is a network error
+   * @param timeout the time to wait for the acknowledgements in
+   *        milliseconds, or 0 to wait indefinitely
+   * @param executor the executor that completes the future
+   * @return a future that completes once every node has either acknowledged
+   *         the datum or failed to, with a map of node labels and whether
+   *         or not each one acknowledged it; the future itself never fails
+   */
+  public CompletableFuture<Map<String, Boolean>> broadcastDatumAsync(JSONObject datum,
+      boolean retryOnFailure, long timeout, Executor executor) {
+    Set<String> targets = getBroadcastTargets();
+    BroadcastAckListener listener = new BroadcastAckListener(targets, executor);
+    CompletableFuture<Map<String, Boolean>> future = listener.getFuture();
+    if(timeout > 0L && !future.isDone()) try {
+      ScheduledFuture<?> timer = asyncTimer.schedule(listener::expire, timeout, TimeUnit.MILLISECONDS);
+      future.whenComplete((r, t) -> timer.cancel(false));
+    } catch(RejectedExecutionException e) { } // this instance is shutting down
+    for(String target : broadcast(datum, targets, retryOnFailure, Arrays.asList(this, listener)))
+      listener.fail(target);
+    return future;
+  }
+  
+  /*
+   * Finds the node that messages for the target should be handed to. Of
+   * several equally good next hops, the best one is used for broadcasts so
+   * that their trees stay narrow.
+   */
+  private Node getNextHop(String target) {
+    Node node = nodeMap.getNodeByLabel(target);
+    if(node == null) // try the next best thing if the first try didn't work
+      node = nodeMap.getRouteTable().getNextHop(target);
+    return node;
+  }
+  
+  /*
+   * Finds the node that messages from one node to the target should be
+   * handed to. Messages between the same two nodes take the same one of
+   * several equally good next hops while earlier ones are still on the way,
+   * so that they stay in order; other pairs of nodes, and pairs that have
+   * gone quiet, are spread across the rest.
+   */
+  private Node getNextHop(String from, String target) {
+    Node node = nodeMap.getNodeByLabel(target);
+    if(node == null) // try the next best thing if the first try didn't work
+      node = nodeMap.getNextBestNode(target, NodeMap.getFlow(from, target));
+    return node;
+  }
+  
+  /*
+   * Queues a payload, keeping its flow on the payload's next hop until the
+   * payload is through.
+   */
+  private boolean queuePayload(SocketClient client, Payload payload) {
+    JSONObject data = payload.getData();
+    nodeMap.recordFlowQueued(
+        NodeMap.getFlow(data.optString("from"), data.optString("to")), payload.getTarget());
+    return client.queuePayload(payload); // a refused payload is reported as dropped
+  }
+  
+  /*
+   * Retrieves the labels of every other node in the network.
+   */
+  private Set<String> getBroadcastTargets() {
+    Set<String> targets = nodeMap.getAllKnownNodeLabels();
+    for(String label : targets)
+      if(label.equalsIgnoreCase(instanceLabel)) { // only copy the snapshot if it has to change
+        targets = new HashSet<>(targets);
+        targets.remove(label);
+        break;
+      }
+    return targets;
+  }
+  
+  /*
+   * Starts a broadcast from this node. Returns the targets for which a copy
+   * couldn't be queued.
+   */
+  private List<String> broadcast(JSONObject datum, Collection<String> targets,
+      boolean retryOnFailure, List<AckListener> ackListeners) {
+    BroadcastMessage message = new BroadcastMessage(instanceLabel, instanceLabel, datum, targets);
+    broadcastHistory.put(message.getCorrelationID(), Boolean.TRUE); // in case it comes back around
+    return broadcast(socketClient, message, targets, retryOnFailure, null, ackListeners);
+  }
+  
+  /*
+   * Splits the targets of a broadcast among the next hops that reach them.
+   * A next hop that takes part in tree broadcasts gets a single copy along
+   * with the targets behind it; any other gets a copy for every target. The
+   * payload is encoded once per codec and shared by every copy, as is the
+   * list of ack listeners. Targets that a relay can only reach back through
+   * the origin get unicast copies, since the origin won't take the broadcast
+   * twice. Copies go through the given client, which is the relay client
+   * for broadcasts from other nodes. Returns the targets for which a copy
+   * couldn't be queued.
+   */
+  private List<String> broadcast(SocketClient client, BroadcastMessage message, Collection<String> targets,
+      boolean retryOnFailure, OverflowPolicy overflowPolicy, List<AckListener> ackListeners) {
+    Map<String, Node> hops = new HashMap<>();
+    Map<String, List<String>> branches = new LinkedHashMap<>();
+    List<String> failures = new ArrayList<>();
+    for(String target : targets) {
+      Node node = getNextHop(target);
+      if(node == null) {
+        failures.add(target);
+        continue;
+      }
+      hops.put(node.getLabel(), node);
+      branches.computeIfAbsent(node.getLabel(), label -> new ArrayList<>()).add(target);
+    }
+    
+    boolean tree = getFeatures().contains(Feature.TREE_BROADCAST);
+    boolean origin = message.getFrom().equalsIgnoreCase(instanceLabel);
+    SharedPayload sharedPayload = new SharedPayload(message.getPayload());
+    for(Entry<String, List<String>> branch : branches.entrySet()) {
+      Node node = hops.get(branch.getKey());
+      if(tree && node.hasFeature(Feature.TREE_BROADCAST)
+          && !node.getLabel().equalsIgnoreCase(message.getFrom())) { // the origin would drop it as a duplicate
+        Payload payload = new Payload(message.forward(node.getLabel(), branch.getValue()),
+            node.getLabel(), ackListeners, retryOnFailure);
+        if(!client.queuePayload(payload.setOverflowPolicy(overflowPolicy).setSharedPayload(sharedPayload)))
+          failures.addAll(branch.getValue());
+      } else for(String target : branch.getValue()) {
+        GenericMessage copy = origin // relays have to keep the original ID
+            ? new GenericMessage(instanceLabel, target, message.getPayload())
+            : message.toGenericMessage(target);
+        Payload payload = new Payload(copy, node.getLabel(), ackListeners, retryOnFailure);
+        if(!client.queuePayload(payload.setOverflowPolicy(overflowPolicy).setSharedPayload(sharedPayload)))
+          failures.add(target);
+      }
+    }
+    return failures;
+  }
+  
+  /**
+   * Sends data to a target server without blocking.
+   * 
+   * @param target the recipient server
+   * @param datum the datum to be sent
+   * @return a future that completes when the datum is acknowledged, and fails
+   *         if it couldn't be queued, was dropped, ran out of retries, or
+   *         wasn't acknowledged in time
+   */
+  public CompletableFuture<Payload> sendDatumAsync(String target, JSONObject datum) {
+    return sendDatumAsync(target, datum, true, asyncTimeout.get(), asyncExecutor.get());
+  }
+  
+  /**
+   * Sends data to a target server without blocking.
+   * 
+   * @param target the recipient server
+   * @param datum the datum to be sent
+   * @param executor the executor that completes the future
+   * @return a future that completes when the datum is acknowledged, and fails
+   *         if it couldn't be queued, was dropped, ran out of retries, or
+   *         wasn't acknowledged in time
+   */
+  public CompletableFuture<Payload> sendDatumAsync(String target, JSONObject datum, Executor executor) {
+    return sendDatumAsync(target, datum, true, asyncTimeout.get(), executor);
+  }
+  
+  /**
+   * Sends data to a target server without blocking.
+   * 
+   * @param target the recipient server
+   * @param datum the datum to be sent
+   * @param retryOnFailure repeat the request if there is a network failure
+   * @param timeout the time to wait for the acknowledgement in milliseconds,
+   *        or 0 to wait indefinitely
+   * @param executor the executor that completes the future
+   * @return a future that completes when the datum is acknowledged, and fails
+   *         if it couldn't be queued, was dropped, ran out of retries, or
+   *         wasn't acknowledged in time
+   */
+  public CompletableFuture<Payload> sendDatumAsync(String target, JSONObject datum,
+      boolean retryOnFailure, long timeout, Executor executor) {
+    FutureAckListener listener = new FutureAckListener(executor);
+    CompletableFuture<Payload> future = listener.getFuture();
+    if(timeout > 0L) try {
+      ScheduledFuture<?> timer = asyncTimer.schedule(
+          () -> listener.fail(new TimeoutException("Payload was not acknowledged in time.")),
+          timeout, TimeUnit.MILLISECONDS);
+      future.whenComplete((p, t) -> timer.cancel(false));
+    } catch(RejectedExecutionException e) { } // this instance is shutting down
+    if(!sendDatum(target, datum, retryOnFailure, (OverflowPolicy)null, listener))
+      listener.fail(new DeliveryException(String.format("Could not queue datum for %1$s.", target), null));
+    return future;
+  }
+  
+  /**
+   * Sets the defaults for asynchronous sends that don't specify their own.
+   * 
+   * @param timeout the time to wait for an acknowledgement in milliseconds,
+   *        or 0 to wait indefinitely
+   * @param executor the executor that completes futures
+   */
+  public void setAsyncDefaults(long timeout, Executor executor) {
+    if(executor == null)
+      throw new IllegalArgumentException("Executor cannot be null.");
+    asyncTimeout.set(timeout);
+    asyncExecutor.set(executor);
   }
   
   /**
@@ -254,58 +594,312 @@ public class BoneMesh implements AckListener {
    *         <code>false</code> is not an indicator of message reception
    */
   public boolean sendDatum(String target, JSONObject datum, boolean retryOnFailure, AckListener... ackListeners) {
-    Node node = nodeMap.getNodeByLabel(target);
-    if(node == null) { // try the next best thing if the first try didn't work
-      node = nodeMap.getNextBestNode(target);
-      if(node == null) return false;
-    }
+    return sendDatum(target, datum, retryOnFailure, null, ackListeners);
+  }
+  
+  /**
+   * Sends data to a target server.
+   * 
+   * @param target the recipient server
+   * @param datum the datum to be sent
+   * @param retryOnFailure repeat the request if there is a network failure
+   * @param overflowPolicy what to do if the queue for the next hop is full,
+   *        or <code>null</code> to use this instance's overflow policy
+   * @param ackListeners additional listeners
+   * @return <code>true</code> if the payload was queued;
+   *         <code>false</code> is not an indicator of message reception
+   */
+  public boolean sendDatum(String target, JSONObject datum, boolean retryOnFailure,
+      OverflowPolicy overflowPolicy, AckListener... ackListeners) {
     GenericMessage message = new GenericMessage(instanceLabel, target, datum);
+    Node node = getNextHop(instanceLabel, target);
+    if(node == null) return false;
     List<AckListener> ackListenerArray = new ArrayList<>();
     ackListenerArray.add(this);
     if(ackListeners != null)
       for(AckListener listener : ackListeners)
         ackListenerArray.add(listener);
-    Payload payload = new Payload(message, node.getLabel(), ackListenerArray, retryOnFailure);
-    socketClient.queuePayload(payload);
-    return true;
+    Payload payload = new Payload(message, node.getLabel(), ackListenerArray, retryOnFailure)
+        .setOverflowPolicy(overflowPolicy);
+    return queuePayload(socketClient, payload);
   }
   
   /**
    * Send a GenericMessage to a particular node. Generally used to transport
-   * messages from other nodes.
+   * messages from other nodes, so the message goes through the relay queues
+   * rather than the queues that this node's own messages wait in.
    * 
    * @param message the generic message
    * @return <code>true</code> iff the payload was queued
    */
   public boolean sendDatum(GenericMessage message) {
-    Node node = nodeMap.getNodeByLabel(message.getTo());
-    if(node == null) {
-      node = nodeMap.getNextBestNode(message.getTo());
-      if(node == null) return false;
+    return queueDatum(relayClient, message, false, OverflowPolicy.FAIL); // never hold up the socket handler
+  }
+  
+  /**
+   * Send a GenericMessage to a particular node.
+   * 
+   * @param message the generic message
+   * @param retryOnFailure repeat the request if there is a network failure
+   * @param overflowPolicy what to do if the queue for the next hop is full
+   * @return <code>true</code> iff the payload was queued
+   */
+  public boolean sendDatum(GenericMessage message, boolean retryOnFailure, OverflowPolicy overflowPolicy) {
+    return queueDatum(socketClient, message, retryOnFailure, overflowPolicy);
+  }
+  
+  private boolean queueDatum(SocketClient client, GenericMessage message,
+      boolean retryOnFailure, OverflowPolicy overflowPolicy) {
+    Node node = getNextHop(message.getFrom(), message.getTo());
+    if(node == null) return false;
+    if(message instanceof BytesMessage && !node.hasFeature(Feature.BINARY_FRAMING))
+      return false; // the next hop wouldn't be able to read it
+    List<AckListener> ackListenerArray = new ArrayList<>();
+    ackListenerArray.add(this);
+    Payload payload = new Payload(message, node.getLabel(), ackListenerArray, retryOnFailure)
+        .setOverflowPolicy(overflowPolicy);
+    return queuePayload(client, payload);
+  }
+  
+  /**
+   * Passes a message from another node on towards its recipient without
+   * decoding it. The message goes out as the bytes that it arrived as, and
+   * is only decoded and written again if the next hop can't read the codec
+   * that it was written with. Like other relayed messages, it goes through
+   * the relay queues, is not retried, and is dropped if the next hop's
+   * queue is full. A message is also dropped if it has come back to the
+   * node that sent it, or would be sent back there, as it would otherwise
+   * go around a routing loop for as long as the loop lasts.
+   * 
+   * @param header the routing header of the message
+   * @param data the message as it arrived
+   * @param codec the codec that the message was written with
+   * @return <code>true</code> iff the payload was queued
+   */
+  public boolean forwardDatum(JSONObject header, byte[] data, MessageCodec codec) {
+    Node node = getNextHop(header.optString("from"), header.optString("to"));
+    if(node == null) return false;
+    String from = header.optString("from");
+    if(instanceLabel.equalsIgnoreCase(from) || node.getLabel().equalsIgnoreCase(from)) {
+      logger.logError("BONEMESH", String.format("Dropped %1$s, as the route to %2$s loops.",
+          GenericMessage.getCorrelationID(header), header.optString("to")));
+      return false;
     }
     List<AckListener> ackListenerArray = new ArrayList<>();
     ackListenerArray.add(this);
-    Payload payload = new Payload(message, node.getLabel(), ackListenerArray, false);
-    socketClient.queuePayload(payload);
-    return true;
+    Payload payload = new Payload(header, data, codec, node.getLabel(), ackListenerArray)
+        .setOverflowPolicy(OverflowPolicy.FAIL);
+    return queuePayload(relayClient, payload);
+  }
+  
+  /**
+   * Sends data to a target server as a single best-effort datagram. The
+   * datagram goes over UDP, straight to the target if it is a direct node
+   * and through relays otherwise. Nothing acknowledges it and nothing
+   * retries it, so it is either delivered promptly or lost; this suits data
+   * that would rather be dropped than delayed. Every node on the way must
+   * support datagrams, and the encoded datum must fit in one datagram.
+   * Losses show up in the datagram statistics of the nodes involved.
+   * 
+   * @param target the recipient server
+   * @param datum the datum to be sent
+   * @return <code>true</code> if the datagram was handed to the network;
+   *         <code>false</code> is not an indicator of message reception
+   */
+  public boolean sendDatagram(String target, JSONObject datum) {
+    DatagramTransport transport = socketServer.getDatagramTransport();
+    return transport != null && transport.send(new DatagramMessage(instanceLabel, target, datum));
+  }
+  
+  /**
+   * Sends raw bytes to a target server. The bytes are neither encoded nor
+   * decoded along the way; they're handed to the target's byte listeners
+   * as they are.
+   * 
+   * @param target the recipient server
+   * @param data the bytes to be sent
+   * @return <code>true</code> if the payload was queued;
+   *         <code>false</code> is not an indicator of message reception
+   */
+  public boolean sendBytes(String target, byte[] data) {
+    return sendBytes(target, ByteBuffer.wrap(data));
+  }
+  
+  /**
+   * Sends raw bytes to a target server. The bytes are neither encoded nor
+   * decoded along the way; they're handed to the target's byte listeners
+   * as they are.
+   * 
+   * @param target the recipient server
+   * @param data the bytes to be sent, from the buffer's position to its limit;
+   *        the buffer itself is left untouched
+   * @return <code>true</code> if the payload was queued;
+   *         <code>false</code> is not an indicator of message reception
+   */
+  public boolean sendBytes(String target, ByteBuffer data) {
+    return sendBytes(target, data, true, (AckListener[])null);
+  }
+  
+  /**
+   * Sends raw bytes to a target server.
+   * 
+   * @param target the recipient server
+   * @param data the bytes to be sent, from the buffer's position to its limit
+   * @param ackListeners additional listeners
+   * @return <code>true</code> if the payload was queued;
+   *         <code>false</code> is not an indicator of message reception
+   */
+  public boolean sendBytes(String target, ByteBuffer data, AckListener... ackListeners) {
+    return sendBytes(target, data, true, ackListeners);
+  }
+  
+  /**
+   * Sends raw bytes to a target server. Raw bytes need binary framing, so
+   * they can't be sent through a node that only speaks the legacy protocol.
+   * 
+   * @param target the recipient server
+   * @param data the bytes to be sent, from the buffer's position to its limit
+   * @param retryOnFailure repeat the request if there is a network failure
+   * @param ackListeners additional listeners
+   * @return <code>true</code> if the payload was queued, or <code>false</code>
+   *         if it wasn't, including if the next hop doesn't support binary
+   *         framing; <code>false</code> is not an indicator of message reception
+   */
+  public boolean sendBytes(String target, ByteBuffer data, boolean retryOnFailure, AckListener... ackListeners) {
+    BytesMessage message = new BytesMessage(instanceLabel, target, data);
+    Node node = getNextHop(instanceLabel, target);
+    if(node == null) return false;
+    if(!node.hasFeature(Feature.BINARY_FRAMING)) {
+      logger.logError("BONEMESH", String.format("Can't send raw bytes through %1$s.", node.getLabel()));
+      return false;
+    }
+    List<AckListener> ackListenerArray = new ArrayList<>();
+    ackListenerArray.add(this);
+    if(ackListeners != null)
+      for(AckListener listener : ackListeners)
+        ackListenerArray.add(listener);
+    Payload payload = new Payload(message, node.getLabel(), ackListenerArray, retryOnFailure);
+    return queuePayload(socketClient, payload);
+  }
+  
+  /**
+   * Streams data to a target server. The data is cut into chunks that are
+   * read from the stream only as fast as the target consumes them, so
+   * arbitrarily large transfers take a bounded amount of memory on every
+   * node along the way. The stream is read on a thread of its own and is
+   * not closed afterwards.
+   * 
+   * @param target the recipient server
+   * @param data the data to be sent
+   * @return a future that completes with the number of bytes sent once the
+   *         target has read all of them; cancelling it aborts the transfer
+   */
+  public CompletableFuture<Long> sendStream(String target, InputStream data) {
+    return sendStream(target, Channels.newChannel(data));
+  }
+  
+  /**
+   * Streams data to a target server. The channel should be in blocking mode.
+   * 
+   * @param target the recipient server
+   * @param data the data to be sent
+   * @return a future that completes with the number of bytes sent once the
+   *         target has read all of them; cancelling it aborts the transfer
+   * @see #sendStream(String, InputStream)
+   */
+  public CompletableFuture<Long> sendStream(String target, ReadableByteChannel data) {
+    return streamManager.send(target, data);
   }
   
+  // it's the next hop that took the payload or failed to, wherever the payload was headed
   private void setNodeStatus(Payload payload, boolean alive) {
-    try {
-      String target = payload.getData().getString("to");
-      Node node = nodeMap.getNodeByLabel(target);
-      boolean wasAlive = false;
-      if(node != null) {
-        wasAlive = nodeMap.isAlive(node);
-        nodeMap.setNodeAlive(node, alive);
-      }
-      String message = String.format("Node %1$s is %2$s!", target, alive ? "ALIVE" : "DEAD");
-      if(!wasAlive && alive) logger.logInfo("BONEMESH", message);
-      else if(!alive) logger.logError("BONEMESH", message);
-    } catch(JSONException e) {
-      logger.logError("BONEMESH", e.getMessage());
+    setNodeAlive(payload.getTarget(), alive);
+  }
+  
+  /**
+   * Records that a direct node answered something, or that it failed to
+   * take something. A single failure only gets the node probed; it is
+   * marked as dead once its suspicion score crosses the threshold. Retries
+   * that were parked while the node was dead are let through once it comes
+   * back.
+   * 
+   * @param label the label of the node
+   * @param alive <code>true</code> if the node answered
+   */
+  public void setNodeAlive(String label, boolean alive) {
+    Node node = nodeMap.getNodeByLabel(label);
+    if(node == null) return;
+    nodeMap.setNodeAlive(node, alive);
+    if(!alive) logger.logDebug("BONEMESH", String.format("Suspecting node %1$s.", label));
+    checkLiveness();
+  }
+  
+  private void checkLiveness() {
+    for(Entry<Node, Boolean> status : nodeMap.checkLiveness().entrySet()) {
+      String label = status.getKey().getLabel();
+      String message = String.format("Node %1$s is %2$s!", label, status.getValue() ? "ALIVE" : "DEAD");
+      if(status.getValue()) {
+        logger.logInfo("BONEMESH", message);
+        socketClient.getRetryScheduler().resume(label); // let parked retries through
+      } else logger.logError("BONEMESH", message);
     }
   }
+  
+  /**
+   * Records what a discovery message says about its sender: its neighbors,
+   * its address and the protocol features that it supports. The sender is
+   * added as a direct node if it wasn't one already.
+   * 
+   * @param message the discovery message
+   * @param address the address that the message came from
+   * @return the sender
+   * @throws JSONException if the message advertises a port that can't be
+   *         connected to
+   */
+  public Node discover(DiscoveryMessage message, InetAddress address) throws JSONException {
+    if(message.getPort() < 1 || message.getPort() > 65535)
+      throw new JSONException(String.format("Node %1$s advertised invalid port %2$d.",
+          message.getFrom(), message.getPort()));
+    Node node = nodeMap.getNodeByLabel(message.getFrom());
+    if(node == null) {
+      node = new Node(message.getFrom(),
+          address.toString(),
+          message.getPort());
+      nodeMap.addOrReplaceNode(node, true);
+    } else node.setIP(address.toString()).setPort(message.getPort());
+    node.setFeatures(message.getFeatures())
+        .setDictionaryID(message.getDictionaryID())
+        .setCodecs(message.getCodecs());
+    MulticastDiscovery discovery = multicastDiscovery.get();
+    if(discovery != null) discovery.setHeardBy(message.getFrom(), message.isHeard(instanceLabel));
+    if(message.isResync()) nodeMap.resetRouteUpdates(message.getFrom()); // it lost track of us
+    if(!message.isDelta())
+      nodeMap.setNodeNeighbors(message.getFrom(), message.getVersion(), message.getNodes(instanceLabel));
+    else if(!nodeMap.updateNodeNeighbors(message.getFrom(), message.toRouteUpdate())) {
+      logger.logDebug("BONEMESH", String.format("Asking %1$s for its whole table.", message.getFrom()));
+      sendDiscovery(node, true);
+      return node;
+    }
+    if(message.isResync()) sendDiscovery(node, false);
+    return node;
+  }
+  
+  /*
+   * Tells a neighbor what this node can reach. Neighbors that take deltas
+   * are only told what changed since the last update they acknowledged.
+   */
+  private void sendDiscovery(Node node, boolean resync) {
+    RouteUpdate update = nodeMap.getRouteUpdate(node.getLabel(),
+        node.hasFeature(Feature.DELTA_DISCOVERY) && features.get().contains(Feature.DELTA_DISCOVERY));
+    DiscoveryMessage message = createDiscoveryMessage(node.getLabel(), update.getNodes())
+        .setVersion(update.getVersion())
+        .setResync(resync);
+    if(update.isDelta()) message.setDelta(update.getBase(), update.getRemoved());
+    Payload payload = new Payload(message, node.getLabel(), this, false)
+        .setOverflowPolicy(OverflowPolicy.FAIL); // there'll be another one soon
+    nodeMap.recordHeartbeat(node);
+    socketClient.queuePayload(payload);
+  }
 
   /**
    * Retrieves this label of this instance.
@@ -316,6 +910,258 @@ public class BoneMesh implements AckListener {
     return instanceLabel;
   }
   
+  /**
+   * Retrieves the protocol features that this instance advertises to its neighbors.
+   * 
+   * @return an immutable set of features
+   */
+  public Set<Feature> getFeatures() {
+    return features.get();
+  }
+  
+  /**
+   * Sets the protocol features that this instance advertises to its neighbors.
+   * Every feature is advertised by default; holding some back is useful while
+   * rolling out a new version across the network. Neighbors pick up the
+   * change on the next heartbeat.
+   * 
+   * @param features the features to advertise
+   */
+  public void setFeatures(Set<Feature> features) {
+    this.features.set(Collections.unmodifiableSet(features.isEmpty()
+        ? EnumSet.noneOf(Feature.class)
+        : EnumSet.copyOf(features)));
+  }
+  
+  /**
+   * Retrieves the message codecs that this instance can read, in order of
+   * preference.
+   * 
+   * @return an immutable list of codecs
+   */
+  public List<MessageCodec> getCodecs() {
+    return codecs.get();
+  }
+  
+  /**
+   * Sets the message codecs that this instance can read, in order of
+   * preference. Each neighbor is sent messages in the first of these codecs
+   * that it has advertised, so a faster codec can be rolled out by
+   * installing it everywhere first, and then moving it to the front. JSON is
+   * always readable, and is added to the end of the list if it's missing.
+   * Neighbors pick up the change on the next heartbeat.
+   * 
+   * @param codecs the codecs
+   */
+  public void setCodecs(List<MessageCodec> codecs) {
+    List<MessageCodec> copy = new ArrayList<>(codecs);
+    Set<Integer> ids = new HashSet<>();
+    for(MessageCodec codec : copy) {
+      if(codec.getID() < 0 || codec.getID() > MessageCodec.MAX_ID)
+        throw new IllegalArgumentException(String.format("Codec ID %1$d is out of range.", codec.getID()));
+      if(!ids.add(codec.getID()))
+        throw new IllegalArgumentException(String.format("Codec ID %1$d is taken.", codec.getID()));
+    }
+    if(!ids.contains(JsonCodec.ID)) copy.add(new JsonCodec());
+    this.codecs.set(Collections.unmodifiableList(copy));
+  }
+  
+  /**
+   * Retrieves a message codec by its ID.
+   * 
+   * @param id the codec ID, as found in a frame's flags
+   * @return the codec, or <code>null</code> if this instance can't read it
+   */
+  public MessageCodec getCodec(int id) {
+    for(MessageCodec codec : codecs.get())
+      if(codec.getID() == id) return codec;
+    return null;
+  }
+  
+  /**
+   * Retrieves the message codec that messages to a neighbor are written
+   * with. This is the first codec in order of preference that the neighbor
+   * has advertised, or JSON if the neighbor can't take binary frames.
+   * 
+   * @param node the neighbor
+   * @return the codec
+   */
+  public MessageCodec getCodec(Node node) {
+    List<MessageCodec> codecs = this.codecs.get();
+    if(node.hasFeature(Feature.BINARY_FRAMING))
+      for(MessageCodec codec : codecs)
+        if(codec.getID() == JsonCodec.ID || node.hasCodec(codec.getName()))
+          return codec;
+    return getCodec(JsonCodec.ID);
+  }
+  
+  private List<String> getCodecNames() {
+    List<String> names = new ArrayList<>();
+    for(MessageCodec codec : codecs.get())
+      names.add(codec.getName());
+    return names;
+  }
+  
+  /**
+   * Starts discovering nodes on the local network over UDP multicast, using
+   * the default group and port. See
+   * {@link #enableMulticastDiscovery(InetSocketAddress, NetworkInterface)}.
+   * 
+   * @return the multicast discovery service
+   * @throws IOException if the multicast group couldn't be joined
+   */
+  public MulticastDiscovery enableMulticastDiscovery() throws IOException {
+    return enableMulticastDiscovery(new InetSocketAddress(MulticastDiscovery.DEFAULT_GROUP,
+        MulticastDiscovery.DEFAULT_PORT), null);
+  }
+  
+  /**
+   * Starts discovering nodes on the local network over UDP multicast. This
+   * instance periodically announces itself and its routes to the group, and
+   * adds the other members as direct nodes as it hears from them. Members
+   * that are heard from aren't sent discovery messages over TCP, so TCP is
+   * only used for their data. Any previous multicast discovery is stopped.
+   * 
+   * @param group the multicast group and port
+   * @param networkInterface the interface to announce on, or
+   *        <code>null</code> to let the system choose
+   * @return the multicast discovery service
+   * @throws IOException if the multicast group couldn't be joined
+   */
+  public MulticastDiscovery enableMulticastDiscovery(InetSocketAddress group,
+      NetworkInterface networkInterface) throws IOException {
+    disableMulticastDiscovery();
+    MulticastDiscovery discovery = MulticastDiscovery.build(this, logger, group, networkInterface);
+    multicastDiscovery.set(discovery);
+    return discovery;
+  }
+  
+  /**
+   * Stops discovering nodes over UDP multicast. Nodes that were discovered
+   * this way are kept, and go back to being discovered over TCP.
+   */
+  public void disableMulticastDiscovery() {
+    MulticastDiscovery discovery = multicastDiscovery.getAndSet(null);
+    if(discovery != null) discovery.kill();
+  }
+  
+  /**
+   * Retrieves the multicast discovery service.
+   * 
+   * @return the multicast discovery service, or <code>null</code> if
+   *         multicast discovery is disabled
+   */
+  public MulticastDiscovery getMulticastDiscovery() {
+    return multicastDiscovery.get();
+  }
+  
+  /**
+   * Creates a discovery message that describes this instance.
+   * 
+   * @param to the recipient node
+   * @param knownNodes the nodes that this instance knows about and their latencies
+   * @return the discovery message
+   */
+  public DiscoveryMessage createDiscoveryMessage(String to, Map<String, Long> knownNodes) {
+    MulticastDiscovery discovery = multicastDiscovery.get();
+    Set<Feature> advertised = EnumSet.noneOf(Feature.class);
+    advertised.addAll(features.get());
+    if(socketServer.getDatagramTransport() == null)
+      advertised.remove(Feature.DATAGRAMS); // nothing is listening for them
+    return new DiscoveryMessage(instanceLabel,
+        to,
+        knownNodes,
+        socketServer.getPort(),
+        advertised).setDictionaryID(compressionDictionaryID.get())
+        .setCodecs(getCodecNames())
+        .setHeard(discovery == null ? Collections.emptyList() : discovery.getHeard());
+  }
+  
+  /**
+   * Retrieves the policy that applies to payloads sent to a node whose
+   * outgoing queue is full.
+   * 
+   * @return the overflow policy
+   */
+  public OverflowPolicy getOverflowPolicy() {
+    return socketClient.getOverflowPolicy();
+  }
+  
+  /**
+   * Sets the policy that applies to payloads sent to a node whose outgoing
+   * queue is full. The policy can be overridden for individual payloads.
+   * 
+   * @param overflowPolicy the overflow policy
+   */
+  public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+    socketClient.setOverflowPolicy(overflowPolicy);
+  }
+  
+  /**
+   * Sets the number of times that a payload is attempted before it is
+   * discarded. Failed payloads are retried with an exponentially growing
+   * delay, and not at all while their next hop is dead. Payloads get ten
+   * attempts unless told otherwise.
+   * 
+   * @param maxAttempts the maximum number of attempts, or 0 for no limit
+   */
+  public void setMaxRetryAttempts(int maxAttempts) {
+    socketClient.getRetryScheduler().setMaxAttempts(maxAttempts);
+  }
+  
+  /**
+   * Sets the age past which a failed payload is discarded instead of being
+   * retried. Payloads get five minutes unless told otherwise.
+   * 
+   * @param maxAge the maximum age in milliseconds, or 0 for no limit
+   */
+  public void setMaxRetryAge(long maxAge) {
+    socketClient.getRetryScheduler().setMaxAge(maxAge);
+  }
+  
+  /**
+   * Sets the number of failed payloads that may wait for any one dead node
+   * to come back. Once there are more, the oldest are discarded.
+   * 
+   * @param maxParked the maximum number of waiting payloads per node
+   */
+  public void setMaxParkedPayloads(int maxParked) {
+    socketClient.getRetryScheduler().setMaxParked(maxParked);
+  }
+  
+  /**
+   * Retrieves the preset dictionary used to compress frames.
+   * 
+   * @return the dictionary, or <code>null</code> if there is none
+   */
+  public byte[] getCompressionDictionary() {
+    return compressionDictionary.get();
+  }
+  
+  /**
+   * Retrieves the ID under which the compression dictionary is advertised.
+   * 
+   * @return the dictionary ID, or <code>-1</code> if there is no dictionary
+   */
+  public long getCompressionDictionaryID() {
+    return compressionDictionaryID.get();
+  }
+  
+  /**
+   * Sets a preset dictionary for frame compression. Small frames that share
+   * a lot of structure compress far better against a dictionary of typical
+   * content. The dictionary is only used with neighbors that advertise the
+   * same one, so every node that should benefit must be given identical
+   * bytes; neighbors pick up the change on the next heartbeat.
+   * 
+   * @param dictionary the dictionary, or <code>null</code> to stop using one
+   */
+  public void setCompressionDictionary(byte[] dictionary) {
+    byte[] copy = dictionary == null ? null : dictionary.clone();
+    compressionDictionary.set(copy);
+    compressionDictionaryID.set(FrameCompressor.getDictionaryID(copy));
+  }
+  
   /**
    * Adds a data listener for data reception.
    * 
@@ -325,6 +1171,20 @@ public class BoneMesh implements AckListener {
     socketServer.addDataListener(listener);
   }
   
+  /**
+   * Adds a data listener for data reception. Messages are delivered to the
+   * listener in order, on a thread of its own, after the sender has been
+   * sent its acknowledgement.
+   * 
+   * @param listener the data listener
+   * @param capacity the number of messages that may wait for the listener
+   * @param overflowPolicy what to do with messages that arrive while the
+   *        listener's queue is full
+   */
+  public void addDataListener(DataListener listener, int capacity, OverflowPolicy overflowPolicy) {
+    socketServer.addDataListener(listener, capacity, overflowPolicy);
+  }
+  
   /**
    * Removes a data listener from the BoneMesh instance.
    * 
@@ -334,6 +1194,46 @@ public class BoneMesh implements AckListener {
     socketServer.removeDataListener(listener);
   }
   
+  /**
+   * Adds a byte listener for raw data reception.
+   * 
+   * @param listener the byte listener
+   */
+  public void addByteListener(ByteListener listener) {
+    socketServer.addByteListener(listener);
+  }
+  
+  /**
+   * Adds a byte listener for raw data reception.
+   * 
+   * @param listener the byte listener
+   * @param capacity the number of messages that may wait for the listener
+   * @param overflowPolicy what to do with messages that arrive while the
+   *        listener's queue is full
+   */
+  public void addByteListener(ByteListener listener, int capacity, OverflowPolicy overflowPolicy) {
+    socketServer.addByteListener(listener, capacity, overflowPolicy);
+  }
+  
+  /**
+   * Removes a byte listener from the BoneMesh instance.
+   * 
+   * @param listener the byte listener
+   */
+  public void removeByteListener(ByteListener listener) {
+    socketServer.removeByteListener(listener);
+  }
+  
+  /**
+   * Sets the listener that incoming streams are handed to. Incoming streams
+   * are refused while there is no listener.
+   * 
+   * @param listener the stream listener, or <code>null</code> for none
+   */
+  public void setStreamListener(StreamListener listener) {
+    streamManager.setStreamListener(listener);
+  }
+  
   /**
    * Adds a log listener for log reception.
    * 
@@ -361,12 +1261,78 @@ public class BoneMesh implements AckListener {
     return nodeMap;
   }
   
+  /**
+   * Retrieves the number of payloads waiting to be sent to a neighboring
+   * node, including those being relayed on behalf of other nodes.
+   * 
+   * @param target the label of the neighboring node
+   * @return the number of queued payloads
+   */
+  public int getQueueDepth(String target) {
+    return socketClient.getQueueDepth(target) + relayClient.getQueueDepth(target);
+  }
+  
+  /**
+   * Retrieves the number of payloads waiting to be sent to each neighboring
+   * node, including those being relayed on behalf of other nodes.
+   * 
+   * @return a map of node labels and their queue depths
+   */
+  public Map<String, Integer> getQueueDepths() {
+    Map<String, Integer> queueDepths = socketClient.getQueueDepths();
+    for(Entry<String, Integer> relayed : relayClient.getQueueDepths().entrySet())
+      queueDepths.merge(relayed.getKey(), relayed.getValue(), Integer::sum);
+    return queueDepths;
+  }
+  
+  /**
+   * Retrieves the socket client responsible for outgoing payloads.
+   * 
+   * @return the SocketClient instance
+   */
+  public SocketClient getSocketClient() {
+    return socketClient;
+  }
+  
+  /**
+   * Retrieves the socket client responsible for payloads relayed on behalf
+   * of other nodes. It has queues, senders and connections of its own, so
+   * that relayed traffic can't starve this node's own payloads.
+   * 
+   * @return the SocketClient instance
+   */
+  public SocketClient getRelayClient() {
+    return relayClient;
+  }
+  
+  /**
+   * Retrieves the stream manager responsible for streamed transfers.
+   * 
+   * @return the StreamManager instance
+   */
+  public StreamManager getStreamManager() {
+    return streamManager;
+  }
+  
+  /**
+   * Retrieves the socket server responsible for incoming messages.
+   * 
+   * @return the SocketServer instance
+   */
+  public SocketServer getSocketServer() {
+    return socketServer;
+  }
+  
   /**
    * Kills this BoneMesh node.
    */
   public void kill() {
     heartbeatThread.interrupt();
+    disableMulticastDiscovery();
+    asyncTimer.shutdownNow();
+    streamManager.kill();
     socketClient.kill();
+    relayClient.kill();
     socketServer.kill();
   }
   
@@ -374,7 +1340,13 @@ public class BoneMesh implements AckListener {
    * {@inheritDoc}
    */
   @Override public void receiveAck(Payload payload) {
+    if(payload.getData() instanceof DiscoveryMessage) { // later deltas can build on it
+      Node node = nodeMap.getNodeByLabel(payload.getTarget());
+      if(node != null) nodeMap.recordHeartbeatAnswer(node);
+      nodeMap.acknowledgeRouteUpdate(payload.getTarget(), ((DiscoveryMessage)payload.getData()).getVersion());
+    }
     setNodeStatus(payload, true);
+    settleFlow(payload);
   }
 
   /**
@@ -382,23 +1354,37 @@ public class BoneMesh implements AckListener {
    */
   @Override public void receiveNak(Payload payload) {
     setNodeStatus(payload, false);
+    if(!payload.willRetry()) settleFlow(payload);
+  }
+  
+  /**
+   * {@inheritDoc}
+   * A full queue says nothing about whether or not the node is alive.
+   */
+  @Override public void receiveDrop(Payload payload) {
+    settleFlow(payload);
+  }
+  
+  // the payload won't hold up the rest of its flow anymore
+  private void settleFlow(Payload payload) {
+    JSONObject data = payload.getData();
+    nodeMap.recordFlowSettled(
+        NodeMap.getFlow(data.optString("from"), data.optString("to")), payload.getTarget());
   }
   
   private class Heartbeat implements Runnable {
     @Override public void run() {
       try {
         for(;;) {
-          Thread.sleep(5000L);
-          Map<String, Long> nodes = nodeMap.getKnownNodes();
-          nodeMap.bumpDiscoveryTime();
+          Thread.sleep(HEARTBEAT_TICK);
+          MulticastDiscovery discovery = multicastDiscovery.get();
           for(Node node : nodeMap.getDirectNodes()) {
-            DiscoveryMessage message = new DiscoveryMessage(instanceLabel,
-                node.getLabel(),
-                nodes,
-                socketServer.getPort());
-            Payload payload = new Payload(message, node.getLabel(), BoneMesh.this, false);
-            socketClient.queuePayload(payload);
+            if(discovery != null && discovery.isHeardBy(node.getLabel()))
+              continue; // it says it hears our announcements, so only data goes over TCP
+            if(nodeMap.isHeartbeatDue(node)) // each node has a pace of its own
+              sendDiscovery(node, false);
           }
+          checkLiveness();
         }
       } catch(InterruptedException e) { }
     }
@@ -39,4 +39,16 @@ public interface AckListener {
    */
   public void receiveNak(Payload payload);
   
+  /**
+   * Receives a payload that was discarded without being attempted, either
+   * because its node's outgoing queue was full or because it expired while
+   * waiting for its node to come back. Unless overridden, drops are treated
+   * like NAKs.
+   * 
+   * @param payload the payload
+   */
+  public default void receiveDrop(Payload payload) {
+    receiveNak(payload);
+  }
+  
 }
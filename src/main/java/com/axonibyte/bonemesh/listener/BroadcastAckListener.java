@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2020 Axonibyte Innovations, LLC. All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.axonibyte.bonemesh.listener;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.json.JSONObject;
+
+import com.axonibyte.bonemesh.message.BroadcastMessage;
+import com.axonibyte.bonemesh.socket.Payload;
+
+/**
+ * Collects the outcomes of every copy of a broadcast into a single future.
+ * One instance listens to all of the copies. The future completes once
+ * every target has either acknowledged the broadcast or failed to, with a
+ * map of target labels and whether or not each one acknowledged it. The
+ * future itself never fails. A copy that is relayed down a distribution
+ * tree is acknowledged by its first hop on behalf of every target behind it.
+ *
+ * @author Caleb L. Power
+ */
+public class BroadcastAckListener implements AckListener {
+
+  private int pending;
+  private CompletableFuture<Map<String, Boolean>> future = null;
+  private Executor executor = null;
+  private Map<String, Boolean> results = null;
+
+  /**
+   * Overloaded constructor.
+   *
+   * @param targets the labels of the nodes that the broadcast is sent to
+   * @param executor the executor that completes the future
+   */
+  public BroadcastAckListener(Collection<String> targets, Executor executor) {
+    this.executor = executor;
+    this.future = new CompletableFuture<>();
+    this.results = new HashMap<>();
+    for(String target : targets)
+      results.put(target, null);
+    this.pending = results.size();
+    if(pending == 0) future.complete(new HashMap<>());
+  }
+
+  /**
+   * Retrieves the future that this listener completes.
+   *
+   * @return the future
+   */
+  public CompletableFuture<Map<String, Boolean>> getFuture() {
+    return future;
+  }
+
+  /**
+   * Records that the broadcast didn't reach a particular target.
+   *
+   * @param target the label of the target node
+   */
+  public void fail(String target) {
+    resolve(target, false);
+  }
+
+  /**
+   * Records that every target that hasn't answered yet won't, and completes
+   * the future.
+   */
+  public void expire() {
+    synchronized(this) {
+      if(pending == 0) return;
+      for(Map.Entry<String, Boolean> result : results.entrySet())
+        if(result.getValue() == null) result.setValue(false);
+      pending = 0;
+    }
+    complete();
+  }
+
+  /**
+   * Retrieves the number of targets that haven't answered yet.
+   *
+   * @return the number of pending targets
+   */
+  public synchronized int getPendingCount() {
+    return pending;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override public void receiveAck(Payload payload) {
+    resolve(getTargets(payload), true);
+  }
+
+  /**
+   * {@inheritDoc}
+   * Failures that will be retried leave the target pending.
+   */
+  @Override public void receiveNak(Payload payload) {
+    if(!payload.willRetry()) resolve(getTargets(payload), false);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override public void receiveDrop(Payload payload) {
+    resolve(getTargets(payload), false);
+  }
+
+  // a copy that travels down the tree answers for every target behind its next hop
+  private List<String> getTargets(Payload payload) {
+    JSONObject data = payload.getData();
+    if(data instanceof BroadcastMessage)
+      return ((BroadcastMessage)data).getTargets();
+    return Collections.singletonList(data.optString("to", payload.getTarget()));
+  }
+
+  private void resolve(String target, boolean acknowledged) {
+    resolve(Collections.singletonList(target), acknowledged);
+  }
+
+  private void resolve(List<String> targets, boolean acknowledged) {
+    synchronized(this) {
+      int resolved = 0;
+      for(String target : targets)
+        if(results.containsKey(target) && results.get(target) == null) {
+          results.put(target, acknowledged);
+          resolved++;
+        }
+      if(resolved == 0 || (pending -= resolved) > 0) return;
+    }
+    complete();
+  }
+
+  private void complete() {
+    final Map<String, Boolean> snapshot;
+    synchronized(this) {
+      snapshot = new HashMap<>(results);
+    }
+    try {
+      executor.execute(() -> future.complete(snapshot));
+    } catch(RejectedExecutionException e) { // better late than never
+      future.complete(snapshot);
+    }
+  }
+
+}
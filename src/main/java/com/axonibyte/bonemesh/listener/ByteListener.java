@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2020 Axonibyte Innovations, LLC. All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.axonibyte.bonemesh.listener;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A BoneMesh incoming raw data listener.
+ *
+ * @author Caleb L. Power
+ */
+public interface ByteListener {
+
+  /**
+   * Digests raw bytes coming from another node.
+   *
+   * @param from the label of the node that sent the bytes
+   * @param data a read-only buffer containing the bytes
+   */
+  public void digest(String from, ByteBuffer data);
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2020 Axonibyte Innovations, LLC. All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.axonibyte.bonemesh.listener;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.axonibyte.bonemesh.socket.DeliveryException;
+import com.axonibyte.bonemesh.socket.Payload;
+
+/**
+ * Turns the outcome of a payload into a future. The future completes when
+ * the payload is acknowledged, and fails when the payload is dropped or
+ * fails without another retry coming. Completion stages run on the given
+ * executor rather than on the thread that sent the payload.
+ *
+ * @author Caleb L. Power
+ */
+public class FutureAckListener implements AckListener {
+
+  private CompletableFuture<Payload> future = null;
+  private Executor executor = null;
+
+  /**
+   * Overloaded constructor.
+   *
+   * @param executor the executor that completes the future
+   */
+  public FutureAckListener(Executor executor) {
+    this.executor = executor;
+    this.future = new CompletableFuture<>();
+  }
+
+  /**
+   * Retrieves the future that this listener completes.
+   *
+   * @return the future
+   */
+  public CompletableFuture<Payload> getFuture() {
+    return future;
+  }
+
+  /**
+   * Fails the future, unless it has already completed.
+   *
+   * @param cause the reason for the failure
+   */
+  public void fail(Throwable cause) {
+    if(!future.isDone()) execute(() -> future.completeExceptionally(cause));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override public void receiveAck(Payload payload) {
+    execute(() -> future.complete(payload));
+  }
+
+  /**
+   * {@inheritDoc}
+   * Failures that will be retried leave the future alone.
+   */
+  @Override public void receiveNak(Payload payload) {
+    if(!payload.willRetry())
+      fail(new DeliveryException("Payload was not acknowledged.", payload));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override public void receiveDrop(Payload payload) {
+    fail(new DeliveryException("Payload was dropped.", payload));
+  }
+
+  private void execute(Runnable task) {
+    try {
+      executor.execute(task);
+    } catch(RejectedExecutionException e) { // better late than never
+      task.run();
+    }
+  }
+
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2020 Axonibyte Innovations, LLC. All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.axonibyte.bonemesh.listener;
+
+import java.io.InputStream;
+
+/**
+ * A BoneMesh incoming stream listener.
+ *
+ * @author Caleb L. Power
+ */
+public interface StreamListener {
+
+  /**
+   * Consumes a stream coming from another node. This is called on a thread
+   * of its own as soon as the stream starts, and the stream's chunks are
+   * only requested from the sender as fast as they are read. Whatever is
+   * left unread when this method returns is cancelled.
+   *
+   * @param from the label of the node that sent the stream
+   * @param streamID the stream ID, unique to the sender
+   * @param data the stream; reads block until data arrives, and throw an
+   *        exception if the sender aborts or goes quiet for too long
+   */
+  public void receiveStream(String from, long streamID, InputStream data);
+
+}
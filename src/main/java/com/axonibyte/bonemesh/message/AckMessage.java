@@ -34,6 +34,20 @@ public class AckMessage extends GenericMessage {
    */
   public AckMessage(String from, String to) {
     super(from, to, "ack", null);
+    remove("id"); // acks only carry the ID of the message they acknowledge
+  }
+  
+  /**
+   * Overloaded constructor for an ACK message that acknowledges an entire
+   * batch of messages at once.
+   * 
+   * @param from the node from which the message is sent
+   * @param to the recipient node
+   * @param batchID the ID of the acknowledged batch
+   */
+  public AckMessage(String from, String to, long batchID) {
+    this(from, to);
+    put("batch", batchID);
   }
   
   /**
@@ -48,6 +62,52 @@ public class AckMessage extends GenericMessage {
   public AckMessage(JSONObject json, boolean flip) throws JSONException {
     this(json.getString(flip ? "to" : "from"),
         json.getString(flip ? "from" : "to"));
+    if(json.has("id")) put("id", json.getLong("id")); // the ID of the acknowledged message
+    else remove("id");
+  }
+  
+  /**
+   * Turns this acknowledgement into a rejection, which tells the sender that
+   * the message arrived but couldn't be processed.
+   * 
+   * @return this AckMessage object
+   */
+  public AckMessage reject() {
+    put("nak", true);
+    return this;
+  }
+  
+  /**
+   * Determines whether or not an acknowledgement is a rejection.
+   * 
+   * @param ack the raw acknowledgement
+   * @return <code>true</code> if the acknowledged message couldn't be processed
+   */
+  public static boolean isRejection(JSONObject ack) {
+    return ack.optBoolean("nak");
+  }
+  
+  /**
+   * Retrieves the key of the message that an acknowledgement refers to.
+   * 
+   * @param ack the raw acknowledgement
+   * @return the correlation ID of the acknowledged message,
+   *         or <code>null</code> if the ack doesn't refer to a particular message
+   */
+  public static String getAcknowledgedID(JSONObject ack) {
+    if(ack.has("batch")) return formatBatchID(ack.optLong("batch", -1L));
+    if(!ack.has("id")) return null;
+    return formatCorrelationID(ack.optString("to"), ack.optLong("id", -1L));
+  }
+  
+  /**
+   * Formats a key that pairs a batch with its acknowledgement.
+   * 
+   * @param batchID the batch ID
+   * @return the correlation ID of the batch
+   */
+  public static String formatBatchID(long batchID) {
+    return String.format("batch#%1$d", batchID);
   }
   
   /**
@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2020 Axonibyte Innovations, LLC. All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.axonibyte.bonemesh.message;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * A compact binary codec. The routing header (sender, recipient, action and
+ * message ID) is written as fixed fields behind a byte that says which of
+ * them are present, and everything else follows as tagged values, so
+ * nothing has to be tokenized or escaped. Lengths and integers are written
+ * as variable-length quantities.
+ *
+ * @author Caleb L. Power
+ */
+public class BinaryCodec implements MessageCodec {
+
+  /**
+   * The ID of the binary codec.
+   */
+  public static final int ID = 1;
+
+  /**
+   * The name of the binary codec.
+   */
+  public static final String NAME = "binary";
+
+  private static final int MAX_DEPTH = 256; // nesting limit, so hostile input can't blow the stack
+
+  private static final byte HAS_FROM = 0x01;
+  private static final byte HAS_TO = 0x02;
+  private static final byte HAS_ACTION = 0x04;
+  private static final byte HAS_ID = 0x08;
+
+  private static final byte TAG_NULL = 0;
+  private static final byte TAG_FALSE = 1;
+  private static final byte TAG_TRUE = 2;
+  private static final byte TAG_INTEGER = 3;
+  private static final byte TAG_DOUBLE = 4;
+  private static final byte TAG_STRING = 5;
+  private static final byte TAG_OBJECT = 6;
+  private static final byte TAG_ARRAY = 7;
+  private static final byte TAG_BIG_INTEGER = 8;
+  private static final byte TAG_BIG_DECIMAL = 9;
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override public int getID() {
+    return ID;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override public String getName() {
+    return NAME;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override public byte[] encode(JSONObject message) {
+    return encode(message, null);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override public byte[] encodePayload(JSONObject payload) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+    writeValue(out, payload);
+    return out.toByteArray();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override public byte[] encode(JSONObject message, byte[] payload) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(payload == null ? 256 : payload.length + 64);
+    Object from = message.opt("from");
+    Object to = message.opt("to");
+    Object action = message.opt("action");
+    Object id = message.opt("id");
+    byte header = 0;
+    if(from instanceof String) header |= HAS_FROM;
+    if(to instanceof String) header |= HAS_TO;
+    if(action instanceof String) header |= HAS_ACTION;
+    if(id instanceof Integer || id instanceof Long) header |= HAS_ID;
+    out.write(header);
+    if((header & HAS_FROM) != 0) writeString(out, (String)from);
+    if((header & HAS_TO) != 0) writeString(out, (String)to);
+    if((header & HAS_ACTION) != 0) writeString(out, (String)action);
+    if((header & HAS_ID) != 0) writeVarLong(out, ((Number)id).longValue());
+
+    int count = message.length() - Integer.bitCount(header);
+    if(payload != null && !message.has("payload")) count++;
+    writeVarLong(out, count);
+    for(String key : message.keySet()) {
+      if((header & HAS_FROM) != 0 && key.equals("from")
+          || (header & HAS_TO) != 0 && key.equals("to")
+          || (header & HAS_ACTION) != 0 && key.equals("action")
+          || (header & HAS_ID) != 0 && key.equals("id")
+          || payload != null && key.equals("payload"))
+        continue;
+      writeString(out, key);
+      writeValue(out, message.opt(key));
+    }
+    if(payload != null) { // already tagged
+      writeString(out, "payload");
+      out.write(payload, 0, payload.length);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override public JSONObject decode(byte[] data) throws IOException {
+    try {
+      ByteBuffer in = ByteBuffer.wrap(data);
+      JSONObject message = new JSONObject();
+      byte header = in.get();
+      if((header & HAS_FROM) != 0) message.put("from", readString(in));
+      if((header & HAS_TO) != 0) message.put("to", readString(in));
+      if((header & HAS_ACTION) != 0) message.put("action", readString(in));
+      if((header & HAS_ID) != 0) message.put("id", readVarLong(in));
+      readEntries(in, message, 0);
+      if(in.hasRemaining()) throw new IOException("Trailing bytes after message.");
+      return message;
+    } catch(BufferUnderflowException | IllegalArgumentException e) {
+      throw new IOException("Malformed binary message.");
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * The header is read straight out of the fixed fields at the front.
+   */
+  @Override public JSONObject decodeHeader(byte[] data) throws IOException {
+    try {
+      ByteBuffer in = ByteBuffer.wrap(data);
+      JSONObject header = new JSONObject();
+      byte present = in.get();
+      if((present & (HAS_FROM | HAS_TO)) != (HAS_FROM | HAS_TO))
+        return MessageCodec.super.decodeHeader(data); // the routing fields are somewhere in the entries
+      header.put("from", readString(in));
+      header.put("to", readString(in));
+      if((present & HAS_ACTION) != 0) header.put("action", readString(in));
+      if((present & HAS_ID) != 0) header.put("id", readVarLong(in));
+      return header;
+    } catch(BufferUnderflowException | IllegalArgumentException e) {
+      throw new IOException("Malformed binary message.");
+    }
+  }
+
+  private void writeValue(ByteArrayOutputStream out, Object value) {
+    if(value == null || value == JSONObject.NULL) {
+      out.write(TAG_NULL);
+    } else if(value instanceof Boolean) {
+      out.write((Boolean)value ? TAG_TRUE : TAG_FALSE);
+    } else if(value instanceof Integer || value instanceof Long
+        || value instanceof Short || value instanceof Byte) {
+      out.write(TAG_INTEGER);
+      writeVarLong(out, ((Number)value).longValue());
+    } else if(value instanceof Double || value instanceof Float) {
+      out.write(TAG_DOUBLE);
+      long bits = Double.doubleToLongBits(((Number)value).doubleValue());
+      for(int i = 56; i >= 0; i -= 8)
+        out.write((int)(bits >>> i));
+    } else if(value instanceof BigInteger) {
+      out.write(TAG_BIG_INTEGER);
+      writeString(out, value.toString());
+    } else if(value instanceof BigDecimal) {
+      out.write(TAG_BIG_DECIMAL);
+      writeString(out, value.toString());
+    } else if(value instanceof JSONObject) {
+      JSONObject object = (JSONObject)value;
+      out.write(TAG_OBJECT);
+      writeVarLong(out, object.length());
+      for(String key : object.keySet()) {
+        writeString(out, key);
+        writeValue(out, object.opt(key));
+      }
+    } else if(value instanceof JSONArray) {
+      JSONArray array = (JSONArray)value;
+      out.write(TAG_ARRAY);
+      writeVarLong(out, array.length());
+      for(int i = 0; i < array.length(); i++)
+        writeValue(out, array.opt(i));
+    } else if(value instanceof String) {
+      out.write(TAG_STRING);
+      writeString(out, (String)value);
+    } else {
+      Object wrapped = JSONObject.wrap(value); // maps, collections, beans and the like
+      if(wrapped == null || wrapped == value) {
+        out.write(TAG_STRING);
+        writeString(out, value.toString());
+      } else writeValue(out, wrapped);
+    }
+  }
+
+  private Object readValue(ByteBuffer in, int depth) throws IOException {
+    byte tag = in.get();
+    switch(tag) {
+    case TAG_NULL:
+      return JSONObject.NULL;
+    case TAG_FALSE:
+      return Boolean.FALSE;
+    case TAG_TRUE:
+      return Boolean.TRUE;
+    case TAG_INTEGER:
+      long value = readVarLong(in);
+      if(value == (int)value) return (int)value; // same types that the JSON parser produces
+      return value;
+    case TAG_DOUBLE:
+      return Double.longBitsToDouble(in.getLong());
+    case TAG_STRING:
+      return readString(in);
+    case TAG_BIG_INTEGER:
+      return new BigInteger(readString(in));
+    case TAG_BIG_DECIMAL:
+      return new BigDecimal(readString(in));
+    case TAG_OBJECT:
+      if(depth >= MAX_DEPTH) throw new IOException("Binary message is nested too deeply.");
+      return readEntries(in, new JSONObject(), depth + 1);
+    case TAG_ARRAY:
+      if(depth >= MAX_DEPTH) throw new IOException("Binary message is nested too deeply.");
+      int length = readLength(in);
+      JSONArray array = new JSONArray();
+      for(int i = 0; i < length; i++)
+        array.put(readValue(in, depth + 1));
+      return array;
+    default:
+      throw new IOException(String.format("Unknown value tag %1$d.", tag));
+    }
+  }
+
+  private JSONObject readEntries(ByteBuffer in, JSONObject object, int depth) throws IOException {
+    int count = readLength(in);
+    for(int i = 0; i < count; i++) {
+      String key = readString(in);
+      object.put(key, readValue(in, depth));
+    }
+    return object;
+  }
+
+  private static void writeString(ByteArrayOutputStream out, String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    writeVarLong(out, bytes.length);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  private static String readString(ByteBuffer in) throws IOException {
+    int length = readLength(in);
+    String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+    in.position(in.position() + length);
+    return value;
+  }
+
+  // zigzag-encoded, seven bits at a time, so that small numbers of either sign stay small
+  private static void writeVarLong(ByteArrayOutputStream out, long value) {
+    value = (value << 1) ^ (value >> 63);
+    while((value & ~0x7FL) != 0L) {
+      out.write((int)(value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write((int)value);
+  }
+
+  private static long readVarLong(ByteBuffer in) throws IOException {
+    long value = 0L;
+    for(int shift = 0; shift < 64; shift += 7) {
+      byte b = in.get();
+      value |= (long)(b & 0x7F) << shift;
+      if((b & 0x80) == 0) return (value >>> 1) ^ -(value & 1L);
+    }
+    throw new IOException("Malformed variable-length integer.");
+  }
+
+  // a count or length can't be larger than the bytes that are left to hold it
+  private static int readLength(ByteBuffer in) throws IOException {
+    long length = readVarLong(in);
+    if(length < 0L || length > in.remaining()) throw new IOException("Malformed length.");
+    return (int)length;
+  }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2020 Axonibyte Innovations, LLC. All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.axonibyte.bonemesh.message;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A broadcast that travels down a distribution tree. The message is sent to
+ * a neighbor along with the labels of every node that the neighbor is
+ * responsible for; the neighbor delivers it if it is one of those nodes,
+ * and splits the rest among its own neighbors. The sender and message ID
+ * stay the same all the way down, so that duplicates can be recognized.
+ *
+ * @author Caleb L. Power
+ */
+public class BroadcastMessage extends GenericMessage {
+
+  /**
+   * Overloaded constructor.
+   *
+   * @param from the node from which the broadcast originates
+   * @param to the neighbor that the message is sent to
+   * @param payload the payload
+   * @param targets the labels of the nodes that the neighbor is responsible for
+   */
+  public BroadcastMessage(String from, String to, JSONObject payload, Collection<String> targets) {
+    super(from, to, "broadcast", payload);
+    put("targets", new JSONArray(targets));
+  }
+
+  /**
+   * Generates a broadcast message from a JSON object.
+   *
+   * @param json the raw JSON object
+   * @throws JSONException if there is unexpected data or lack thereof
+   */
+  public BroadcastMessage(JSONObject json) throws JSONException {
+    super(json);
+    put("targets", json.getJSONArray("targets"));
+  }
+
+  /**
+   * Determines if an incoming JSON object implements a broadcast message.
+   *
+   * @param data the incoming data
+   * @return <code>true</code> if the action is of type <code>broadcast</code>
+   */
+  public static boolean isImplementedBy(JSONObject data) {
+    return "broadcast".equals(data.optString("action"));
+  }
+
+  /**
+   * Retrieves the labels of the nodes that the recipient is responsible for.
+   *
+   * @return a list of node labels
+   */
+  public List<String> getTargets() {
+    JSONArray targets = getJSONArray("targets");
+    List<String> labels = new ArrayList<>(targets.length());
+    for(int i = 0; i < targets.length(); i++)
+      labels.add(targets.getString(i));
+    return labels;
+  }
+
+  /**
+   * Copies this broadcast for another neighbor. The copy keeps the sender,
+   * message ID and payload.
+   *
+   * @param to the neighbor that the copy is sent to
+   * @param targets the labels of the nodes that the neighbor is responsible for
+   * @return the copy
+   */
+  public BroadcastMessage forward(String to, Collection<String> targets) {
+    BroadcastMessage message = new BroadcastMessage(getFrom(), to, getPayload(), targets);
+    message.put("id", getID());
+    return message;
+  }
+
+  /**
+   * Turns this broadcast into the generic message that a single target
+   * would have received if the datum had been sent to it directly.
+   *
+   * @param to the label of the target
+   * @return the generic message
+   */
+  public GenericMessage toGenericMessage(String to) {
+    return new GenericMessage(new JSONObject()
+        .put("from", getFrom())
+        .put("to", to)
+        .put("action", "generic")
+        .put("id", getID())
+        .put("payload", getPayload()));
+  }
+
+}
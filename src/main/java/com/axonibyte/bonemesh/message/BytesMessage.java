@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2020 Axonibyte Innovations, LLC. All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.axonibyte.bonemesh.message;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A message that carries raw bytes instead of a JSON payload. Only the
+ * routing header (sender, recipient and message ID) is JSON; the bytes
+ * themselves are never encoded or decoded. On the wire, the body holds the
+ * length of the header, the header as UTF-8 text, and then the bytes.
+ *
+ * @author Caleb L. Power
+ */
+public class BytesMessage extends GenericMessage {
+
+  private byte[] body = null;
+  private int offset;
+
+  /**
+   * Overloaded constructor. The remaining bytes in the buffer are copied,
+   * so the buffer may be reused as soon as this returns.
+   *
+   * @param from the node from which the message is sent
+   * @param to the recipient node
+   * @param data the bytes to send
+   */
+  public BytesMessage(String from, String to, ByteBuffer data) {
+    this(from, to, "bytes", null, data);
+  }
+
+  /**
+   * Overloaded constructor that provides custom action metadata and extra
+   * header fields.
+   *
+   * @param from the node from which the message is sent
+   * @param to the recipient node
+   * @param action the custom action denoted in this message
+   * @param fields extra header fields, or <code>null</code> for none
+   * @param data the bytes to send
+   */
+  protected BytesMessage(String from, String to, String action, JSONObject fields, ByteBuffer data) {
+    super(from, to, action, null);
+    remove("payload");
+    if(fields != null)
+      for(String key : fields.keySet())
+        put(key, fields.get(key));
+    byte[] header = toString().getBytes(StandardCharsets.UTF_8);
+    this.offset = 4 + header.length;
+    this.body = new byte[offset + data.remaining()];
+    ByteBuffer.wrap(body)
+        .putInt(header.length)
+        .put(header)
+        .put(data.duplicate());
+  }
+
+  /**
+   * Rebuilds a message from a decoded header. Every header field is kept,
+   * so that relays pass the message on unchanged.
+   *
+   * @param header the decoded header
+   * @param body the frame body
+   * @param offset the position of the bytes in the frame body
+   * @throws JSONException if the header lacks routing fields
+   */
+  protected BytesMessage(JSONObject header, byte[] body, int offset) throws JSONException {
+    super(header.getString("from"), header.getString("to"), header.getString("action"), null);
+    remove("payload");
+    remove("id");
+    for(String key : header.keySet())
+      if(!has(key)) put(key, header.get(key));
+    this.body = body;
+    this.offset = offset;
+  }
+
+  /**
+   * Reads a message out of the body of a frame. The bytes are not copied.
+   *
+   * @param body the frame body
+   * @return the message
+   * @throws IOException if the body is malformed
+   */
+  public static BytesMessage decode(byte[] body) throws IOException {
+    try {
+      int length = ByteBuffer.wrap(body).getInt();
+      if(length < 0 || length > body.length - 4) throw new IOException("Malformed bytes frame.");
+      JSONObject header = new JSONObject(new String(body, 4, length, StandardCharsets.UTF_8));
+      if(StreamMessage.isImplementedBy(header))
+        return new StreamMessage(header, body, 4 + length);
+      return new BytesMessage(header, body, 4 + length);
+    } catch(BufferUnderflowException | JSONException e) {
+      throw new IOException("Malformed bytes frame.");
+    }
+  }
+
+  /**
+   * Determines if an incoming JSON object is the header of a plain bytes
+   * message.
+   *
+   * @param data the incoming data
+   * @return <code>true</code> if the action is of type <code>bytes</code>
+   */
+  public static boolean isImplementedBy(JSONObject data) {
+    return "bytes".equals(data.optString("action"));
+  }
+
+  /**
+   * Retrieves the serialized message, header included.
+   *
+   * @return the frame body
+   */
+  public byte[] getBody() {
+    return body;
+  }
+
+  /**
+   * Retrieves the bytes carried by this message. Every call returns a new
+   * read-only view of the same bytes, so readers don't disturb each other.
+   *
+   * @return the bytes
+   */
+  public ByteBuffer getData() {
+    return ByteBuffer.wrap(body, offset, body.length - offset).slice().asReadOnlyBuffer();
+  }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2020 Axonibyte Innovations, LLC. All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.axonibyte.bonemesh.message;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A best-effort message that travels in a single datagram and is never
+ * acknowledged. It carries a hop limit, since nothing else stops it from
+ * circling a routing loop.
+ *
+ * @author Caleb L. Power
+ */
+public class DatagramMessage extends GenericMessage {
+
+  /**
+   * The number of hops that a datagram may take by default.
+   */
+  public static final int DEFAULT_HOP_LIMIT = 16;
+
+  /**
+   * Overloaded constructor.
+   *
+   * @param from the node from which the message is sent
+   * @param to the recipient node
+   * @param payload the payload
+   */
+  public DatagramMessage(String from, String to, JSONObject payload) {
+    super(from, to, "datagram", payload);
+    put("hops", DEFAULT_HOP_LIMIT);
+  }
+
+  /**
+   * Generates a datagram message from a JSON object.
+   *
+   * @param json the raw JSON object
+   * @throws JSONException if there is unexpected data or lack thereof
+   */
+  public DatagramMessage(JSONObject json) throws JSONException {
+    super(json);
+    put("hops", json.optInt("hops", DEFAULT_HOP_LIMIT));
+  }
+
+  /**
+   * Determines if an incoming JSON object implements a datagram message.
+   *
+   * @param data the incoming data
+   * @return <code>true</code> if the action is of type <code>datagram</code>
+   */
+  public static boolean isImplementedBy(JSONObject data) {
+    return "datagram".equals(data.optString("action"));
+  }
+
+  /**
+   * Retrieves the number of hops that this message may still take.
+   *
+   * @return the remaining hop count
+   */
+  public int getHops() {
+    return getInt("hops");
+  }
+
+  /**
+   * Uses up one of this message's hops.
+   *
+   * @return <code>true</code> if the message may take another hop
+   */
+  public boolean hop() {
+    int hops = getHops() - 1;
+    put("hops", hops);
+    return hops > 0;
+  }
+
+  /**
+   * Turns this datagram into the generic message that the recipient would
+   * have received if the datum had been sent reliably.
+   *
+   * @return the generic message
+   */
+  public GenericMessage toGenericMessage() {
+    return new GenericMessage(new JSONObject()
+        .put("from", getFrom())
+        .put("to", getTo())
+        .put("action", "generic")
+        .put("id", getID())
+        .put("payload", getPayload()));
+  }
+
+}
@@ -16,13 +16,20 @@
 
 package com.axonibyte.bonemesh.message;
 
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import com.axonibyte.bonemesh.node.Feature;
+import com.axonibyte.bonemesh.node.RouteUpdate;
+
 /**
  * A heartbeat message intended to check if a node is alive.
  * 
@@ -39,15 +46,32 @@ public class DiscoveryMessage extends GenericMessage {
    * @param port the BoneMesh listening port
    */
   public DiscoveryMessage(String from, String to, Map<String, Long> knownNodes, int port) {
+    this(from, to, knownNodes, port, EnumSet.noneOf(Feature.class));
+  }
+  
+  /**
+   * Overloaded constructor.
+   * 
+   * @param from the node from which the message is sent
+   * @param to the recipient node
+   * @param knownNodes directly connected nodes and their latencies
+   * @param port the BoneMesh listening port
+   * @param features the protocol features that the sender supports
+   */
+  public DiscoveryMessage(String from, String to, Map<String, Long> knownNodes, int port, Collection<Feature> features) {
     super(from, to, "hello", null);
     JSONArray nodes = new JSONArray();
     for(String node : knownNodes.keySet())
       nodes.put(new JSONObject()
           .put("node", node)
           .put("latency", knownNodes.get(node)));
+    JSONArray featureNames = new JSONArray();
+    for(Feature feature : features)
+      featureNames.put(feature.getWireName());
     getJSONObject("payload")
         .put("nodes", nodes)
-        .put("port", port);
+        .put("port", port)
+        .put("features", featureNames);
   }
   
   /**
@@ -88,6 +112,170 @@ public class DiscoveryMessage extends GenericMessage {
     return latencies;
   }
   
+  /**
+   * Retrieves the neighbors and their latencies that are worth taking from
+   * this message for a particular recipient. Routes that go through the
+   * recipient itself are left out, so that it can't learn them back and form
+   * a loop.
+   * 
+   * @param recipient the label of the recipient
+   * @return map of node neighbors and their latencies
+   */
+  public Map<String, Long> getNodes(String recipient) {
+    Map<String, Long> latencies = new ConcurrentHashMap<>();
+    JSONArray nodes = getJSONObject("payload").getJSONArray("nodes");
+    for(int i = 0; i < nodes.length(); i++)
+      if(!nodes.getJSONObject(i).optString("via").equalsIgnoreCase(recipient))
+        latencies.put(nodes.getJSONObject(i).getString("node"),
+            nodes.getJSONObject(i).getLong("latency"));
+    return latencies;
+  }
+  
+  /**
+   * Records the next hop of the sender's route to each of its neighbors, for
+   * messages that go to several recipients at once.
+   * 
+   * @param nextHops the labels of the next hops, by the labels of the nodes
+   *        that they lead to
+   * @return this DiscoveryMessage object
+   */
+  public DiscoveryMessage setNextHops(Map<String, String> nextHops) {
+    JSONArray nodes = getJSONObject("payload").getJSONArray("nodes");
+    for(int i = 0; i < nodes.length(); i++) {
+      String nextHop = nextHops.get(nodes.getJSONObject(i).getString("node"));
+      if(nextHop != null) nodes.getJSONObject(i).put("via", nextHop);
+    }
+    return this;
+  }
+  
+  /**
+   * Sets the version of the sender's advertisement that this message holds.
+   * 
+   * @param version the version number
+   * @return this DiscoveryMessage object
+   */
+  public DiscoveryMessage setVersion(long version) {
+    getJSONObject("payload").put("version", version);
+    return this;
+  }
+  
+  /**
+   * Retrieves the version of the sender's advertisement that this message
+   * holds.
+   * 
+   * @return the version number, or <code>-1</code> if the sender doesn't
+   *         version its advertisements
+   */
+  public long getVersion() {
+    return getJSONObject("payload").optLong("version", -1L);
+  }
+  
+  /**
+   * Marks this message as a delta. The nodes in the message are then only
+   * those that are new or whose latencies changed since the base version,
+   * and the removed nodes are those that are no longer advertised.
+   * 
+   * @param base the version that the delta applies on top of
+   * @param removed the labels of the nodes that are no longer advertised
+   * @return this DiscoveryMessage object
+   */
+  public DiscoveryMessage setDelta(long base, Collection<String> removed) {
+    getJSONObject("payload")
+        .put("base", base)
+        .put("removed", new JSONArray(removed));
+    return this;
+  }
+  
+  /**
+   * Determines whether or not this message only holds changes.
+   * 
+   * @return <code>true</code> if this message is a delta
+   */
+  public boolean isDelta() {
+    return getJSONObject("payload").has("base");
+  }
+  
+  /**
+   * Retrieves the version that this delta applies on top of.
+   * 
+   * @return the base version, or <code>-1</code> if this isn't a delta
+   */
+  public long getBase() {
+    return getJSONObject("payload").optLong("base", -1L);
+  }
+  
+  /**
+   * Retrieves the labels of the nodes that are no longer advertised.
+   * 
+   * @return a set of node labels
+   */
+  public Set<String> getRemoved() {
+    Set<String> removed = new HashSet<>();
+    JSONArray labels = getJSONObject("payload").optJSONArray("removed");
+    if(labels != null)
+      for(int i = 0; i < labels.length(); i++)
+        removed.add(labels.getString(i));
+    return removed;
+  }
+  
+  /**
+   * Retrieves the routes that this message holds.
+   * 
+   * @return the routes, as a route update
+   */
+  public RouteUpdate toRouteUpdate() {
+    return new RouteUpdate(getVersion(), getBase(), getNodes(), getRemoved());
+  }
+  
+  /**
+   * Asks the recipient to send its whole table next, because the sender
+   * couldn't apply a delta.
+   * 
+   * @param resync <code>true</code> to ask for the whole table
+   * @return this DiscoveryMessage object
+   */
+  public DiscoveryMessage setResync(boolean resync) {
+    if(resync) getJSONObject("payload").put("resync", true);
+    else getJSONObject("payload").remove("resync");
+    return this;
+  }
+  
+  /**
+   * Determines whether or not the sender wants the recipient's whole table.
+   * 
+   * @return <code>true</code> if the sender asked for the whole table
+   */
+  public boolean isResync() {
+    return getJSONObject("payload").optBoolean("resync");
+  }
+  
+  /**
+   * Lists the nodes whose multicast announcements the sender hears.
+   * 
+   * @param heard the labels of the nodes
+   * @return this DiscoveryMessage object
+   */
+  public DiscoveryMessage setHeard(Collection<String> heard) {
+    if(heard.isEmpty()) getJSONObject("payload").remove("heard");
+    else getJSONObject("payload").put("heard", new JSONArray(heard));
+    return this;
+  }
+  
+  /**
+   * Determines whether or not the sender hears a node's multicast
+   * announcements.
+   * 
+   * @param label the label of the node
+   * @return <code>true</code> if the sender says that it hears the node
+   */
+  public boolean isHeard(String label) {
+    JSONArray heard = getJSONObject("payload").optJSONArray("heard");
+    if(heard != null)
+      for(int i = 0; i < heard.length(); i++)
+        if(heard.optString(i).equalsIgnoreCase(label)) return true;
+    return false;
+  }
+  
   /**
    * Retrieves the listening port for the sender.
    * 
@@ -96,4 +284,70 @@ public class DiscoveryMessage extends GenericMessage {
   public int getPort() {
     return getJSONObject("payload").getInt("port");
   }
+  
+  /**
+   * Retrieves the protocol features that the sender supports.
+   * Features that this node doesn't know about are left out.
+   * 
+   * @return a set of supported features
+   */
+  public Set<Feature> getFeatures() {
+    Set<Feature> features = EnumSet.noneOf(Feature.class);
+    JSONArray featureNames = getJSONObject("payload").optJSONArray("features");
+    if(featureNames != null)
+      for(int i = 0; i < featureNames.length(); i++) {
+        Feature feature = Feature.fromWireName(featureNames.optString(i));
+        if(feature != null) features.add(feature);
+      }
+    return features;
+  }
+  
+  /**
+   * Advertises the compression dictionary that the sender has been
+   * configured with.
+   * 
+   * @param dictionaryID the dictionary ID, or <code>-1</code> for none
+   * @return this DiscoveryMessage object
+   */
+  public DiscoveryMessage setDictionaryID(long dictionaryID) {
+    if(dictionaryID < 0L) getJSONObject("payload").remove("dictionary");
+    else getJSONObject("payload").put("dictionary", dictionaryID);
+    return this;
+  }
+  
+  /**
+   * Retrieves the ID of the compression dictionary that the sender has been
+   * configured with.
+   * 
+   * @return the dictionary ID, or <code>-1</code> if the sender has none
+   */
+  public long getDictionaryID() {
+    return getJSONObject("payload").optLong("dictionary", -1L);
+  }
+  
+  /**
+   * Advertises the message codecs that the sender can read.
+   * 
+   * @param codecs the names of the codecs
+   * @return this DiscoveryMessage object
+   */
+  public DiscoveryMessage setCodecs(Collection<String> codecs) {
+    getJSONObject("payload").put("codecs", new JSONArray(codecs));
+    return this;
+  }
+  
+  /**
+   * Retrieves the names of the message codecs that the sender can read.
+   * Senders that predate codecs only read JSON, and advertise none.
+   * 
+   * @return a set of codec names
+   */
+  public Set<String> getCodecs() {
+    Set<String> codecs = new HashSet<>();
+    JSONArray codecNames = getJSONObject("payload").optJSONArray("codecs");
+    if(codecNames != null)
+      for(int i = 0; i < codecNames.length(); i++)
+        codecs.add(codecNames.optString(i));
+    return codecs;
+  }
 }
@@ -16,6 +16,10 @@
 
 package com.axonibyte.bonemesh.message;
 
+import java.security.SecureRandom;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -26,6 +30,8 @@ import org.json.JSONObject;
  */
 public class GenericMessage extends JSONObject {
   
+  private static final AtomicLong nextID = new AtomicLong(new SecureRandom().nextLong() >>> 1);
+  
   /**
    * Overloaded constructor.
    * 
@@ -49,6 +55,7 @@ public class GenericMessage extends JSONObject {
     put("from", from);
     put("to", to);
     put("action", action);
+    put("id", nextID.getAndIncrement() & Long.MAX_VALUE);
     put("payload", payload == null ? new JSONObject() : payload);
   }
   
@@ -63,6 +70,8 @@ public class GenericMessage extends JSONObject {
         json.getString("to"),
         json.getString("action"),
         json.getJSONObject("payload"));
+    if(json.has("id")) put("id", json.getLong("id")); // keep the original id when relaying
+    else remove("id");
   }
   
   /**
@@ -107,6 +116,45 @@ public class GenericMessage extends JSONObject {
     return getJSONObject("payload");
   }
   
+  /**
+   * Retrieves the message ID. IDs are unique to the sender.
+   * 
+   * @return the message ID, or <code>-1</code> if the sender didn't assign one
+   */
+  public long getID() {
+    return optLong("id", -1L);
+  }
+  
+  /**
+   * Retrieves a key that pairs this message with its acknowledgement.
+   * 
+   * @return the correlation ID
+   */
+  public String getCorrelationID() {
+    return getCorrelationID(this);
+  }
+  
+  /**
+   * Retrieves a key that pairs a message with its acknowledgement.
+   * 
+   * @param data the raw message
+   * @return the correlation ID
+   */
+  public static String getCorrelationID(JSONObject data) {
+    return formatCorrelationID(data.optString("from"), data.optLong("id", -1L));
+  }
+  
+  /**
+   * Formats a correlation ID from the message's sender and ID.
+   * 
+   * @param from the original sender of the message
+   * @param id the message ID
+   * @return the correlation ID
+   */
+  protected static String formatCorrelationID(String from, long id) {
+    return String.format("%1$s#%2$d", from.toLowerCase(Locale.ROOT), id);
+  }
+  
   /**
    * Retrieves the message action.
    * 
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2020 Axonibyte Innovations, LLC. All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.axonibyte.bonemesh.message;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * The default codec, which writes messages as UTF-8 JSON text. Every node
+ * can read it, including nodes that predate codecs altogether.
+ *
+ * @author Caleb L. Power
+ */
+public class JsonCodec implements MessageCodec {
+
+  /**
+   * The ID of the JSON codec.
+   */
+  public static final int ID = 0;
+
+  /**
+   * The name of the JSON codec.
+   */
+  public static final String NAME = "json";
+
+  private static final Set<String> HEADER_KEYS = new HashSet<>(Arrays.asList("from", "to", "action", "id"));
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override public int getID() {
+    return ID;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override public String getName() {
+    return NAME;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override public byte[] encode(JSONObject message) {
+    return message.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override public byte[] encodePayload(JSONObject payload) {
+    return encode(payload);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override public byte[] encode(JSONObject message, byte[] payload) {
+    StringBuilder header = new StringBuilder("{");
+    for(String key : message.keySet())
+      if(!key.equals("payload"))
+        header.append(JSONObject.quote(key))
+            .append(':')
+            .append(JSONObject.valueToString(message.opt(key)))
+            .append(',');
+    header.append("\"payload\":");
+    byte[] head = header.toString().getBytes(StandardCharsets.UTF_8);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(head.length + payload.length + 1);
+    out.write(head, 0, head.length);
+    out.write(payload, 0, payload.length);
+    out.write('}');
+    return out.toByteArray();
+  }
+
+  /**
+   * {@inheritDoc}
+   * The top level of the object is scanned without building it, and only
+   * the values of the header fields are parsed. Scanning stops as soon as
+   * all of them have been found.
+   */
+  @Override public JSONObject decodeHeader(byte[] data) throws IOException {
+    JSONObject header = new JSONObject();
+    int i = skipWhitespace(data, 0);
+    if(i >= data.length || data[i] != '{') throw new IOException("Message is not a JSON object.");
+    i = skipWhitespace(data, i + 1);
+    if(i < data.length && data[i] == '}') return header;
+    try {
+      for(;;) {
+        if(data[i] != '"') throw new IOException("Malformed JSON key.");
+        int keyEnd = skipValue(data, i);
+        String key = new String(data, i + 1, keyEnd - i - 2, StandardCharsets.UTF_8);
+        i = skipWhitespace(data, keyEnd);
+        if(data[i] != ':') throw new IOException("Malformed JSON object.");
+        int valueStart = skipWhitespace(data, i + 1);
+        int valueEnd = skipValue(data, valueStart);
+        if(HEADER_KEYS.contains(key)) {
+          header.put(key, new JSONTokener(new String(data, valueStart, valueEnd - valueStart, StandardCharsets.UTF_8))
+              .nextValue());
+          if(header.length() == HEADER_KEYS.size()) return header;
+        }
+        i = skipWhitespace(data, valueEnd);
+        if(data[i] == '}') return header;
+        if(data[i] != ',') throw new IOException("Malformed JSON object.");
+        i = skipWhitespace(data, i + 1);
+      }
+    } catch(ArrayIndexOutOfBoundsException | JSONException e) {
+      throw new IOException("Malformed JSON message.");
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * Malformed JSON is reported with a {@link JSONException}.
+   */
+  @Override public JSONObject decode(byte[] data) throws IOException {
+    return new JSONObject(new String(data, StandardCharsets.UTF_8));
+  }
+
+  private static int skipWhitespace(byte[] data, int i) {
+    while(i < data.length && (data[i] == ' ' || data[i] == '\t' || data[i] == '\n' || data[i] == '\r')) i++;
+    return i;
+  }
+
+  // multi-byte UTF-8 sequences never contain ASCII bytes, so the structure can be scanned byte by byte
+  private static int skipValue(byte[] data, int i) {
+    int depth = 0;
+    do {
+      switch(data[i]) {
+      case '"':
+        for(i++; data[i] != '"'; i++)
+          if(data[i] == '\\') i++;
+        break;
+      case '{':
+      case '[':
+        depth++;
+        break;
+      case '}':
+      case ']':
+        depth--;
+        break;
+      default:
+        if(depth == 0) { // a bare literal runs up to the next delimiter
+          while(i + 1 < data.length && data[i + 1] != ',' && data[i + 1] != '}' && data[i + 1] != ']'
+              && data[i + 1] != ' ' && data[i + 1] != '\t' && data[i + 1] != '\n' && data[i + 1] != '\r') i++;
+          return i + 1;
+        }
+      }
+      i++;
+    } while(depth > 0);
+    return i;
+  }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2020 Axonibyte Innovations, LLC. All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.axonibyte.bonemesh.message;
+
+import java.io.IOException;
+
+import org.json.JSONObject;
+
+/**
+ * Turns messages into frame bodies and back. Nodes advertise the codecs
+ * that they can read, and each node picks, per neighbor, the first codec in
+ * its own order of preference that the neighbor has advertised. Every frame
+ * names the codec that it was written with, so a node can always read what
+ * it receives and reply in kind. Implementations must be thread-safe.
+ *
+ * @author Caleb L. Power
+ */
+public interface MessageCodec {
+
+  /**
+   * The largest codec ID that fits in a frame's flags.
+   */
+  public static final int MAX_ID = 15;
+
+  /**
+   * Retrieves the ID that marks frames written with this codec. Every node
+   * on the network must agree on the meaning of an ID.
+   *
+   * @return an ID between 0 and {@link #MAX_ID}
+   */
+  public int getID();
+
+  /**
+   * Retrieves the name under which this codec is advertised.
+   *
+   * @return the advertised name
+   */
+  public String getName();
+
+  /**
+   * Encodes a message, routing header and payload alike.
+   *
+   * @param message the message
+   * @return the encoded message
+   */
+  public byte[] encode(JSONObject message);
+
+  /**
+   * Decodes a message.
+   *
+   * @param data the encoded message
+   * @return the message
+   * @throws IOException if the data is malformed
+   */
+  public JSONObject decode(byte[] data) throws IOException;
+
+  /**
+   * Decodes only the routing header of a message: its sender, recipient,
+   * action and ID. Relays use this to pass messages on without decoding
+   * their payloads. Codecs that can't find the header without decoding the
+   * whole message may do so.
+   *
+   * @param data the encoded message
+   * @return the header fields that the message has
+   * @throws IOException if the data is malformed
+   */
+  public default JSONObject decodeHeader(byte[] data) throws IOException {
+    JSONObject message = decode(data);
+    JSONObject header = new JSONObject();
+    for(String key : new String[] { "from", "to", "action", "id" })
+      if(message.has(key)) header.put(key, message.get(key));
+    return header;
+  }
+
+  /**
+   * Encodes a message payload on its own, so that the same bytes can be
+   * shared by messages that differ only in their routing header. Codecs
+   * that can't do this return <code>null</code>, and every message is then
+   * encoded in full. The bytes are only ever put to use by
+   * {@link #encode(JSONObject, byte[])}, so codecs that implement one
+   * should implement both.
+   *
+   * @param payload the payload
+   * @return the encoded payload, or <code>null</code> if not supported
+   */
+  public default byte[] encodePayload(JSONObject payload) {
+    return null;
+  }
+
+  /**
+   * Encodes a message around a payload that was encoded by
+   * {@link #encodePayload(JSONObject)}. The message still carries the same
+   * payload, so codecs that can't splice in the encoded one encode the
+   * message in full instead.
+   *
+   * @param message the message
+   * @param payload the encoded payload
+   * @return the encoded message
+   */
+  public default byte[] encode(JSONObject message, byte[] payload) {
+    return encode(message);
+  }
+
+}
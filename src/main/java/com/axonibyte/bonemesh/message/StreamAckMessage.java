@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2020 Axonibyte Innovations, LLC. All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.axonibyte.bonemesh.message;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Credit sent from the receiver of a stream back to its sender. It names
+ * the last chunk that the receiver has consumed, which frees the sender to
+ * send that many more. It can also tell the sender to stop.
+ *
+ * @author Caleb L. Power
+ */
+public class StreamAckMessage extends GenericMessage {
+
+  /**
+   * Overloaded constructor.
+   *
+   * @param from the receiver of the stream
+   * @param to the sender of the stream
+   * @param streamID the stream ID
+   * @param sequence the last chunk consumed, or <code>-1</code> for none
+   * @param cancel <code>true</code> if the sender should stop
+   */
+  public StreamAckMessage(String from, String to, long streamID, long sequence, boolean cancel) {
+    super(from, to, "stream-ack",
+        new JSONObject()
+            .put("stream", streamID)
+            .put("seq", sequence)
+            .put("cancel", cancel));
+  }
+
+  /**
+   * Generates a stream acknowledgement from a JSON object.
+   *
+   * @param json the raw JSON object
+   * @throws JSONException if there is unexpected data or lack thereof
+   */
+  public StreamAckMessage(JSONObject json) throws JSONException {
+    super(json);
+  }
+
+  /**
+   * Determines if an incoming JSON object is a stream acknowledgement.
+   *
+   * @param data the incoming data
+   * @return <code>true</code> if the action is of type <code>stream-ack</code>
+   */
+  public static boolean isImplementedBy(JSONObject data) {
+    return "stream-ack".equals(data.optString("action"));
+  }
+
+  /**
+   * Retrieves the stream ID.
+   *
+   * @return the stream ID
+   */
+  public long getStreamID() {
+    return getPayload().optLong("stream", -1L);
+  }
+
+  /**
+   * Retrieves the last chunk that the receiver has consumed.
+   *
+   * @return the sequence number, or <code>-1</code> for none
+   */
+  public long getSequence() {
+    return getPayload().optLong("seq", -1L);
+  }
+
+  /**
+   * Determines whether or not the sender should stop.
+   *
+   * @return <code>true</code> if the receiver cancelled the stream
+   */
+  public boolean isCancel() {
+    return getPayload().optBoolean("cancel");
+  }
+
+}
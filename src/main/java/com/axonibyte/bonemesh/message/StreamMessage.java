@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2020 Axonibyte Innovations, LLC. All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.axonibyte.bonemesh.message;
+
+import java.nio.ByteBuffer;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * One chunk of a streamed transfer. Chunks are numbered from zero; the
+ * final chunk is marked as such and may be empty. The header also carries
+ * the sender's window, so that the receiver knows how often to send
+ * credit back.
+ *
+ * @author Caleb L. Power
+ */
+public class StreamMessage extends BytesMessage {
+
+  /**
+   * Overloaded constructor.
+   *
+   * @param from the node from which the stream is sent
+   * @param to the recipient node
+   * @param streamID the stream ID, unique to the sender
+   * @param sequence the number of this chunk within the stream
+   * @param window the number of chunks that the sender may have in flight
+   * @param last <code>true</code> if this is the final chunk
+   * @param abort <code>true</code> if the sender gave up on the stream
+   * @param data the bytes in this chunk
+   */
+  public StreamMessage(String from, String to, long streamID, long sequence, int window,
+      boolean last, boolean abort, ByteBuffer data) {
+    super(from, to, "stream",
+        new JSONObject()
+            .put("stream", streamID)
+            .put("seq", sequence)
+            .put("window", window)
+            .put("last", last)
+            .put("abort", abort),
+        data);
+  }
+
+  StreamMessage(JSONObject header, byte[] body, int offset) throws JSONException {
+    super(header, body, offset);
+  }
+
+  /**
+   * Determines if an incoming JSON object is the header of a stream chunk.
+   *
+   * @param data the incoming data
+   * @return <code>true</code> if the action is of type <code>stream</code>
+   */
+  public static boolean isImplementedBy(JSONObject data) {
+    return "stream".equals(data.optString("action"));
+  }
+
+  /**
+   * Retrieves the stream ID.
+   *
+   * @return the stream ID, unique to the sender
+   */
+  public long getStreamID() {
+    return optLong("stream", -1L);
+  }
+
+  /**
+   * Retrieves the number of this chunk within the stream.
+   *
+   * @return the sequence number
+   */
+  public long getSequence() {
+    return optLong("seq", -1L);
+  }
+
+  /**
+   * Retrieves the number of chunks that the sender may have in flight.
+   *
+   * @return the sender's window
+   */
+  public int getWindow() {
+    return Math.max(1, optInt("window", 1));
+  }
+
+  /**
+   * Determines whether or not this is the final chunk.
+   *
+   * @return <code>true</code> if no chunks follow this one
+   */
+  public boolean isLast() {
+    return optBoolean("last");
+  }
+
+  /**
+   * Determines whether or not the sender gave up on the stream.
+   *
+   * @return <code>true</code> if the stream was aborted
+   */
+  public boolean isAbort() {
+    return optBoolean("abort");
+  }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2020 Axonibyte Innovations, LLC. All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.axonibyte.bonemesh.node;
+
+/**
+ * A phi-accrual failure detector for a single node. It learns how long the
+ * node takes to answer heartbeats, and scores how long the node has kept
+ * this one waiting since: a score of phi means that there is a 10^-phi
+ * chance that an answer is merely late. The detector also paces the
+ * heartbeats, backing off while the link is steady and probing as often
+ * as allowed once the node is suspected.
+ *
+ * @author Caleb L. Power
+ */
+final class FailureDetector {
+
+  private static final int WINDOW = 32; // answers that the distribution is built from
+  private static final double ACCEPTABLE_PAUSE = 500.0; // milliseconds that any answer may be held up
+  private static final double FIRST_ESTIMATE = 500.0; // milliseconds, until the first answer comes back
+  private static final double MIN_DEVIATION = 100.0; // milliseconds, so that a quiet link isn't too touchy
+
+  private double[] samples = new double[WINDOW];
+  private double sum = 0.0;
+  private double squares = 0.0;
+  private int count = 0;
+  private int next = 0;
+  private boolean steady = true; // nothing went wrong since the last heartbeat
+  private long interval = 0L; // milliseconds between heartbeats
+  private long lastArrival = -1L; // nanoseconds
+  private long lastHeartbeat = -1L; // nanoseconds
+  private long nextHeartbeat = 0L; // nanoseconds
+  private long waitingSince = -1L; // nanoseconds, or -1 if nothing is outstanding
+
+  /*
+   * Takes note of anything at all that the node sent back. Only answers to
+   * heartbeats say how long answers take.
+   */
+  synchronized void recordArrival(boolean heartbeat) {
+    long now = System.nanoTime();
+    if(heartbeat && lastHeartbeat >= 0L) record(toMillis(now - lastHeartbeat));
+    lastArrival = now;
+    waitingSince = -1L;
+  }
+
+  /*
+   * Takes note of something that the node failed to take. The node owes an
+   * answer from now on, and is probed as soon as allowed.
+   */
+  synchronized void recordFailure() {
+    if(waitingSince < 0L) waitingSince = System.nanoTime();
+    steady = false;
+  }
+
+  /*
+   * Takes note of a heartbeat that was just sent, and works out when the
+   * next one is due. Steady nodes and dead nodes are sent heartbeats less
+   * and less often; suspected ones as often as allowed.
+   */
+  synchronized void recordHeartbeat(long minInterval, long maxInterval, double deadThreshold) {
+    long now = System.nanoTime();
+    boolean answered = waitingSince < 0L; // an unanswered heartbeat is anything but steady
+    if(steady && answered || phi(now) >= deadThreshold)
+      interval = Math.min(maxInterval, Math.max(minInterval, interval * 2L));
+    else interval = minInterval;
+    if(answered) waitingSince = now;
+    lastHeartbeat = now;
+    nextHeartbeat = now + interval * 1000000L;
+    steady = true;
+  }
+
+  /*
+   * Determines whether or not it's time for another heartbeat.
+   */
+  synchronized boolean isHeartbeatDue(long minInterval, double suspectThreshold, double deadThreshold) {
+    long now = System.nanoTime();
+    if(lastHeartbeat < 0L || now >= nextHeartbeat) return true;
+    double phi = phi(now);
+    if(phi >= suspectThreshold) steady = false;
+    return !steady && phi < deadThreshold && now - lastHeartbeat >= minInterval * 1000000L;
+  }
+
+  /*
+   * Retrieves the current suspicion score. Nodes that have never answered
+   * are beyond suspicion, and those that don't owe an answer are above it.
+   */
+  synchronized double phi() {
+    return phi(System.nanoTime());
+  }
+
+  /*
+   * Retrieves the current heartbeat interval in milliseconds.
+   */
+  synchronized long getInterval() {
+    return interval;
+  }
+
+  private double phi(long now) {
+    if(lastArrival < 0L) return Double.POSITIVE_INFINITY;
+    if(waitingSince < 0L) return 0.0;
+    double mean = count == 0 ? FIRST_ESTIMATE : sum / count;
+    double deviation = count == 0 ? FIRST_ESTIMATE / 4.0 : Math.sqrt(Math.max(0.0, squares / count - mean * mean));
+    deviation = Math.max(MIN_DEVIATION, deviation);
+    double y = (toMillis(now - waitingSince) - mean - ACCEPTABLE_PAUSE) / deviation;
+    double e = Math.exp(-y * (1.5976 + 0.070566 * y * y)); // logistic approximation of the normal distribution
+    return y > 0.0 ? -Math.log10(e / (1.0 + e)) : -Math.log10(1.0 - 1.0 / (1.0 + e));
+  }
+
+  private void record(double sample) {
+    if(count == WINDOW) {
+      sum -= samples[next];
+      squares -= samples[next] * samples[next];
+    } else count++;
+    samples[next] = sample;
+    sum += sample;
+    squares += sample * sample;
+    next = (next + 1) % WINDOW;
+  }
+
+  private static double toMillis(long nanos) {
+    return nanos / 1000000.0;
+  }
+
+}
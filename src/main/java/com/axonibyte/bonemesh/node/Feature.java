@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2020 Axonibyte Innovations, LLC. All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.axonibyte.bonemesh.node;
+
+/**
+ * Optional protocol features that a node can advertise to its neighbors.
+ * A feature is only used on a link once the remote node has advertised it,
+ * so that nodes of different versions can share a network.
+ *
+ * @author Caleb L. Power
+ */
+public enum Feature {
+
+  /**
+   * Length-prefixed binary frames.
+   */
+  BINARY_FRAMING("framing"),
+  
+  /**
+   * Several messages packed into one frame and acknowledged together.
+   */
+  BATCHING("batch"),
+  
+  /**
+   * DEFLATE compression of large frames.
+   */
+  COMPRESSION("deflate"),
+  
+  /**
+   * Broadcasts that are relayed down a distribution tree.
+   */
+  TREE_BROADCAST("tree"),
+  
+  /**
+   * Best-effort datagrams on the UDP port that matches the TCP port.
+   */
+  DATAGRAMS("udp"),
+  
+  /**
+   * Discovery messages that only carry the routes that changed.
+   */
+  DELTA_DISCOVERY("delta");
+
+  private String wireName = null;
+
+  private Feature(String wireName) {
+    this.wireName = wireName;
+  }
+
+  /**
+   * Retrieves the name under which this feature is advertised.
+   *
+   * @return the advertised name
+   */
+  public String getWireName() {
+    return wireName;
+  }
+
+  /**
+   * Retrieves a feature by its advertised name.
+   *
+   * @param wireName the advertised name
+   * @return the matching feature, or <code>null</code> if this node doesn't
+   *         know about it
+   */
+  public static Feature fromWireName(String wireName) {
+    for(Feature feature : values())
+      if(feature.wireName.equals(wireName))
+        return feature;
+    return null;
+  }
+
+}
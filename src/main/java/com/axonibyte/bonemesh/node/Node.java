@@ -16,7 +16,12 @@
 
 package com.axonibyte.bonemesh.node;
 
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -26,9 +31,12 @@ import java.util.concurrent.atomic.AtomicReference;
  */
 public class Node {
   
+  private AtomicReference<Set<Feature>> features = null;
+  private AtomicReference<Set<String>> codecs = null;
   private AtomicReference<String> label = null;
   private AtomicReference<String> ip = null;
   private AtomicInteger port = null;
+  private AtomicLong dictionaryID = null;
   
   /**
    * Overloaded constructor.
@@ -41,6 +49,9 @@ public class Node {
     this.label = new AtomicReference<>(label);
     this.ip = new AtomicReference<>(ip.startsWith("/") ? ip.substring(1) : ip);
     this.port = new AtomicInteger(port);
+    this.features = new AtomicReference<>(Collections.emptySet());
+    this.codecs = new AtomicReference<>(Collections.emptySet());
+    this.dictionaryID = new AtomicLong(-1L);
   }
   
   /**
@@ -103,4 +114,89 @@ public class Node {
     return this;
   }
   
+  /**
+   * Retrieves the protocol features that the node has advertised.
+   * 
+   * @return an immutable set of features
+   */
+  public Set<Feature> getFeatures() {
+    return features.get();
+  }
+  
+  /**
+   * Sets the protocol features that the node has advertised.
+   * 
+   * @param features the features
+   * @return this Node object
+   */
+  public Node setFeatures(Set<Feature> features) {
+    this.features.set(features.isEmpty()
+        ? Collections.emptySet()
+        : Collections.unmodifiableSet(EnumSet.copyOf(features)));
+    return this;
+  }
+  
+  /**
+   * Determines whether or not the node has advertised a particular feature.
+   * 
+   * @param feature the feature
+   * @return <code>true</code> if the node supports the feature
+   */
+  public boolean hasFeature(Feature feature) {
+    return features.get().contains(feature);
+  }
+  
+  /**
+   * Retrieves the names of the message codecs that the node has advertised.
+   * 
+   * @return an immutable set of codec names
+   */
+  public Set<String> getCodecs() {
+    return codecs.get();
+  }
+  
+  /**
+   * Sets the names of the message codecs that the node has advertised.
+   * 
+   * @param codecs the codec names
+   * @return this Node object
+   */
+  public Node setCodecs(Set<String> codecs) {
+    this.codecs.set(codecs.isEmpty()
+        ? Collections.emptySet()
+        : Collections.unmodifiableSet(new HashSet<>(codecs)));
+    return this;
+  }
+  
+  /**
+   * Determines whether or not the node has advertised a particular codec.
+   * 
+   * @param codec the name of the codec
+   * @return <code>true</code> if the node can read the codec
+   */
+  public boolean hasCodec(String codec) {
+    return codecs.get().contains(codec);
+  }
+  
+  /**
+   * Retrieves the ID of the compression dictionary that the node has
+   * advertised.
+   * 
+   * @return the dictionary ID, or <code>-1</code> if the node has none
+   */
+  public long getDictionaryID() {
+    return dictionaryID.get();
+  }
+  
+  /**
+   * Sets the ID of the compression dictionary that the node has advertised.
+   * 
+   * @param dictionaryID the dictionary ID, or <code>-1</code> for none
+   * @return this Node object
+   */
+  public Node setDictionaryID(long dictionaryID) {
+    this.dictionaryID.set(dictionaryID);
+    return this;
+  }
+  
 }
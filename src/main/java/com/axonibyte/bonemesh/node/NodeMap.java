@@ -16,26 +16,73 @@
 
 package com.axonibyte.bonemesh.node;
 
-import java.util.AbstractMap.SimpleEntry;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.ToIntFunction;
+import java.util.function.UnaryOperator;
 
 /**
  * A container for a list of all nodes.
  * Maintains the statuses of these nodes.
+ * Direct nodes are indexed by their labels, ignoring case, as they were
+ * when the nodes were added; at most one node is kept per label. Routes to
+ * indirect nodes are kept in an immutable {@link RouteTable} that is
+ * replaced as a whole whenever they change, so readers always see a
+ * consistent set of routes without taking any locks. The map remembers
+ * what each neighbor has advertised, so that neighbors can send only what
+ * changed, and what has been advertised to each neighbor, so that only
+ * what changed needs to be sent. Whether or not a direct node is alive is
+ * decided by a phi-accrual suspicion score, built from how long the node
+ * takes to answer heartbeats, rather than by any single failure. The cost
+ * of reaching a direct node is its smoothed round trip time, measured from
+ * the moment a payload is written to the moment its ack comes back.
+ * Flows of traffic to an indirect node are spread across every neighbor
+ * that reaches it about as cheaply as the best one, and away from neighbors
+ * whose outgoing queues are backing up. A flow only sticks to its neighbor
+ * while some of it is still on the way there, so that its messages arrive
+ * in order; after that, its next message may take another one.
  * 
  * @author Caleb L. Power
  */
 public class NodeMap {
   
-  private AtomicLong discoveryTimestamp = null; // system time at last discovery ping
-  private Map<Node, Long> nodes = null; // all known nodes and their last discovery response
-  private Map<String, Entry<Node, Long>> routes = null; // the best nodes with which to reach an indirect node
+  private static final double NEAR_EQUAL_COST = 1.25; // how much dearer than the best route a next hop may be
+  private static final long NEAR_EQUAL_SLACK = 5L; // milliseconds, which is as much noise as anything on a LAN
+  private static final int MAX_NEXT_HOPS = 4; // per target
+  private static final int MAX_FLOWS = 4096; // idle flows whose next hops are remembered
+  private static final int MAX_PENDING_UPDATES = 4; // updates that may await acknowledgement per neighbor
+  
+  private AtomicLong maxHeartbeatInterval = null;
+  private AtomicLong minHeartbeatInterval = null;
+  private AtomicLong updateVersion = null; // the version of the last update advertised to any neighbor
+  private AtomicReference<Double> deadThreshold = null;
+  private AtomicReference<Double> suspectThreshold = null;
+  private AtomicReference<RouteTable> routeTable = null; // the best nodes with which to reach an indirect node
+  private AtomicReference<ToIntFunction<Node>> queueDepths = null;
+  private Map<Node, FailureDetector> detectors = null; // how suspicious each direct node is
+  private Map<Node, Long> nodes = null; // all known nodes and the costs of reaching them
+  private Map<Node, RoundTripStatistics> roundTrips = null; // how long each direct node takes to ack
+  private Map<String, Advertisement> advertisements = null; // what each neighbor has been told, by normalized label
+  private Map<String, Flowlet> flows = null; // the next hop that each flow sticks to, and what's on the way
+  private Map<String, View> views = null; // what each neighbor has said, by normalized label
+  private Map<String, Node> labels = null; // the same nodes by normalized label
+  private String label = null;
   
   /**
    * Overloaded constructor.
@@ -43,20 +90,50 @@ public class NodeMap {
    * @param label the label of this BoneMesh instance 
    */
   public NodeMap(String label) {
-    this.discoveryTimestamp = new AtomicLong();
+    this.label = label;
+    this.minHeartbeatInterval = new AtomicLong(500L);
+    this.maxHeartbeatInterval = new AtomicLong(5000L);
+    this.suspectThreshold = new AtomicReference<>(1.0);
+    this.deadThreshold = new AtomicReference<>(8.0);
+    this.detectors = new ConcurrentHashMap<>();
+    this.roundTrips = new ConcurrentHashMap<>();
     this.nodes = new ConcurrentHashMap<>();
-    this.routes = new ConcurrentHashMap<>();
+    this.labels = new ConcurrentHashMap<>();
+    this.routeTable = new AtomicReference<>(new RouteTable());
+    this.queueDepths = new AtomicReference<>(node -> 0);
+    this.updateVersion = new AtomicLong();
+    this.advertisements = new HashMap<>();
+    this.views = new HashMap<>();
+    this.flows = new LinkedHashMap<String, Flowlet>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+      @Override protected boolean removeEldestEntry(Map.Entry<String, Flowlet> eldest) {
+        return size() > MAX_FLOWS && eldest.getValue().outstanding == 0;
+      }
+    };
   }
   
   /**
-   * Adds or replaces a node in the map.
+   * Adds or replaces a node in the map. A node that is already in the map
+   * under the same label is replaced.
    * 
    * @param node the node to be added
    * @param alive <code>true</code> iff the node is alive
    */
-  public void addOrReplaceNode(Node node, boolean alive) {
-    removeNode(node);
-    nodes.put(node, alive ? System.currentTimeMillis() - discoveryTimestamp.get() : Long.MAX_VALUE);
+  public synchronized void addOrReplaceNode(Node node, boolean alive) {
+    roundTrips.computeIfAbsent(node, k -> new RoundTripStatistics());
+    nodes.put(node, alive ? measureLatency(node) : Long.MAX_VALUE);
+    FailureDetector detector = detectors.computeIfAbsent(node, k -> new FailureDetector());
+    if(alive) detector.recordArrival(false);
+    Node replaced = labels.put(normalize(node.getLabel()), node);
+    if(replaced != null && replaced != node) {
+      nodes.remove(replaced);
+      detectors.remove(replaced);
+      roundTrips.remove(replaced);
+    }
+    if(replaced != node) {
+      advertisements.remove(normalize(node.getLabel())); // it starts over with the whole table
+      publish(routes -> routes.withDirectLabels(getDirectLabels()));
+    }
 /*
  *       if(routes.containsKey(knownNode)) {
         if(routes.get(knownNode).getValue() > knownNodes.get(knownNode))
@@ -74,21 +151,212 @@ public class NodeMap {
    * 
    * @param node the node to be removed
    */
-  public void removeNode(Node node) {
-    if(nodes.containsKey(node)) nodes.remove(node);
+  public synchronized void removeNode(Node node) {
+    if(labels.remove(normalize(node.getLabel()), node)) {
+      advertisements.remove(normalize(node.getLabel()));
+      View view = views.remove(normalize(node.getLabel()));
+      publish(routes -> routes.withDirectLabels(getDirectLabels()));
+      if(view != null) reroute(view.knownNodes.keySet());
+    }
+    nodes.remove(node);
+    detectors.remove(node);
+    roundTrips.remove(node);
   }
   
   /**
-   * Sets a node as alive or dead.
+   * Records that a node answered something, or that it failed to take
+   * something. Neither marks the node as alive or dead outright; that's up
+   * to its suspicion score the next time liveness is checked.
    * If the node doesn't exist in the map, it gets added.
    * 
    * @param node the node
-   * @param alive <code>true</code> if the node is alive
+   * @param alive <code>true</code> if the node answered
+   * @see #checkLiveness()
+   */
+  public synchronized void setNodeAlive(Node node, boolean alive) {
+    if(!nodes.containsKey(node)) {
+      addOrReplaceNode(node, alive);
+      return;
+    }
+    FailureDetector detector = detectors.get(node);
+    if(alive) detector.recordArrival(false);
+    else detector.recordFailure();
+  }
+  
+  /**
+   * Records a round trip to a direct node. The cost of reaching the node
+   * follows the smoothed round trip, unless the node is dead.
+   * 
+   * @param node the node
+   * @param nanos the length of the round trip in nanoseconds
+   */
+  public void recordRoundTrip(Node node, long nanos) {
+    RoundTripStatistics statistics = roundTrips.get(node);
+    if(statistics == null) return;
+    statistics.record(nanos);
+    nodes.computeIfPresent(node, (k, latency) -> latency == Long.MAX_VALUE ? latency : measureLatency(node));
+  }
+  
+  /**
+   * Retrieves the round trips measured to a direct node.
+   * 
+   * @param node the node
+   * @return the round trip statistics, or <code>null</code> if the node
+   *         isn't in the map
+   */
+  public RoundTripStatistics getRoundTripStatistics(Node node) {
+    return roundTrips.get(node);
+  }
+  
+  /**
+   * Records that a heartbeat was just sent to a node.
+   * 
+   * @param node the node
+   */
+  public void recordHeartbeat(Node node) {
+    FailureDetector detector = detectors.get(node);
+    if(detector != null)
+      detector.recordHeartbeat(minHeartbeatInterval.get(), maxHeartbeatInterval.get(), deadThreshold.get());
+  }
+  
+  /**
+   * Records that a node answered a heartbeat. Only these answers teach the
+   * map how long the node usually takes to answer.
+   * 
+   * @param node the node
+   */
+  public void recordHeartbeatAnswer(Node node) {
+    FailureDetector detector = detectors.get(node);
+    if(detector != null) detector.recordArrival(true);
+  }
+  
+  /**
+   * Determines whether or not a node is due for a heartbeat. Steady nodes
+   * are sent heartbeats less often, up to the maximum interval; suspected
+   * nodes are probed as often as the minimum interval allows.
+   * 
+   * @param node the node
+   * @return <code>true</code> if a heartbeat should be sent now
+   */
+  public boolean isHeartbeatDue(Node node) {
+    FailureDetector detector = detectors.get(node);
+    return detector != null && detector.isHeartbeatDue(
+        minHeartbeatInterval.get(), suspectThreshold.get(), deadThreshold.get());
+  }
+  
+  /**
+   * Retrieves the interval at which a node is currently sent heartbeats.
+   * 
+   * @param node the node
+   * @return the interval in milliseconds, or 0 if no heartbeat has been sent
+   */
+  public long getHeartbeatInterval(Node node) {
+    FailureDetector detector = detectors.get(node);
+    return detector == null ? 0L : detector.getInterval();
+  }
+  
+  /**
+   * Retrieves the suspicion score of a node. A score of phi means that
+   * there's a 10^-phi chance that the answer the node owes is merely late.
+   * 
+   * @param node the node
+   * @return the suspicion score, which is infinite for nodes that are
+   *         unknown or have never answered
+   */
+  public double getSuspicion(Node node) {
+    FailureDetector detector = detectors.get(node);
+    return detector == null ? Double.POSITIVE_INFINITY : detector.phi();
+  }
+  
+  /**
+   * Checks the suspicion score of every direct node against the threshold,
+   * and marks the nodes that crossed it one way or the other as dead or
+   * alive. Routes through those nodes are worked out again.
+   * 
+   * @return the nodes that died or came back, and whether or not each one
+   *         is now alive
    */
-  public void setNodeAlive(Node node, boolean alive) {
-    if(nodes.containsKey(node)) {
-      nodes.replace(node, alive ? System.currentTimeMillis() - discoveryTimestamp.get() : Long.MAX_VALUE);
-    } else addOrReplaceNode(node, alive);
+  public synchronized Map<Node, Boolean> checkLiveness() {
+    Map<Node, Boolean> changed = new HashMap<>();
+    Set<String> affected = new HashSet<>();
+    for(Node node : labels.values()) {
+      boolean alive = isAlive(node);
+      Long latency = nodes.get(node);
+      if(latency == null || alive == latency < Long.MAX_VALUE) continue;
+      nodes.replace(node, alive ? measureLatency(node) : Long.MAX_VALUE);
+      changed.put(node, alive);
+      View view = views.get(normalize(node.getLabel()));
+      if(view != null) {
+        view.latency = getLatency(node);
+        affected.addAll(view.knownNodes.keySet());
+      }
+    }
+    reroute(affected);
+    return changed;
+  }
+  
+  /**
+   * Sets the suspicion scores at which nodes are suspected and declared
+   * dead. Suspected nodes are probed as often as allowed.
+   * 
+   * @param suspect the score past which a node is suspected
+   * @param dead the score past which a node is dead
+   */
+  public void setSuspicionThresholds(double suspect, double dead) {
+    if(suspect <= 0.0 || dead < suspect)
+      throw new IllegalArgumentException("Thresholds must be positive, and a node must be suspected before it dies.");
+    suspectThreshold.set(suspect);
+    deadThreshold.set(dead);
+  }
+  
+  /**
+   * Retrieves the suspicion score past which a node is suspected.
+   * 
+   * @return the threshold
+   */
+  public double getSuspectThreshold() {
+    return suspectThreshold.get();
+  }
+  
+  /**
+   * Retrieves the suspicion score past which a node is dead.
+   * 
+   * @return the threshold
+   */
+  public double getDeadThreshold() {
+    return deadThreshold.get();
+  }
+  
+  /**
+   * Sets the bounds of the interval at which nodes are sent heartbeats.
+   * 
+   * @param min the interval for suspected nodes, in milliseconds
+   * @param max the interval for steady and dead nodes, in milliseconds
+   */
+  public void setHeartbeatIntervals(long min, long max) {
+    if(min < 1L || max < min)
+      throw new IllegalArgumentException("Intervals must be positive, and the minimum can't exceed the maximum.");
+    minHeartbeatInterval.set(min);
+    maxHeartbeatInterval.set(max);
+  }
+  
+  /**
+   * Retrieves the interval at which suspected nodes are sent heartbeats.
+   * 
+   * @return the interval in milliseconds
+   */
+  public long getMinHeartbeatInterval() {
+    return minHeartbeatInterval.get();
+  }
+  
+  /**
+   * Retrieves the interval at which steady nodes are eventually sent
+   * heartbeats.
+   * 
+   * @return the interval in milliseconds
+   */
+  public long getMaxHeartbeatInterval() {
+    return maxHeartbeatInterval.get();
   }
   
   /**
@@ -97,46 +365,206 @@ public class NodeMap {
    * @return a map of node labels and their latencies
    */
   public Map<String, Long> getKnownNodes() {
+    return getKnownNodes(null);
+  }
+  
+  /**
+   * Retrieves the known nodes and their relative latencies that are worth
+   * advertising to a particular neighbor. Routes that go through the
+   * neighbor are left out, so that it can't learn them back and form a loop.
+   * 
+   * @param neighbor the label of the neighbor, or <code>null</code> to
+   *        leave nothing out
+   * @return a map of node labels and their latencies
+   */
+  public Map<String, Long> getKnownNodes(String neighbor) {
+    return getKnownNodes(neighbor, null);
+  }
+  
+  /**
+   * Retrieves the known nodes and their relative latencies that are worth
+   * advertising to a particular neighbor, along with the next hop that each
+   * of them is reached through.
+   * 
+   * @param neighbor the label of the neighbor, or <code>null</code> to
+   *        leave nothing out
+   * @param nextHops the map to put the label of each node's next hop in,
+   *        or <code>null</code> if they aren't needed
+   * @return a map of node labels and their latencies
+   */
+  public Map<String, Long> getKnownNodes(String neighbor, Map<String, String> nextHops) {
     Map<String, Long> knownNodes = new HashMap<>();
-    for(String route : routes.keySet())
-      knownNodes.put(route, routes.get(route).getValue());
-    for(Node node : nodes.keySet()) if(knownNodes.containsKey(node.getLabel())
-        && knownNodes.get(node.getLabel()) >= nodes.get(node))
-      knownNodes.replace(node.getLabel(), nodes.get(node));
-    else if(!knownNodes.containsKey(node.getLabel()))
-      knownNodes.put(node.getLabel(), nodes.get(node));
+    for(Entry<String, Entry<Node, Long>> route : routeTable.get().getRoutes().entrySet())
+      if(neighbor == null || !route.getValue().getKey().getLabel().equalsIgnoreCase(neighbor)) {
+        knownNodes.put(route.getKey(), route.getValue().getValue());
+        if(nextHops != null) nextHops.put(route.getKey(), route.getValue().getKey().getLabel());
+      }
+    for(Node node : nodes.keySet()) {
+      Long latency = nodes.get(node);
+      if(latency == null) continue; // removed in the meantime
+      Long known = knownNodes.get(node.getLabel());
+      if(known == null || known >= latency) {
+        knownNodes.put(node.getLabel(), latency);
+        if(nextHops != null) nextHops.put(node.getLabel(), node.getLabel());
+      }
+    }
     return knownNodes;
   }
   
   /**
-   * Sets the neighbors of a node.
+   * Sets the neighbors of a node. The whole update is published as a single
+   * new version of the route table.
    * 
    * @param label the name of the node
-   * @param knownNodes the targets that the node knows about
+   * @param knownNodes the targets that the node knows about, or
+   *        <code>null</code> to drop every route through the node
    */
   public void setNodeNeighbors(String label, Map<String, Long> knownNodes) {
+    setNodeNeighbors(label, -1L, knownNodes);
+  }
+  
+  /**
+   * Sets the neighbors of a node, as of a particular version of what the
+   * node advertises. Only the routes to the targets that changed are
+   * worked out again. An advertisement without a version that changes
+   * nothing, like a multicast announcement of what the node has already
+   * sent over TCP, leaves the version alone, so that the node's next delta
+   * still applies.
+   * 
+   * @param label the name of the node
+   * @param version the version of the advertisement, or <code>-1</code>
+   *        if it doesn't have one
+   * @param knownNodes the targets that the node knows about, or
+   *        <code>null</code> to drop every route through the node
+   */
+  public synchronized void setNodeNeighbors(String label, long version, Map<String, Long> knownNodes) {
     Node node = getNodeByLabel(label);
     if(node == null) {
       return;
     }
     
-    if(knownNodes == null) {
-      Set<String> deadRoutes = new HashSet<>();
-      for(String route : routes.keySet()) // for all routes
-        if(routes.get(route).getKey().getLabel().equalsIgnoreCase(label)) // check if we're using this node for routing
-          deadRoutes.add(route);
-      for(String route : deadRoutes) routes.remove(route); // if so, remove it
-    } else {
-      for(String knownNode : knownNodes.keySet()) { // for each known nodes
-        if(routes.containsKey(knownNode) // if we know about the route
-            && (routes.get(knownNode).getKey().getLabel().equalsIgnoreCase(label) // if the last best route was through this node
-              || routes.get(knownNode).getValue() > knownNodes.get(knownNode) + nodes.get(node))) // or it's a better value
-            routes.replace(knownNode, new SimpleEntry<>(node, // replace the route
-                knownNodes.get(knownNode) + nodes.get(node)));
-        else if(!routes.containsKey(knownNode)) // if we didn't know about the route
-          routes.put(knownNode, new SimpleEntry<>(node, knownNodes.get(knownNode))); // save it
-      }
+    View view = views.get(normalize(label));
+    if(version == -1L && view != null && knownNodes != null
+        && view.latency == getLatency(node) && view.knownNodes.equals(knownNodes))
+      return; // nothing new
+    
+    Set<String> affected = new HashSet<>();
+    views.remove(normalize(label));
+    if(view != null) affected.addAll(view.knownNodes.keySet());
+    if(knownNodes != null) {
+      View updated = new View(version, new HashMap<>(knownNodes), getLatency(node));
+      views.put(normalize(label), updated);
+      if(view != null && view.latency == updated.latency) // only the targets that changed
+        for(Entry<String, Long> knownNode : knownNodes.entrySet()) {
+          if(knownNode.getValue().equals(view.knownNodes.get(knownNode.getKey())))
+            affected.remove(knownNode.getKey());
+          else affected.add(knownNode.getKey());
+        }
+      else affected.addAll(knownNodes.keySet());
+    }
+    reroute(affected);
+  }
+  
+  /**
+   * Applies a delta to what a node has advertised. The delta only holds the
+   * targets that changed since an earlier version, and can only be applied
+   * if that's the version that this map last took from the node. A delta
+   * that was already applied, like one that the node sent again because the
+   * acknowledgement didn't reach it, is taken as it is.
+   * 
+   * @param label the name of the node
+   * @param update the delta
+   * @return <code>true</code> if the delta was applied, or
+   *         <code>false</code> if the node has to send its whole table
+   */
+  public synchronized boolean updateNodeNeighbors(String label, RouteUpdate update) {
+    Node node = getNodeByLabel(label);
+    if(node == null) return false;
+    View view = views.get(normalize(label));
+    if(view != null && view.version == update.getVersion()) return true; // we already have it
+    if(view == null || view.version != update.getBase()) return false; // we've lost track
+    
+    Set<String> affected = new HashSet<>();
+    long latency = getLatency(node);
+    if(view.latency != latency) { // every route through it costs something else now
+      affected.addAll(view.knownNodes.keySet());
+      view.latency = latency;
     }
+    for(String removed : update.getRemoved())
+      if(view.knownNodes.remove(removed) != null) affected.add(removed);
+    for(Entry<String, Long> knownNode : update.getNodes().entrySet())
+      if(!knownNode.getValue().equals(view.knownNodes.put(knownNode.getKey(), knownNode.getValue())))
+        affected.add(knownNode.getKey());
+    view.version = update.getVersion();
+    reroute(affected);
+    return true;
+  }
+  
+  /**
+   * Works out what to advertise to a neighbor. If the neighbor can take a
+   * delta and has acknowledged an earlier version, only what changed since
+   * that version is included; otherwise the whole table is. The version only
+   * moves on once there's something new to advertise.
+   * 
+   * @param neighbor the label of the neighbor
+   * @param delta <code>true</code> if the neighbor can take a delta
+   * @return the update
+   */
+  public synchronized RouteUpdate getRouteUpdate(String neighbor, boolean delta) {
+    Map<String, Long> knownNodes = getKnownNodes(neighbor);
+    Advertisement advertisement = advertisements.computeIfAbsent(normalize(neighbor), k -> new Advertisement());
+    if(!knownNodes.equals(advertisement.latest)) { // only something new gets a new version
+      advertisement.latest = knownNodes;
+      advertisement.latestVersion = updateVersion.incrementAndGet();
+    }
+    long version = advertisement.latestVersion;
+    if(version != advertisement.version) advertisement.pending.put(version, knownNodes);
+    if(!delta || advertisement.acknowledged == null)
+      return new RouteUpdate(version, -1L, knownNodes, new HashSet<>());
+    
+    Map<String, Long> changed = new HashMap<>();
+    for(Entry<String, Long> knownNode : knownNodes.entrySet())
+      if(!knownNode.getValue().equals(advertisement.acknowledged.get(knownNode.getKey())))
+        changed.put(knownNode.getKey(), knownNode.getValue());
+    Set<String> removed = new HashSet<>(advertisement.acknowledged.keySet());
+    removed.removeAll(knownNodes.keySet());
+    return new RouteUpdate(version, advertisement.version, changed, removed);
+  }
+  
+  /**
+   * Records that a neighbor has taken a particular update, so that later
+   * deltas can be based on it.
+   * 
+   * @param neighbor the label of the neighbor
+   * @param version the version of the update
+   */
+  public synchronized void acknowledgeRouteUpdate(String neighbor, long version) {
+    Advertisement advertisement = advertisements.get(normalize(neighbor));
+    if(advertisement == null) return;
+    Map<String, Long> knownNodes = advertisement.pending.get(version);
+    if(knownNodes == null) return; // too old, or forgotten since
+    advertisement.acknowledged = knownNodes;
+    advertisement.version = version;
+    advertisement.pending.keySet().removeIf(pending -> pending <= version);
+  }
+  
+  /**
+   * Forgets what a neighbor has acknowledged, so that it is sent the whole
+   * table next time.
+   * 
+   * @param neighbor the label of the neighbor
+   */
+  public synchronized void resetRouteUpdates(String neighbor) {
+    advertisements.remove(normalize(neighbor));
+  }
+  
+  /**
+   * Retrieves the current snapshot of the route table.
+   * 
+   * @return the route table
+   */
+  public RouteTable getRouteTable() {
+    return routeTable.get();
   }
   
   /**
@@ -146,10 +574,7 @@ public class NodeMap {
    * @return the matching node or <code>null</code> if it is isn't in the map
    */
   public Node getNodeByLabel(String label) {
-    for(Node node : nodes.keySet())
-      if(node.getLabel().equalsIgnoreCase(label))
-        return node;
-    return null;
+    return label == null ? null : labels.get(normalize(label));
   }
   
   /**
@@ -164,16 +589,10 @@ public class NodeMap {
   /**
    * Retrieves the labels of all directly- and indirectly-known nodes.
    * 
-   * @return a set of all known node labels
+   * @return an immutable set of all known node labels
    */
   public Set<String> getAllKnownNodeLabels() {
-    Set<String> nodes = new HashSet<>();
-    synchronized(routes) {
-      for(String node : routes.keySet())
-        nodes.add(node);
-    }
-    
-    return nodes;
+    return routeTable.get().getLabels();
   }
   
   /**
@@ -201,33 +620,279 @@ public class NodeMap {
   }
   
   /**
-   * Determines if a particular node is both known and alive.
+   * Determines if a particular node is both known and alive, going by its
+   * suspicion score right now.
    * 
    * @param node the node to check
-   * @return <code>true</code> if the node is in the map and is alive
+   * @return <code>true</code> if the node is in the map and its score is
+   *         below the dead threshold
    */
   public boolean isAlive(Node node) {
-    return nodes.containsKey(node) && nodes.get(node) > -1L;
+    FailureDetector detector = detectors.get(node);
+    return detector != null && detector.phi() < deadThreshold.get();
   }
   
   /**
-   * Bumps the discovery timestamp.
+   * Retrieve a neighboring node that will eventually connect to
+   * the specified target node. If several neighbors are about as close to
+   * the target, one is picked at random, weighted towards those that are
+   * cheaper to reach and have less queued up.
+   * 
+   * @param label the label of the target node
+   * @return a good Node if it exists, or <code>null</code> if it doesn't
    */
-  public void bumpDiscoveryTime() {
-    discoveryTimestamp.set(System.currentTimeMillis());
+  public Node getNextBestNode(String label) {
+    return getNextBestNode(label, null);
   }
   
   /**
    * Retrieve a neighboring node that will eventually connect to
-   * the specified target node.
+   * the specified target node. If several neighbors are about as close to
+   * the target, one is picked by hashing the flow, weighted the same way as
+   * a random pick. While any of the flow's messages that were recorded as
+   * queued are still on the way, the flow keeps going through the same
+   * neighbor, unless that neighbor is no longer about as close to the
+   * target as the best one. Once they're through, the flow is picked for
+   * again, so that it moves off of a neighbor whose queue is backing up.
    * 
    * @param label the label of the target node
+   * @param flow whatever identifies the flow, or <code>null</code> to pick
+   *        at random
    * @return a good Node if it exists, or <code>null</code> if it doesn't
    */
-  public Node getNextBestNode(String label) {
-    Node node = null;
-    if(routes.containsKey(label)) node = routes.get(label).getKey();
-    return node;
+  public Node getNextBestNode(String label, String flow) {
+    List<Entry<Node, Long>> hops = routeTable.get().getNextHops(label);
+    if(hops.isEmpty()) return null;
+    if(flow == null) return pick(hops, null);
+    
+    synchronized(flows) {
+      Node pinned = getPinnedHop(hops, flows.get(flow));
+      if(pinned != null) return pinned; // the rest of the flow is still on the way
+    }
+    Node choice = pick(hops, flow);
+    synchronized(flows) {
+      Flowlet flowlet = flows.computeIfAbsent(flow, k -> new Flowlet());
+      Node pinned = getPinnedHop(hops, flowlet);
+      if(pinned != null) return pinned; // another message of the flow beat us to it
+      if(!choice.getLabel().equalsIgnoreCase(flowlet.hop)) {
+        flowlet.hop = choice.getLabel();
+        flowlet.outstanding = 0; // whatever went the old way can't be overtaken anymore
+      }
+    }
+    return choice;
+  }
+  
+  /**
+   * Records that a message of a flow was queued for a next hop, so that the
+   * flow sticks to that hop until the message is through.
+   * 
+   * @param flow the flow
+   * @param hop the label of the next hop
+   */
+  public void recordFlowQueued(String flow, String hop) {
+    synchronized(flows) {
+      Flowlet flowlet = flows.get(flow);
+      if(flowlet != null && hop.equalsIgnoreCase(flowlet.hop)) flowlet.outstanding++;
+    }
+  }
+  
+  /**
+   * Records that a message of a flow that was queued for a next hop has
+   * been acknowledged, or has been given up on.
+   * 
+   * @param flow the flow
+   * @param hop the label of the next hop
+   */
+  public void recordFlowSettled(String flow, String hop) {
+    synchronized(flows) {
+      Flowlet flowlet = flows.get(flow);
+      if(flowlet != null && hop.equalsIgnoreCase(flowlet.hop) && flowlet.outstanding > 0)
+        flowlet.outstanding--;
+    }
+  }
+  
+  /**
+   * Works out what identifies the flow of messages from one node to
+   * another, so that all of them take the same route.
+   * 
+   * @param from the label of the node that the messages come from
+   * @param to the label of the node that the messages go to
+   * @return the flow
+   */
+  public static String getFlow(String from, String to) {
+    return normalize(from) + "->" + normalize(to);
+  }
+  
+  // the next hop that a flow has to stick to, if it has one
+  private static Node getPinnedHop(List<Entry<Node, Long>> hops, Flowlet flowlet) {
+    return flowlet == null || flowlet.outstanding == 0 ? null : find(hops, flowlet.hop);
+  }
+  
+  // a neighbor from a set of next hops, by label
+  private static Node find(List<Entry<Node, Long>> hops, String label) {
+    if(label != null)
+      for(Entry<Node, Long> hop : hops)
+        if(hop.getKey().getLabel().equalsIgnoreCase(label)) return hop.getKey();
+    return null;
+  }
+  
+  // one of several next hops, weighted towards the cheap and the idle
+  private Node pick(List<Entry<Node, Long>> hops, String flow) {
+    if(hops.size() == 1) return hops.get(0).getKey();
+    ToIntFunction<Node> queueDepths = this.queueDepths.get();
+    Node choice = null;
+    double bestScore = Double.NEGATIVE_INFINITY;
+    for(Entry<Node, Long> hop : hops) { // weighted rendezvous hashing
+      double weight = 1.0 / (hop.getValue() * (1.0 + queueDepths.applyAsInt(hop.getKey())));
+      double draw = flow == null
+          ? 1.0 - ThreadLocalRandom.current().nextDouble() // never 0
+          : hash(flow, hop.getKey().getLabel());
+      double score = weight / -Math.log(draw);
+      if(score > bestScore) {
+        bestScore = score;
+        choice = hop.getKey();
+      }
+    }
+    return choice;
+  }
+  
+  /**
+   * Sets where this map finds out how many payloads are waiting to be sent
+   * to each direct node. Traffic is steered away from next hops with deep
+   * queues.
+   * 
+   * @param queueDepths a function that returns the queue depth of a node
+   */
+  public void setQueueDepths(ToIntFunction<Node> queueDepths) {
+    this.queueDepths.set(queueDepths);
+  }
+  
+  // the cheapest ways to each target, out of everything the neighbors have advertised
+  private void reroute(Collection<String> targets) {
+    if(targets.isEmpty()) return;
+    RouteTable current = routeTable.get();
+    Map<String, List<Entry<Node, Long>>> changes = new HashMap<>();
+    for(String target : targets) {
+      if(target.equalsIgnoreCase(label)) continue; // we know where we are
+      Entry<Node, Long> route = current.getRoutes().get(target);
+      Node hop = route == null ? null : labels.get(normalize(route.getKey().getLabel()));
+      Entry<Node, Long> best = hop == null ? null : getRoute(hop, target); // the current hop wins ties
+      List<Entry<Node, Long>> others = new ArrayList<>();
+      for(String neighbor : views.keySet()) {
+        Node node = labels.get(neighbor);
+        if(node == null || node == hop) continue;
+        route = getRoute(node, target);
+        if(route == null) continue;
+        if(best == null || route.getValue() < best.getValue()) {
+          if(best != null) others.add(best);
+          best = route;
+        } else others.add(route);
+      }
+      changes.put(target, best == null ? null : getNextHops(target, best, others));
+    }
+    publish(routes -> routes.apply(changes, getDirectLabels()));
+  }
+  
+  // the best route, and the others that are nearly as cheap and can't lead back here
+  private List<Entry<Node, Long>> getNextHops(String target, Entry<Node, Long> best, List<Entry<Node, Long>> others) {
+    List<Entry<Node, Long>> hops = new ArrayList<>();
+    hops.add(best);
+    if(best.getValue() < Long.MAX_VALUE) {
+      long limit = Math.max(best.getValue() + NEAR_EQUAL_SLACK, (long)(best.getValue() * NEAR_EQUAL_COST));
+      others.sort(Comparator.<Entry<Node, Long>>comparingLong(Entry::getValue)
+          .thenComparing(route -> normalize(route.getKey().getLabel())));
+      for(Entry<Node, Long> route : others) {
+        if(hops.size() == MAX_NEXT_HOPS || route.getValue() > limit) break;
+        if(views.get(normalize(route.getKey().getLabel())).knownNodes.get(target) < best.getValue())
+          hops.add(route); // it's closer to the target than we are, so it won't send anything back
+      }
+    }
+    return Collections.unmodifiableList(hops);
+  }
+  
+  private Entry<Node, Long> getRoute(Node node, String target) {
+    View view = views.get(normalize(node.getLabel()));
+    Long latency = view == null ? null : view.knownNodes.get(target);
+    if(latency == null) return null;
+    return new SimpleImmutableEntry<>(node, latency == Long.MAX_VALUE || view.latency == Long.MAX_VALUE
+        ? Long.MAX_VALUE : latency + view.latency);
+  }
+  
+  // the smoothed round trip in whole milliseconds, and never free
+  private long measureLatency(Node node) {
+    RoundTripStatistics statistics = roundTrips.get(node);
+    long smoothed = statistics == null ? 0L : statistics.getSmoothed();
+    return Math.max(1L, Math.round(smoothed / 1000000.0));
+  }
+  
+  private long getLatency(Node node) {
+    Long latency = nodes.get(node);
+    return latency == null ? Long.MAX_VALUE : latency;
+  }
+  
+  // readers see either the old table or the new one, never a mix of the two
+  private void publish(UnaryOperator<RouteTable> transition) {
+    RouteTable current = null;
+    RouteTable next = null;
+    do {
+      current = routeTable.get();
+      next = transition.apply(current);
+    } while(next != current && !routeTable.compareAndSet(current, next));
+  }
+  
+  private List<String> getDirectLabels() {
+    List<String> directLabels = new ArrayList<>();
+    for(Node node : labels.values())
+      directLabels.add(node.getLabel());
+    return directLabels;
+  }
+  
+  private static String normalize(String label) {
+    return label.toLowerCase(Locale.ROOT);
+  }
+  
+  // a well-mixed draw in (0, 1) for a flow and a next hop
+  private static double hash(String flow, String hop) {
+    long h = ((long)flow.hashCode() << 32) ^ (normalize(hop).hashCode() & 0xFFFFFFFFL);
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    h *= 0xC4CEB9FE1A85EC53L;
+    h ^= h >>> 33;
+    return ((h >>> 11) + 0.5) / (1L << 53);
+  }
+    
+  // the next hop that a flow last took, and how many of its messages are on the way there
+  private static class Flowlet {
+    private int outstanding = 0;
+    private String hop = null;
+  }
+  
+  // what a neighbor has acknowledged, and what it's been sent since
+  private static class Advertisement {
+    private long latestVersion = -1L;
+    private long version = -1L;
+    private Map<String, Long> acknowledged = null;
+    private Map<String, Long> latest = null;
+    private Map<Long, Map<String, Long>> pending = new LinkedHashMap<Long, Map<String, Long>>() {
+      private static final long serialVersionUID = 1L;
+      @Override protected boolean removeEldestEntry(Map.Entry<Long, Map<String, Long>> eldest) {
+        return size() > MAX_PENDING_UPDATES;
+      }
+    };
+  }
+  
+  // what a neighbor has advertised, and what it cost to reach the neighbor at the time
+  private static class View {
+    private long version;
+    private long latency;
+    private Map<String, Long> knownNodes = null;
+    
+    private View(long version, Map<String, Long> knownNodes, long latency) {
+      this.version = version;
+      this.knownNodes = knownNodes;
+      this.latency = latency;
+    }
   }
   
 }
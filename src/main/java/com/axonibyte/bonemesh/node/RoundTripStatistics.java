@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2020 Axonibyte Innovations, LLC. All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.axonibyte.bonemesh.node;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Round trips to a single node, from the moment a payload is written to
+ * the moment its ack comes back. They're kept both as a smoothed average,
+ * the way TCP smooths its round trip times, and in a histogram for
+ * percentiles. The histogram has eight buckets for every power of two
+ * microseconds, so any percentile is within an eighth of the true value.
+ *
+ * @author Caleb L. Power
+ */
+public class RoundTripStatistics {
+
+  private static final int LINEAR_BUCKETS = 16; // one per microsecond, below the first power of two that's split
+  private static final int SUB_BUCKETS = 8; // per power of two
+  private static final int BUCKETS = LINEAR_BUCKETS + (Long.SIZE - 4) * SUB_BUCKETS;
+
+  private AtomicLong count = new AtomicLong();
+  private AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  private long latest = 0L;
+  private long smoothed = 0L;
+  private long variation = 0L;
+
+  /**
+   * Records a round trip.
+   *
+   * @param nanos the length of the round trip in nanoseconds
+   */
+  public void record(long nanos) {
+    if(nanos < 0L) return;
+    buckets.incrementAndGet(toBucket(nanos / 1000L));
+    synchronized(this) {
+      if(count.getAndIncrement() == 0L) {
+        smoothed = nanos;
+        variation = nanos / 2L;
+      } else { // RFC 6298, with the same gains
+        variation += (Math.abs(smoothed - nanos) - variation) / 4L;
+        smoothed += (nanos - smoothed) / 8L;
+      }
+      latest = nanos;
+    }
+  }
+
+  /**
+   * Retrieves the number of round trips recorded.
+   *
+   * @return the round trip count
+   */
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * Retrieves the most recent round trip.
+   *
+   * @return the round trip in nanoseconds, or 0 if none have been recorded
+   */
+  public synchronized long getLatest() {
+    return latest;
+  }
+
+  /**
+   * Retrieves the exponentially-weighted moving average of the round trips.
+   *
+   * @return the smoothed round trip in nanoseconds, or 0 if none have been
+   *         recorded
+   */
+  public synchronized long getSmoothed() {
+    return smoothed;
+  }
+
+  /**
+   * Retrieves the exponentially-weighted moving average of how far round
+   * trips stray from the smoothed round trip.
+   *
+   * @return the variation in nanoseconds, or 0 if no round trips have been
+   *         recorded
+   */
+  public synchronized long getVariation() {
+    return variation;
+  }
+
+  /**
+   * Retrieves the round trip that a given share of the recorded round trips
+   * didn't exceed.
+   *
+   * @param percentile the share, between 0 and 100
+   * @return the upper bound of the matching histogram bucket in
+   *         nanoseconds, or 0 if no round trips have been recorded
+   */
+  public long getPercentile(double percentile) {
+    if(percentile < 0.0 || percentile > 100.0)
+      throw new IllegalArgumentException("Percentile must be between 0 and 100.");
+    long[] counts = new long[BUCKETS];
+    long total = 0L;
+    for(int i = 0; i < BUCKETS; i++)
+      total += counts[i] = buckets.get(i);
+    if(total == 0L) return 0L;
+    long rank = Math.max(1L, (long)Math.ceil(percentile / 100.0 * total));
+    for(int i = 0; i < BUCKETS; i++)
+      if((rank -= counts[i]) <= 0L) return toUpperBound(i) * 1000L;
+    return toUpperBound(BUCKETS - 1) * 1000L;
+  }
+
+  /**
+   * Forgets every recorded round trip.
+   */
+  public void reset() {
+    for(int i = 0; i < BUCKETS; i++)
+      buckets.set(i, 0L);
+    synchronized(this) {
+      count.set(0L);
+      latest = 0L;
+      smoothed = 0L;
+      variation = 0L;
+    }
+  }
+
+  private static int toBucket(long micros) {
+    if(micros < LINEAR_BUCKETS) return (int)micros;
+    int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(micros); // at least 4
+    int sub = (int)(micros >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+    return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + sub;
+  }
+
+  private static long toUpperBound(int bucket) { // in microseconds, exclusive
+    if(bucket < LINEAR_BUCKETS) return bucket + 1L;
+    int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+    int sub = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+    return (SUB_BUCKETS + sub + 1L) << (exponent - 3);
+  }
+
+}
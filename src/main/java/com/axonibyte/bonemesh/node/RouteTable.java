@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2020 Axonibyte Innovations, LLC. All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.axonibyte.bonemesh.node;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * An immutable snapshot of the routes to indirect nodes, as of a particular
+ * version of the route table. A snapshot never changes once it has been
+ * published; every change to the routes produces a new snapshot with the
+ * next version number. Each node may be reached through a small set of
+ * neighbors that are about as close as each other, the closest first.
+ *
+ * @author Caleb L. Power
+ */
+public final class RouteTable {
+
+  private final long version;
+  private final Map<String, List<Entry<Node, Long>>> paths;
+  private final Map<String, Entry<Node, Long>> routes;
+  private final Set<String> labels;
+
+  RouteTable() {
+    this(0L, Collections.emptyMap(), Collections.emptySet());
+  }
+
+  private RouteTable(long version, Map<String, List<Entry<Node, Long>>> paths, Collection<String> directLabels) {
+    Map<String, Entry<Node, Long>> routes = new HashMap<>();
+    for(Entry<String, List<Entry<Node, Long>>> path : paths.entrySet())
+      routes.put(path.getKey(), path.getValue().get(0));
+    Set<String> labels = new HashSet<>(directLabels);
+    labels.addAll(paths.keySet());
+    this.version = version;
+    this.paths = Collections.unmodifiableMap(paths);
+    this.routes = Collections.unmodifiableMap(routes);
+    this.labels = Collections.unmodifiableSet(labels);
+  }
+
+  /**
+   * Retrieves the version of this snapshot. Later snapshots have higher
+   * version numbers.
+   *
+   * @return the version number
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * Retrieves the best route to each node in this snapshot.
+   *
+   * @return an immutable map of node labels to the neighbors through which
+   *         they're best reached and the cost of doing so
+   */
+  public Map<String, Entry<Node, Long>> getRoutes() {
+    return routes;
+  }
+
+  /**
+   * Retrieves the neighbor through which a node is best reached.
+   *
+   * @param label the label of the node
+   * @return the neighbor, or <code>null</code> if there is no route
+   */
+  public Node getNextHop(String label) {
+    Entry<Node, Long> route = routes.get(label);
+    return route == null ? null : route.getKey();
+  }
+
+  /**
+   * Retrieves every neighbor through which a node is reached about as
+   * cheaply as through the best one.
+   *
+   * @param label the label of the node
+   * @return an immutable list of the neighbors and the cost of reaching the
+   *         node through each, the best first, or an empty list if there is
+   *         no route
+   */
+  public List<Entry<Node, Long>> getNextHops(String label) {
+    List<Entry<Node, Long>> path = paths.get(label);
+    return path == null ? Collections.emptyList() : path;
+  }
+
+  /**
+   * Retrieves the labels of every node that can be reached, either directly
+   * or through a route, as of this snapshot.
+   *
+   * @return an immutable set of node labels
+   */
+  public Set<String> getLabels() {
+    return labels;
+  }
+
+  /*
+   * Replaces the next hops to some nodes, the best first, dropping those
+   * whose new list is null. Returns this snapshot if nothing changed.
+   */
+  RouteTable apply(Map<String, List<Entry<Node, Long>>> changes, Collection<String> directLabels) {
+    Map<String, List<Entry<Node, Long>>> paths = new HashMap<>(this.paths);
+    boolean changed = false;
+    for(Entry<String, List<Entry<Node, Long>>> change : changes.entrySet())
+      changed |= change.getValue() == null
+          ? paths.remove(change.getKey()) != null
+          : !change.getValue().equals(paths.put(change.getKey(), change.getValue()));
+    return changed ? new RouteTable(version + 1L, paths, directLabels) : this;
+  }
+
+  /*
+   * Takes note of a change to the set of direct nodes.
+   */
+  RouteTable withDirectLabels(Collection<String> directLabels) {
+    return new RouteTable(version + 1L, new HashMap<>(paths), directLabels);
+  }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2020 Axonibyte Innovations, LLC. All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.axonibyte.bonemesh.node;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The nodes that one node advertises to a neighbor in a single discovery
+ * message. An update is either the whole table, or a delta that only holds
+ * what changed since an earlier version that the neighbor acknowledged.
+ *
+ * @author Caleb L. Power
+ */
+public final class RouteUpdate {
+
+  private final long base;
+  private final long version;
+  private final Map<String, Long> nodes;
+  private final Set<String> removed;
+
+  /**
+   * Overloaded constructor.
+   *
+   * @param version the version of the advertised table
+   * @param base the version that a delta applies on top of, or
+   *        <code>-1</code> for the whole table
+   * @param nodes the advertised nodes and their latencies
+   * @param removed the nodes that are no longer advertised
+   */
+  public RouteUpdate(long version, long base, Map<String, Long> nodes, Set<String> removed) {
+    this.version = version;
+    this.base = base;
+    this.nodes = Collections.unmodifiableMap(nodes);
+    this.removed = Collections.unmodifiableSet(removed);
+  }
+
+  /**
+   * Retrieves the version of the advertised table.
+   *
+   * @return the version number
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * Retrieves the version that this delta applies on top of.
+   *
+   * @return the base version, or <code>-1</code> if this is the whole table
+   */
+  public long getBase() {
+    return base;
+  }
+
+  /**
+   * Determines whether or not this update only holds changes.
+   *
+   * @return <code>true</code> if this is a delta
+   */
+  public boolean isDelta() {
+    return base >= 0L;
+  }
+
+  /**
+   * Retrieves the advertised nodes and their latencies. For a delta, these
+   * are only the nodes that are new or whose latencies changed.
+   *
+   * @return an immutable map of node labels and their latencies
+   */
+  public Map<String, Long> getNodes() {
+    return nodes;
+  }
+
+  /**
+   * Retrieves the nodes that are no longer advertised.
+   *
+   * @return an immutable set of node labels, always empty for a whole table
+   */
+  public Set<String> getRemoved() {
+    return removed;
+  }
+
+}
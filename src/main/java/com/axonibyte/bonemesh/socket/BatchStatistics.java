@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2020 Axonibyte Innovations, LLC. All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.axonibyte.bonemesh.socket;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running counters that describe how full outgoing batches get.
+ *
+ * @author Caleb L. Power
+ */
+public class BatchStatistics {
+
+  private AtomicLong batches = new AtomicLong();
+  private AtomicLong bytes = new AtomicLong();
+  private AtomicLong fullBatches = new AtomicLong();
+  private AtomicLong payloads = new AtomicLong();
+
+  /**
+   * Records a batch that was just sent.
+   *
+   * @param payloadCount the number of payloads in the batch
+   * @param byteCount the size of the batch body in bytes
+   * @param full <code>true</code> if the batch was flushed because it hit a
+   *        size limit, or <code>false</code> if its deadline ran out first
+   */
+  public void record(int payloadCount, int byteCount, boolean full) {
+    batches.incrementAndGet();
+    payloads.addAndGet(payloadCount);
+    bytes.addAndGet(byteCount);
+    if(full) fullBatches.incrementAndGet();
+  }
+
+  /**
+   * Retrieves the number of batches sent.
+   *
+   * @return the batch count
+   */
+  public long getBatchCount() {
+    return batches.get();
+  }
+
+  /**
+   * Retrieves the number of batches that were flushed because they hit a
+   * size limit rather than their deadline.
+   *
+   * @return the full batch count
+   */
+  public long getFullBatchCount() {
+    return fullBatches.get();
+  }
+
+  /**
+   * Retrieves the number of payloads sent in batches.
+   *
+   * @return the payload count
+   */
+  public long getPayloadCount() {
+    return payloads.get();
+  }
+
+  /**
+   * Retrieves the number of bytes sent in batches.
+   *
+   * @return the byte count
+   */
+  public long getByteCount() {
+    return bytes.get();
+  }
+
+  /**
+   * Retrieves the average number of payloads per batch.
+   *
+   * @return the average batch size, or 0 if no batches have been sent
+   */
+  public double getAverageBatchSize() {
+    long batchCount = batches.get();
+    return batchCount == 0L ? 0D : (double)payloads.get() / batchCount;
+  }
+
+  /**
+   * Resets every counter to zero.
+   */
+  public void reset() {
+    batches.set(0L);
+    bytes.set(0L);
+    fullBatches.set(0L);
+    payloads.set(0L);
+  }
+
+}
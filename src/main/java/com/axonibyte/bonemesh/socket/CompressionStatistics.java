@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2020 Axonibyte Innovations, LLC. All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.axonibyte.bonemesh.socket;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running counters that describe how well frame compression is paying off.
+ *
+ * @author Caleb L. Power
+ */
+public class CompressionStatistics {
+
+  private AtomicLong compressedBytes = new AtomicLong();
+  private AtomicLong compressedFrames = new AtomicLong();
+  private AtomicLong compressionNanos = new AtomicLong();
+  private AtomicLong decompressedFrames = new AtomicLong();
+  private AtomicLong decompressionNanos = new AtomicLong();
+  private AtomicLong skippedFrames = new AtomicLong();
+  private AtomicLong uncompressedBytes = new AtomicLong();
+
+  /**
+   * Records a frame that was compressed.
+   *
+   * @param before the size of the frame body before compression
+   * @param after the size of the frame body after compression
+   * @param nanos the time spent compressing, in nanoseconds
+   */
+  public void recordCompression(int before, int after, long nanos) {
+    compressedFrames.incrementAndGet();
+    uncompressedBytes.addAndGet(before);
+    compressedBytes.addAndGet(after);
+    compressionNanos.addAndGet(nanos);
+  }
+
+  /**
+   * Records a frame that was sent uncompressed, either because it was below
+   * the size threshold or because compression didn't make it any smaller.
+   *
+   * @param nanos the time wasted on compression, in nanoseconds
+   */
+  public void recordSkip(long nanos) {
+    skippedFrames.incrementAndGet();
+    compressionNanos.addAndGet(nanos);
+  }
+
+  /**
+   * Records a frame that was decompressed.
+   *
+   * @param nanos the time spent decompressing, in nanoseconds
+   */
+  public void recordDecompression(long nanos) {
+    decompressedFrames.incrementAndGet();
+    decompressionNanos.addAndGet(nanos);
+  }
+
+  /**
+   * Retrieves the number of frames that were compressed.
+   *
+   * @return the frame count
+   */
+  public long getCompressedFrameCount() {
+    return compressedFrames.get();
+  }
+
+  /**
+   * Retrieves the number of frames that were sent uncompressed.
+   *
+   * @return the frame count
+   */
+  public long getSkippedFrameCount() {
+    return skippedFrames.get();
+  }
+
+  /**
+   * Retrieves the number of frames that were decompressed.
+   *
+   * @return the frame count
+   */
+  public long getDecompressedFrameCount() {
+    return decompressedFrames.get();
+  }
+
+  /**
+   * Retrieves the total size of compressed frames before compression.
+   *
+   * @return the byte count
+   */
+  public long getUncompressedBytes() {
+    return uncompressedBytes.get();
+  }
+
+  /**
+   * Retrieves the total size of compressed frames after compression.
+   *
+   * @return the byte count
+   */
+  public long getCompressedBytes() {
+    return compressedBytes.get();
+  }
+
+  /**
+   * Retrieves the ratio of compressed size to uncompressed size.
+   *
+   * @return the compression ratio, or 1 if nothing was compressed
+   */
+  public double getCompressionRatio() {
+    long before = uncompressedBytes.get();
+    return before == 0L ? 1D : (double)compressedBytes.get() / before;
+  }
+
+  /**
+   * Retrieves the total time spent compressing frames.
+   *
+   * @return the time in nanoseconds
+   */
+  public long getCompressionNanos() {
+    return compressionNanos.get();
+  }
+
+  /**
+   * Retrieves the total time spent decompressing frames.
+   *
+   * @return the time in nanoseconds
+   */
+  public long getDecompressionNanos() {
+    return decompressionNanos.get();
+  }
+
+  /**
+   * Resets every counter to zero.
+   */
+  public void reset() {
+    compressedBytes.set(0L);
+    compressedFrames.set(0L);
+    compressionNanos.set(0L);
+    decompressedFrames.set(0L);
+    decompressionNanos.set(0L);
+    skippedFrames.set(0L);
+    uncompressedBytes.set(0L);
+  }
+
+}
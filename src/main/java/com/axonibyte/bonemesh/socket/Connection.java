@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2020 Axonibyte Innovations, LLC. All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.axonibyte.bonemesh.socket;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+import com.axonibyte.bonemesh.node.Node;
+
+/**
+ * A long-lived outgoing connection to a particular node.
+ * Instances are handed out by the {@link ConnectionPool} and are only ever
+ * used by one thread at a time.
+ *
+ * @author Caleb L. Power
+ */
+public class Connection implements Closeable {
+
+  private int uses = 0;
+  private int port;
+  private long lastUsed;
+  private byte[] readBuffer = new byte[8192];
+  private FrameCompressor compressor = null;
+  private FrameDecoder decoder = new FrameDecoder(Frame.DEFAULT_MAX_LENGTH);
+  private InputStream in = null;
+  private LinkedList<Frame> frames = new LinkedList<>();
+  private Node node = null;
+  private OutputStream out = null;
+  private Socket socket = null;
+  private String ip = null;
+
+  /**
+   * Overloaded constructor. Opens a socket to the node.
+   *
+   * @param node the target node
+   * @param connectTimeout the maximum time to wait for the socket to open,
+   *        in milliseconds, or 0 to wait indefinitely
+   * @param readTimeout the maximum time to wait for a response, in
+   *        milliseconds, or 0 to wait indefinitely
+   * @throws IOException if the socket could not be opened
+   */
+  public Connection(Node node, int connectTimeout, int readTimeout) throws IOException {
+    this.node = node;
+    this.ip = node.getIP();
+    this.port = node.getPort();
+    this.socket = new Socket();
+    try {
+      socket.connect(new InetSocketAddress(ip, port), connectTimeout);
+      socket.setSoTimeout(readTimeout);
+    } catch(IOException e) {
+      close();
+      throw e;
+    }
+    this.in = socket.getInputStream();
+    this.out = socket.getOutputStream();
+    this.lastUsed = System.currentTimeMillis();
+  }
+
+  /**
+   * Writes one frame to the remote node.
+   *
+   * @param frame the frame to send
+   * @throws IOException if the data could not be written
+   */
+  public void send(Frame frame) throws IOException {
+    uses++;
+    lastUsed = System.currentTimeMillis();
+    ByteBuffer data = frame.encode();
+    out.write(data.array(), data.arrayOffset(), data.remaining());
+    out.flush();
+  }
+
+  /**
+   * Reads one frame from the remote node.
+   *
+   * @return the frame that was read
+   * @throws IOException if the data could not be read or the remote node
+   *         closed the connection
+   */
+  public Frame receive() throws IOException {
+    while(frames.isEmpty()) {
+      int count = in.read(readBuffer);
+      if(count < 0) throw new EOFException("Connection closed by remote node.");
+      decoder.feed(readBuffer, 0, count, frames);
+    }
+    lastUsed = System.currentTimeMillis();
+    return frames.removeFirst();
+  }
+
+  /**
+   * Retrieves the node that this connection leads to.
+   *
+   * @return the target node
+   */
+  public Node getNode() {
+    return node;
+  }
+
+  /**
+   * Retrieves the compressor that belongs to this connection.
+   *
+   * @return the FrameCompressor, or <code>null</code> if compression hasn't
+   *         been used on this connection yet
+   */
+  public FrameCompressor getCompressor() {
+    return compressor;
+  }
+
+  /**
+   * Sets the compressor that belongs to this connection.
+   *
+   * @param compressor the FrameCompressor
+   * @return this Connection object
+   */
+  public Connection setCompressor(FrameCompressor compressor) {
+    this.compressor = compressor;
+    return this;
+  }
+
+  /**
+   * Retrieves the time at which this connection was last used.
+   *
+   * @return the time in milliseconds since the UNIX epoch
+   */
+  public long getLastUsed() {
+    return lastUsed;
+  }
+
+  /**
+   * Determines whether or not this connection has already carried data.
+   *
+   * @return <code>true</code> if at least one frame has been sent
+   */
+  public boolean isReused() {
+    return uses > 0;
+  }
+
+  /**
+   * Determines whether or not this connection can still be used.
+   * A connection becomes stale if it was closed or if the node has moved
+   * to a different address since the connection was opened.
+   *
+   * @return <code>true</code> if this connection should be discarded
+   */
+  public boolean isStale() {
+    return socket.isClosed()
+        || port != node.getPort()
+        || !ip.equals(node.getIP());
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override public void close() {
+    try {
+      socket.close();
+    } catch(IOException e) { }
+    if(compressor != null) compressor.close();
+  }
+
+}
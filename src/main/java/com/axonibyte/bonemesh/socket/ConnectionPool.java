@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2020 Axonibyte Innovations, LLC. All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.axonibyte.bonemesh.socket;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.axonibyte.bonemesh.Logger;
+import com.axonibyte.bonemesh.node.Node;
+
+/**
+ * Keeps long-lived connections open to other nodes so that they can be
+ * reused for many payloads.
+ *
+ * @author Caleb L. Power
+ */
+public class ConnectionPool implements Runnable {
+
+  private AtomicInteger ackTimeout = null;
+  private AtomicInteger connectTimeout = null;
+  private AtomicInteger maxConnectionsPerNode = null;
+  private AtomicLong idleTimeout = null;
+  private Logger logger = null;
+  private Map<Node, LinkedList<Connection>> idleConnections = null;
+  private Map<Node, Integer> openConnections = null;
+  private Thread thread = null;
+
+  private ConnectionPool(Logger logger) {
+    this.logger = logger;
+    this.ackTimeout = new AtomicInteger(10000);
+    this.connectTimeout = new AtomicInteger(5000);
+    this.maxConnectionsPerNode = new AtomicInteger(2);
+    this.idleTimeout = new AtomicLong(30000L);
+    this.idleConnections = new HashMap<>();
+    this.openConnections = new HashMap<>();
+  }
+
+  /**
+   * Builds a connection pool and launches its eviction thread.
+   *
+   * @param logger the logger
+   * @return a reference to the new connection pool
+   */
+  public static ConnectionPool build(Logger logger) {
+    ConnectionPool connectionPool = new ConnectionPool(logger);
+    connectionPool.thread = new Thread(connectionPool);
+    connectionPool.thread.setDaemon(true);
+    connectionPool.thread.start();
+    return connectionPool;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override public void run() {
+    try {
+      for(;;) {
+        Thread.sleep(Math.max(idleTimeout.get() / 2L, 1000L));
+        evictIdleConnections();
+      }
+    } catch(InterruptedException e) { }
+  }
+
+  /**
+   * Retrieves a connection to a node, opening a new one if there are no
+   * idle connections available. Blocks if the node has already reached its
+   * connection cap. The connection must be handed back with either
+   * {@link ConnectionPool#release(Connection)} or
+   * {@link ConnectionPool#invalidate(Connection)}.
+   *
+   * @param node the target node
+   * @return a connection to the node
+   * @throws IOException if a new connection could not be opened
+   * @throws InterruptedException if the thread was interrupted while waiting
+   */
+  public Connection borrow(Node node) throws IOException, InterruptedException {
+    List<Connection> staleConnections = new ArrayList<>();
+    try {
+      synchronized(this) {
+        for(;;) {
+          LinkedList<Connection> idle = idleConnections.get(node);
+          while(idle != null && !idle.isEmpty()) {
+            Connection connection = idle.removeFirst();
+            if(!connection.isStale()) return connection;
+            staleConnections.add(connection);
+            decrement(node);
+          }
+          int open = openConnections.getOrDefault(node, 0);
+          if(open < maxConnectionsPerNode.get()) {
+            openConnections.put(node, open + 1);
+            break;
+          }
+          wait();
+        }
+      }
+    } finally {
+      for(Connection connection : staleConnections) connection.close();
+    }
+
+    try {
+      logger.logDebug("POOL", String.format("Opening connection to %1$s.", node.getLabel()));
+      return new Connection(node, connectTimeout.get(), ackTimeout.get());
+    } catch(IOException | RuntimeException e) { // give the slot back, or it's gone for good
+      synchronized(this) {
+        decrement(node);
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Hands a healthy connection back to the pool so that it may be reused.
+   *
+   * @param connection the connection
+   */
+  public void release(Connection connection) {
+    synchronized(this) {
+      if(!connection.isStale()) {
+        idleConnections.computeIfAbsent(connection.getNode(), n -> new LinkedList<>())
+            .addFirst(connection);
+        notifyAll();
+        return;
+      }
+      decrement(connection.getNode());
+    }
+    connection.close();
+  }
+
+  /**
+   * Closes a broken connection and frees up its slot in the pool.
+   *
+   * @param connection the connection
+   */
+  public void invalidate(Connection connection) {
+    synchronized(this) {
+      decrement(connection.getNode());
+    }
+    connection.close();
+  }
+
+  /**
+   * Closes all idle connections that have outlived the idle timeout.
+   */
+  public void evictIdleConnections() {
+    List<Connection> evictedConnections = new ArrayList<>();
+    long cutoff = System.currentTimeMillis() - idleTimeout.get();
+    synchronized(this) {
+      for(LinkedList<Connection> idle : idleConnections.values()) {
+        Iterator<Connection> iterator = idle.iterator();
+        while(iterator.hasNext()) {
+          Connection connection = iterator.next();
+          if(connection.getLastUsed() < cutoff || connection.isStale()) {
+            iterator.remove();
+            evictedConnections.add(connection);
+            decrement(connection.getNode());
+          }
+        }
+      }
+      idleConnections.values().removeIf(LinkedList::isEmpty);
+    }
+    for(Connection connection : evictedConnections) {
+      logger.logDebug("POOL", String.format("Evicting idle connection to %1$s.",
+          connection.getNode().getLabel()));
+      connection.close();
+    }
+  }
+
+  /**
+   * Sets the maximum number of simultaneous connections to any one node.
+   *
+   * @param maxConnectionsPerNode the connection cap
+   * @return this ConnectionPool object
+   */
+  public ConnectionPool setMaxConnectionsPerNode(int maxConnectionsPerNode) {
+    if(maxConnectionsPerNode < 1)
+      throw new IllegalArgumentException("Connection cap must be positive.");
+    this.maxConnectionsPerNode.set(maxConnectionsPerNode);
+    synchronized(this) {
+      notifyAll();
+    }
+    return this;
+  }
+
+  /**
+   * Retrieves the maximum number of simultaneous connections to any one node.
+   *
+   * @return the connection cap
+   */
+  public int getMaxConnectionsPerNode() {
+    return maxConnectionsPerNode.get();
+  }
+
+  /**
+   * Sets the amount of time that a connection may sit idle before it is closed.
+   *
+   * @param idleTimeout the timeout in milliseconds
+   * @return this ConnectionPool object
+   */
+  public ConnectionPool setIdleTimeout(long idleTimeout) {
+    this.idleTimeout.set(idleTimeout);
+    return this;
+  }
+
+  /**
+   * Retrieves the amount of time that a connection may sit idle before it is closed.
+   *
+   * @return the timeout in milliseconds
+   */
+  public long getIdleTimeout() {
+    return idleTimeout.get();
+  }
+
+  /**
+   * Sets the maximum amount of time to wait for a new connection to open.
+   *
+   * @param connectTimeout the timeout in milliseconds, or 0 to wait indefinitely
+   * @return this ConnectionPool object
+   */
+  public ConnectionPool setConnectTimeout(int connectTimeout) {
+    this.connectTimeout.set(connectTimeout);
+    return this;
+  }
+
+  /**
+   * Retrieves the maximum amount of time to wait for a new connection to open.
+   *
+   * @return the timeout in milliseconds
+   */
+  public int getConnectTimeout() {
+    return connectTimeout.get();
+  }
+
+  /**
+   * Sets the maximum amount of time to wait for a node to acknowledge a
+   * payload. Only applies to connections opened after the change.
+   *
+   * @param ackTimeout the timeout in milliseconds, or 0 to wait indefinitely
+   * @return this ConnectionPool object
+   */
+  public ConnectionPool setAckTimeout(int ackTimeout) {
+    this.ackTimeout.set(ackTimeout);
+    return this;
+  }
+
+  /**
+   * Retrieves the maximum amount of time to wait for a node to acknowledge a payload.
+   *
+   * @return the timeout in milliseconds
+   */
+  public int getAckTimeout() {
+    return ackTimeout.get();
+  }
+
+  /**
+   * Closes every idle connection and interrupts the eviction thread.
+   */
+  public void kill() {
+    thread.interrupt();
+    List<Connection> connections = new ArrayList<>();
+    synchronized(this) {
+      for(LinkedList<Connection> idle : idleConnections.values())
+        connections.addAll(idle);
+      idleConnections.clear();
+      openConnections.clear();
+      notifyAll();
+    }
+    for(Connection connection : connections) connection.close();
+  }
+
+  private void decrement(Node node) { // caller must hold the lock
+    int open = openConnections.getOrDefault(node, 0) - 1;
+    if(open > 0) openConnections.put(node, open);
+    else openConnections.remove(node);
+    notifyAll();
+  }
+
+}
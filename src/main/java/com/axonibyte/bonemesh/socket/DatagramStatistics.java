@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2020 Axonibyte Innovations, LLC. All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.axonibyte.bonemesh.socket;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running counters for best-effort datagrams. Datagrams are never
+ * acknowledged, so comparing what one node sent with what another received
+ * is the only way to see how many were lost.
+ *
+ * @author Caleb L. Power
+ */
+public class DatagramStatistics {
+
+  private AtomicLong dropped = new AtomicLong();
+  private AtomicLong received = new AtomicLong();
+  private AtomicLong relayed = new AtomicLong();
+  private AtomicLong sent = new AtomicLong();
+
+  void recordSent() {
+    sent.incrementAndGet();
+  }
+
+  void recordReceived() {
+    received.incrementAndGet();
+  }
+
+  void recordRelayed() {
+    relayed.incrementAndGet();
+  }
+
+  void recordDropped() {
+    dropped.incrementAndGet();
+  }
+
+  /**
+   * Retrieves the number of datagrams that originated at this node and
+   * were handed to the network.
+   *
+   * @return the sent datagram count
+   */
+  public long getSentCount() {
+    return sent.get();
+  }
+
+  /**
+   * Retrieves the number of datagrams that were addressed to this node and
+   * delivered to its listeners.
+   *
+   * @return the received datagram count
+   */
+  public long getReceivedCount() {
+    return received.get();
+  }
+
+  /**
+   * Retrieves the number of datagrams that this node passed on to another.
+   *
+   * @return the relayed datagram count
+   */
+  public long getRelayedCount() {
+    return relayed.get();
+  }
+
+  /**
+   * Retrieves the number of datagrams that this node gave up on, because
+   * they were malformed, too large, out of hops, or had nowhere to go.
+   *
+   * @return the dropped datagram count
+   */
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  /**
+   * Resets every counter to zero.
+   */
+  public void reset() {
+    dropped.set(0L);
+    received.set(0L);
+    relayed.set(0L);
+    sent.set(0L);
+  }
+
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2020 Axonibyte Innovations, LLC. All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.axonibyte.bonemesh.socket;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.axonibyte.bonemesh.BoneMesh;
+import com.axonibyte.bonemesh.Logger;
+import com.axonibyte.bonemesh.message.DatagramMessage;
+import com.axonibyte.bonemesh.message.MessageCodec;
+import com.axonibyte.bonemesh.node.Feature;
+import com.axonibyte.bonemesh.node.Node;
+import com.axonibyte.bonemesh.node.NodeMap;
+
+/**
+ * Sends and receives best-effort datagrams over UDP, on the same port
+ * number as the TCP server. Datagrams are neither acknowledged nor retried;
+ * one that can't be delivered right away is dropped and counted. Datagrams
+ * for other nodes are passed on to the next hop the same way.
+ *
+ * @author Caleb L. Power
+ */
+public class DatagramTransport implements Runnable {
+
+  /**
+   * The largest datagram that can be sent, which is the largest UDP
+   * payload over IPv4.
+   */
+  public static final int MAX_LENGTH = 65507;
+
+  private static final int RECEIVE_BUFFER = 4 * 1024 * 1024; // the system may cap this
+
+  private BoneMesh boneMesh = null;
+  private DatagramChannel channel = null;
+  private DatagramStatistics statistics = null;
+  private Logger logger = null;
+  private SocketServer server = null;
+  private Thread thread = null;
+
+  private DatagramTransport(BoneMesh boneMesh, Logger logger, SocketServer server) {
+    this.boneMesh = boneMesh;
+    this.logger = logger;
+    this.server = server;
+    this.statistics = new DatagramStatistics();
+  }
+
+  /**
+   * Binds a datagram channel and starts receiving datagrams on it.
+   *
+   * @param boneMesh the BoneMesh instance
+   * @param logger the logger
+   * @param server the socket server whose listeners receive the datagrams
+   * @param port the UDP port
+   * @return a reference to the new datagram transport
+   * @throws IOException if the port couldn't be bound
+   */
+  public static DatagramTransport build(BoneMesh boneMesh, Logger logger,
+      SocketServer server, int port) throws IOException {
+    DatagramTransport transport = new DatagramTransport(boneMesh, logger, server);
+    transport.channel = DatagramChannel.open();
+    try {
+      transport.channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER); // ride out bursts
+      transport.channel.bind(new InetSocketAddress(port));
+    } catch(IOException e) {
+      transport.channel.close();
+      throw e;
+    }
+    logger.logInfo("DATAGRAM", String.format("Opened on port %1$d", port));
+    transport.thread = new Thread(transport);
+    transport.thread.setDaemon(true);
+    transport.thread.start();
+    return transport;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override public void run() {
+    ByteBuffer buffer = ByteBuffer.allocate(MAX_LENGTH);
+    while(!thread.isInterrupted()) {
+      SocketAddress sender = null;
+      buffer.clear();
+      try {
+        sender = channel.receive(buffer);
+      } catch(ClosedChannelException e) {
+        return;
+      } catch(IOException e) {
+        logger.logError("DATAGRAM", e.getMessage());
+        continue;
+      }
+
+      try {
+        List<Frame> frames = new ArrayList<>();
+        new FrameDecoder(MAX_LENGTH).feed(buffer.array(), 0, buffer.position(), frames);
+        for(Frame frame : frames)
+          receive(frame);
+      } catch(IOException | JSONException e) {
+        statistics.recordDropped();
+        logger.logError("DATAGRAM", String.format("Dropped datagram from %1$s: %2$s", sender, e.getMessage()));
+      }
+    }
+  }
+
+  private void receive(Frame frame) throws IOException, JSONException {
+    MessageCodec codec = boneMesh.getCodec(frame.getCodecID());
+    if(codec == null)
+      throw new IOException(String.format("Datagram was written with unknown codec %1$d.", frame.getCodecID()));
+    JSONObject json = codec.decode(frame.getBody());
+    if(!DatagramMessage.isImplementedBy(json))
+      throw new IOException("Datagram does not hold a datagram message.");
+    DatagramMessage message = new DatagramMessage(json);
+    logger.logDebug("DATAGRAM", String.format("Received %1$s.", message.getCorrelationID()));
+    if(boneMesh.getInstanceLabel().equalsIgnoreCase(message.getTo())) {
+      statistics.recordReceived();
+      server.dispatchToListeners(message.toGenericMessage(), false); // best-effort, so it never holds up the receiver
+    } else if(message.hop() && transmit(message)) statistics.recordRelayed();
+    else statistics.recordDropped();
+  }
+
+  /**
+   * Sends a datagram towards its recipient. The datagram goes straight to
+   * the recipient if it is a direct node, and to the next hop otherwise.
+   *
+   * @param message the message
+   * @return <code>true</code> if the datagram was handed to the network;
+   *         <code>false</code> is not an indicator of message reception
+   */
+  public boolean send(DatagramMessage message) {
+    if(transmit(message)) {
+      statistics.recordSent();
+      return true;
+    }
+    statistics.recordDropped();
+    return false;
+  }
+
+  private boolean transmit(DatagramMessage message) {
+    Node node = boneMesh.getNodeMap().getNodeByLabel(message.getTo());
+    if(node == null) node = boneMesh.getNodeMap().getNextBestNode(message.getTo(),
+        NodeMap.getFlow(message.getFrom(), message.getTo()));
+    if(node == null || !node.hasFeature(Feature.DATAGRAMS)) return false;
+    ByteBuffer data = Frame.wrap(message, true, boneMesh.getCodec(node)).encode();
+    if(data.remaining() > MAX_LENGTH) {
+      logger.logError("DATAGRAM", String.format("Datagram %1$s is too large to send (%2$d bytes).",
+          message.getCorrelationID(), data.remaining()));
+      return false;
+    }
+    try {
+      channel.send(data, new InetSocketAddress(node.getIP(), node.getPort()));
+      return true;
+    } catch(IOException e) {
+      logger.logError("DATAGRAM", e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * Retrieves counters that describe the datagrams sent and received.
+   *
+   * @return the datagram statistics
+   */
+  public DatagramStatistics getStatistics() {
+    return statistics;
+  }
+
+  /**
+   * Stops receiving datagrams and closes the channel.
+   */
+  public void kill() {
+    thread.interrupt();
+    try {
+      channel.close();
+    } catch(IOException e) { }
+  }
+
+}
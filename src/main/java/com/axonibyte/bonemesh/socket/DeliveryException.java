@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2020 Axonibyte Innovations, LLC. All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.axonibyte.bonemesh.socket;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a payload could not be delivered.
+ *
+ * @author Caleb L. Power
+ */
+public class DeliveryException extends IOException {
+
+  private static final long serialVersionUID = 6170357310385211244L;
+
+  private transient Payload payload = null;
+
+  /**
+   * Overloaded constructor.
+   *
+   * @param message the reason for the failure
+   * @param payload the payload, or <code>null</code> if it was never built
+   */
+  public DeliveryException(String message, Payload payload) {
+    super(message);
+    this.payload = payload;
+  }
+
+  /**
+   * Retrieves the payload that could not be delivered.
+   *
+   * @return the payload, or <code>null</code> if it was never built
+   */
+  public Payload getPayload() {
+    return payload;
+  }
+
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright (c) 2020 Axonibyte Innovations, LLC. All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.axonibyte.bonemesh.socket;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+
+import com.axonibyte.bonemesh.message.AckMessage;
+import com.axonibyte.bonemesh.message.BytesMessage;
+import com.axonibyte.bonemesh.message.DiscoveryMessage;
+import com.axonibyte.bonemesh.message.JsonCodec;
+import com.axonibyte.bonemesh.message.MessageCodec;
+
+/**
+ * A single unit of data on the wire.
+ *
+ * Binary frames start with an eight-byte header: a magic byte, the framing
+ * version, the message type, a flags byte, and the length of the body as a
+ * big-endian integer. The upper four bits of the flags name the codec that
+ * the body was written with. The body follows as raw bytes. Legacy frames are
+ * plain newline-terminated lines of UTF-8 text; since the magic byte can
+ * never start a line of JSON, both kinds can share a connection.
+ *
+ * @author Caleb L. Power
+ */
+public class Frame {
+
+  /**
+   * The first byte of every binary frame.
+   */
+  public static final byte MAGIC = (byte)0xB7;
+
+  /**
+   * The newest framing version that this node understands.
+   */
+  public static final byte VERSION = 1;
+
+  /**
+   * The length of a binary frame header, in bytes.
+   */
+  public static final int HEADER_LENGTH = 8;
+
+  /**
+   * The default upper bound on the length of a frame body, in bytes.
+   */
+  public static final int DEFAULT_MAX_LENGTH = 16 * 1024 * 1024;
+
+  /**
+   * Type denoting a legacy newline-terminated frame.
+   */
+  public static final byte TYPE_LINE = 0;
+
+  /**
+   * Type denoting a generic message.
+   */
+  public static final byte TYPE_MESSAGE = 1;
+
+  /**
+   * Type denoting an acknowledgement.
+   */
+  public static final byte TYPE_ACK = 2;
+
+  /**
+   * Type denoting a discovery message.
+   */
+  public static final byte TYPE_DISCOVERY = 3;
+
+  /**
+   * Type denoting a batch of frames that is acknowledged as a whole.
+   */
+  public static final byte TYPE_BATCH = 4;
+
+  /**
+   * Type denoting raw bytes behind a small routing header.
+   */
+  public static final byte TYPE_BYTES = 5;
+
+  /**
+   * Flag denoting a DEFLATE-compressed body.
+   */
+  public static final byte FLAG_DEFLATE = 0x01;
+
+  /**
+   * The flag bits that hold the ID of the message codec.
+   */
+  public static final byte FLAG_CODEC_MASK = (byte)0xF0;
+
+  private byte flags;
+  private byte type;
+  private byte version;
+  private byte[] body = null;
+
+  /**
+   * Overloaded constructor.
+   *
+   * @param version the framing version
+   * @param type the message type
+   * @param flags the frame flags
+   * @param body the frame body
+   */
+  public Frame(byte version, byte type, byte flags, byte[] body) {
+    this.version = version;
+    this.type = type;
+    this.flags = flags;
+    this.body = body;
+  }
+
+  /**
+   * Wraps a message in a frame.
+   *
+   * @param message the message
+   * @param binary <code>true</code> for a binary frame,
+   *        or <code>false</code> for a legacy line
+   * @param codec the codec that encodes the message; legacy lines are
+   *        always JSON
+   * @return the new frame
+   */
+  public static Frame wrap(JSONObject message, boolean binary, MessageCodec codec) {
+    if(!binary || codec == null) codec = Payload.DEFAULT_CODEC;
+    return new Frame(VERSION,
+        getType(message, binary),
+        getCodecFlags(codec),
+        codec.encode(message));
+  }
+
+  /**
+   * Wraps the data in a payload in a frame, reusing its serialized form.
+   *
+   * @param payload the payload
+   * @param binary <code>true</code> for a binary frame,
+   *        or <code>false</code> for a legacy line
+   * @param codec the codec that encodes the data; legacy lines are
+   *        always JSON
+   * @return the new frame
+   */
+  public static Frame wrap(Payload payload, boolean binary, MessageCodec codec) {
+    if(!binary || codec == null || payload.getData() instanceof BytesMessage)
+      codec = Payload.DEFAULT_CODEC; // raw bytes carry their own header
+    byte[] body = payload.getEncodedData(codec);
+    return new Frame(VERSION,
+        getType(payload.getData(), binary),
+        getCodecFlags(payload.getCodec()), // whichever codec really wrote the body
+        body);
+  }
+
+  private static byte getCodecFlags(MessageCodec codec) {
+    return (byte)(codec.getID() << 4 & FLAG_CODEC_MASK);
+  }
+
+  private static byte getType(JSONObject message, boolean binary) {
+    if(message instanceof BytesMessage) return TYPE_BYTES; // raw bytes can't travel as a line
+    if(!binary) return TYPE_LINE;
+    if(AckMessage.isImplementedBy(message)) return TYPE_ACK;
+    if(DiscoveryMessage.isImplementedBy(message)) return TYPE_DISCOVERY;
+    return TYPE_MESSAGE;
+  }
+
+  /**
+   * Packs several binary frames into one batch frame. The batch body holds
+   * the batch ID and the number of frames, followed by the type, flags,
+   * length and body of each frame.
+   *
+   * @param batchID the batch ID, to be echoed in the batch acknowledgement
+   * @param frames the frames to pack
+   * @return the new batch frame
+   */
+  public static Frame batch(long batchID, List<Frame> frames) {
+    int length = 12;
+    for(Frame frame : frames) length += 6 + frame.body.length;
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    buffer.putLong(batchID).putInt(frames.size());
+    for(Frame frame : frames)
+      buffer.put(frame.type)
+          .put(frame.flags)
+          .putInt(frame.body.length)
+          .put(frame.body);
+    return new Frame(VERSION, TYPE_BATCH, (byte)0, buffer.array());
+  }
+
+  /**
+   * Retrieves the ID of a batch frame.
+   *
+   * @return the batch ID
+   * @throws IOException if this isn't a well-formed batch frame
+   */
+  public long getBatchID() throws IOException {
+    if(type != TYPE_BATCH || body.length < 12) throw new IOException("Malformed batch frame.");
+    return ByteBuffer.wrap(body).getLong();
+  }
+
+  /**
+   * Unpacks the frames in a batch frame.
+   *
+   * @return the frames, in the order in which they were packed
+   * @throws IOException if this isn't a well-formed batch frame
+   */
+  public List<Frame> unbatch() throws IOException {
+    if(type != TYPE_BATCH) throw new IOException("Malformed batch frame.");
+    try {
+      ByteBuffer buffer = ByteBuffer.wrap(body);
+      buffer.getLong();
+      int count = buffer.getInt();
+      if(count < 0 || count > buffer.remaining() / 6) throw new IOException("Malformed batch frame.");
+      List<Frame> frames = new ArrayList<>(count);
+      for(int i = 0; i < count; i++) {
+        byte type = buffer.get();
+        byte flags = buffer.get();
+        int length = buffer.getInt();
+        if(length < 0 || length > buffer.remaining()) throw new IOException("Malformed batch frame.");
+        byte[] body = new byte[length];
+        buffer.get(body);
+        frames.add(new Frame(version, type, flags, body));
+      }
+      return frames;
+    } catch(BufferUnderflowException e) {
+      throw new IOException("Malformed batch frame.");
+    }
+  }
+
+  /**
+   * Wraps a response in a frame of the same kind as this one.
+   *
+   * @param message the response
+   * @param codec the codec that this frame was written with
+   * @return the new frame
+   */
+  public Frame reply(JSONObject message, MessageCodec codec) {
+    return wrap(message, !isLegacy(), codec);
+  }
+
+  /**
+   * Determines whether or not this is a legacy newline-terminated frame.
+   *
+   * @return <code>true</code> if this frame is a plain line of text
+   */
+  public boolean isLegacy() {
+    return type == TYPE_LINE;
+  }
+
+  /**
+   * Retrieves the framing version.
+   *
+   * @return the version
+   */
+  public byte getVersion() {
+    return version;
+  }
+
+  /**
+   * Retrieves the message type.
+   *
+   * @return the type
+   */
+  public byte getType() {
+    return type;
+  }
+
+  /**
+   * Retrieves the frame flags.
+   *
+   * @return the flags
+   */
+  public byte getFlags() {
+    return flags;
+  }
+
+  /**
+   * Retrieves the ID of the codec that the body was written with.
+   *
+   * @return the codec ID; always {@link JsonCodec#ID} for legacy lines
+   */
+  public int getCodecID() {
+    return (flags & FLAG_CODEC_MASK) >>> 4;
+  }
+
+  /**
+   * Retrieves the frame body.
+   *
+   * @return the raw body
+   */
+  public byte[] getBody() {
+    return body;
+  }
+
+  /**
+   * Decodes the frame body as UTF-8 text.
+   *
+   * @return the body as a String
+   */
+  public String getText() {
+    return new String(body, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Serializes the frame, including its header or line terminator.
+   *
+   * @return a buffer ready to be written to the wire
+   */
+  public ByteBuffer encode() {
+    if(isLegacy()) {
+      ByteBuffer buffer = ByteBuffer.allocate(body.length + 1);
+      buffer.put(body).put((byte)'\n').flip();
+      return buffer;
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + body.length);
+    buffer.put(MAGIC)
+        .put(version)
+        .put(type)
+        .put(flags)
+        .putInt(body.length)
+        .put(body)
+        .flip();
+    return buffer;
+  }
+
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2020 Axonibyte Innovations, LLC. All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.axonibyte.bonemesh.socket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and decompresses the bodies of binary frames with DEFLATE.
+ * Every frame is compressed on its own, optionally against a preset
+ * dictionary that both nodes have been configured with. One instance
+ * belongs to one connection so that its native buffers can be reused from
+ * frame to frame; it is not thread-safe.
+ *
+ * @author Caleb L. Power
+ */
+public class FrameCompressor {
+
+  private byte[] buffer = new byte[8192];
+  private CompressionStatistics statistics = null;
+  private Deflater deflater = null;
+  private Inflater inflater = null;
+
+  /**
+   * Overloaded constructor.
+   *
+   * @param statistics the counters to update
+   */
+  public FrameCompressor(CompressionStatistics statistics) {
+    this.statistics = statistics;
+  }
+
+  /**
+   * Computes the ID under which a dictionary is advertised. This is the same
+   * checksum that DEFLATE streams use to name their preset dictionary.
+   *
+   * @param dictionary the dictionary
+   * @return the dictionary ID, or <code>-1</code> if there's no dictionary
+   */
+  public static long getDictionaryID(byte[] dictionary) {
+    if(dictionary == null) return -1L;
+    Adler32 adler = new Adler32();
+    adler.update(dictionary);
+    return adler.getValue();
+  }
+
+  /**
+   * Compresses a frame if it is large enough and if compression actually
+   * makes it smaller.
+   *
+   * @param frame the frame
+   * @param threshold the minimum body size worth compressing, in bytes
+   * @param dictionary the preset dictionary, or <code>null</code> for none;
+   *        only safe to use if the remote node has the same dictionary
+   * @return the compressed frame, or the original frame if it was left alone
+   */
+  public Frame compress(Frame frame, int threshold, byte[] dictionary) {
+    byte[] body = frame.getBody();
+    if(frame.isLegacy()
+        || (frame.getFlags() & Frame.FLAG_DEFLATE) != 0
+        || body.length < threshold)
+      return frame;
+
+    long start = System.nanoTime();
+    if(deflater == null) deflater = new Deflater();
+    else deflater.reset();
+    if(dictionary != null) deflater.setDictionary(dictionary);
+    deflater.setInput(body);
+    deflater.finish();
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 2 + 16);
+    while(!deflater.finished() && out.size() < body.length) {
+      int count = deflater.deflate(buffer);
+      out.write(buffer, 0, count);
+    }
+
+    if(!deflater.finished() || out.size() >= body.length) { // not worth it
+      statistics.recordSkip(System.nanoTime() - start);
+      return frame;
+    }
+
+    byte[] compressed = out.toByteArray();
+    statistics.recordCompression(body.length, compressed.length, System.nanoTime() - start);
+    return new Frame(frame.getVersion(),
+        frame.getType(),
+        (byte)(frame.getFlags() | Frame.FLAG_DEFLATE),
+        compressed);
+  }
+
+  /**
+   * Decompresses a frame if it was compressed.
+   *
+   * @param frame the frame
+   * @param maxLength the largest decompressed body that will be accepted
+   * @param dictionary the preset dictionary, or <code>null</code> for none
+   * @return the decompressed frame, or the original frame if it wasn't compressed
+   * @throws IOException if the body was corrupt, too large, or compressed
+   *         against a dictionary that this node doesn't have
+   */
+  public Frame decompress(Frame frame, int maxLength, byte[] dictionary) throws IOException {
+    if((frame.getFlags() & Frame.FLAG_DEFLATE) == 0) return frame;
+
+    long start = System.nanoTime();
+    if(inflater == null) inflater = new Inflater();
+    else inflater.reset();
+    inflater.setInput(frame.getBody());
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream(frame.getBody().length * 3);
+    try {
+      while(!inflater.finished()) {
+        int count = inflater.inflate(buffer);
+        if(count == 0) {
+          if(inflater.needsDictionary()) {
+            if(dictionary == null || getDictionaryID(dictionary) != (inflater.getAdler() & 0xFFFFFFFFL))
+              throw new IOException("Frame was compressed with an unknown dictionary.");
+            inflater.setDictionary(dictionary);
+          } else if(inflater.needsInput()) throw new IOException("Truncated compressed frame.");
+        }
+        if(out.size() + count > maxLength)
+          throw new IOException("Decompressed frame exceeds limit.");
+        out.write(buffer, 0, count);
+      }
+    } catch(DataFormatException e) {
+      throw new IOException("Corrupt compressed frame.", e);
+    }
+
+    statistics.recordDecompression(System.nanoTime() - start);
+    return new Frame(frame.getVersion(),
+        frame.getType(),
+        (byte)(frame.getFlags() & ~Frame.FLAG_DEFLATE),
+        out.toByteArray());
+  }
+
+  /**
+   * Frees the native resources held by this compressor.
+   */
+  public void close() {
+    if(deflater != null) deflater.end();
+    if(inflater != null) inflater.end();
+  }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2020 Axonibyte Innovations, LLC. All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.axonibyte.bonemesh.socket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Incrementally splits a stream of bytes into frames. Binary and legacy
+ * frames may be interleaved on the same stream. Not thread-safe.
+ *
+ * @author Caleb L. Power
+ */
+public class FrameDecoder {
+
+  private static final int STATE_IDLE = 0;
+  private static final int STATE_HEADER = 1;
+  private static final int STATE_BODY = 2;
+  private static final int STATE_LINE = 3;
+
+  private int bodyFill = 0;
+  private int headerFill = 0;
+  private int maxLength;
+  private int state = STATE_IDLE;
+  private byte[] body = null;
+  private byte[] header = new byte[Frame.HEADER_LENGTH];
+  private ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+  /**
+   * Overloaded constructor.
+   *
+   * @param maxLength the maximum length of a frame body in bytes
+   */
+  public FrameDecoder(int maxLength) {
+    this.maxLength = maxLength;
+  }
+
+  /**
+   * Consumes bytes from the stream.
+   *
+   * @param data the buffer containing the bytes
+   * @param offset the index of the first byte to consume
+   * @param length the number of bytes to consume
+   * @param frames the list to which completed frames are added
+   * @throws IOException if the stream contains a malformed or oversized frame
+   */
+  public void feed(byte[] data, int offset, int length, List<Frame> frames) throws IOException {
+    int end = offset + length;
+    int i = offset;
+    while(i < end) {
+      switch(state) {
+      case STATE_IDLE:
+        state = data[i] == Frame.MAGIC ? STATE_HEADER : STATE_LINE;
+        break;
+
+      case STATE_HEADER: {
+        int count = Math.min(end - i, header.length - headerFill);
+        System.arraycopy(data, i, header, headerFill, count);
+        headerFill += count;
+        i += count;
+        if(headerFill < header.length) break;
+
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        buffer.get(); // magic
+        byte version = buffer.get();
+        buffer.position(4);
+        int bodyLength = buffer.getInt();
+        if(version < 1 || version > Frame.VERSION)
+          throw new IOException(String.format("Unsupported frame version %1$d.", version));
+        if(bodyLength < 0 || bodyLength > maxLength)
+          throw new IOException(String.format("Frame of %1$d bytes exceeds limit.", bodyLength));
+        body = new byte[bodyLength]; // we know the exact size up front
+        bodyFill = 0;
+        state = STATE_BODY;
+        if(bodyLength == 0) emit(frames);
+        break;
+      }
+
+      case STATE_BODY: {
+        int count = Math.min(end - i, body.length - bodyFill);
+        System.arraycopy(data, i, body, bodyFill, count);
+        bodyFill += count;
+        i += count;
+        if(bodyFill == body.length) emit(frames);
+        break;
+      }
+
+      case STATE_LINE: {
+        int newline = i;
+        while(newline < end && data[newline] != '\n') newline++;
+        if(line.size() + newline - i > maxLength)
+          throw new IOException("Line exceeds frame length limit.");
+        line.write(data, i, newline - i);
+        i = newline;
+        if(newline == end) break;
+        i++; // skip the terminator
+        byte[] text = line.toByteArray();
+        int textLength = text.length;
+        if(textLength > 0 && text[textLength - 1] == '\r') textLength--;
+        if(textLength != text.length) {
+          byte[] trimmed = new byte[textLength];
+          System.arraycopy(text, 0, trimmed, 0, textLength);
+          text = trimmed;
+        }
+        line.reset();
+        state = STATE_IDLE;
+        frames.add(new Frame(Frame.VERSION, Frame.TYPE_LINE, (byte)0, text));
+        break;
+      }
+      }
+    }
+  }
+
+  private void emit(List<Frame> frames) {
+    frames.add(new Frame(header[1], header[2], header[3], body));
+    body = null;
+    headerFill = 0;
+    state = STATE_IDLE;
+  }
+
+}
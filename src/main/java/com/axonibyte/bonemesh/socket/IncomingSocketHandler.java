@@ -16,13 +16,15 @@
 
 package com.axonibyte.bonemesh.socket;
 
-import java.io.BufferedReader;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -30,9 +32,13 @@ import org.json.JSONObject;
 import com.axonibyte.bonemesh.BoneMesh;
 import com.axonibyte.bonemesh.Logger;
 import com.axonibyte.bonemesh.message.AckMessage;
+import com.axonibyte.bonemesh.message.BroadcastMessage;
+import com.axonibyte.bonemesh.message.BytesMessage;
 import com.axonibyte.bonemesh.message.DiscoveryMessage;
 import com.axonibyte.bonemesh.message.GenericMessage;
-import com.axonibyte.bonemesh.node.Node;
+import com.axonibyte.bonemesh.message.MessageCodec;
+import com.axonibyte.bonemesh.message.StreamAckMessage;
+import com.axonibyte.bonemesh.message.StreamMessage;
 
 /**
  * Handles incoming data.
@@ -42,6 +48,8 @@ import com.axonibyte.bonemesh.node.Node;
 public class IncomingSocketHandler implements Runnable {
   
   private BoneMesh boneMesh = null;
+  private FrameCompressor compressor = null;
+  private List<Runnable> deliveries = new ArrayList<>(); // to listeners, once the ack is out
   private Logger logger = null;
   private Socket socket = null;
   private SocketServer server = null;
@@ -58,6 +66,18 @@ public class IncomingSocketHandler implements Runnable {
     this.logger = logger;
   }
   
+  /**
+   * Overloaded constructor for handlers that don't own a socket or thread.
+   * 
+   * @param boneMesh the BoneMesh instance
+   * @param logger the logger
+   * @param callback a callback to the socket server
+   */
+  public IncomingSocketHandler(BoneMesh boneMesh, Logger logger, SocketServer callback) {
+    this(boneMesh, logger);
+    this.server = callback;
+  }
+  
   /**
    * Launches a thread to handle the socket.
    * 
@@ -76,55 +96,238 @@ public class IncomingSocketHandler implements Runnable {
    * {@inheritDoc}
    */
   @Override public void run() {
-    DataInputStream inputStream = null;
-    DataOutputStream outputStream = null;
-    
-    try {
-      inputStream = new DataInputStream(socket.getInputStream());
-      outputStream = new DataOutputStream(socket.getOutputStream());
+    try(Socket socket = this.socket) {
+      socket.setSoTimeout((int)server.getIdleTimeout());
+      InputStream in = socket.getInputStream();
+      OutputStream out = socket.getOutputStream();
+      FrameDecoder decoder = new FrameDecoder(server.getMaxFrameLength());
+      List<Frame> frames = new ArrayList<>();
+      byte[] buffer = new byte[8192];
+      int count = 0;
       
-      BufferedReader in = new BufferedReader(new InputStreamReader(inputStream));
-      JSONObject json = new JSONObject(in.readLine());
-      logger.logDebug("HANDLER", String.format("Received data: %1$s", json.toString()));
-      if(AckMessage.isImplementedBy(json)) {
-        AckMessage ack = new AckMessage(json, false);
-        logger.logDebug("HANDLER", String.format("Kicking ack back to %1$s.", ack.getTo()));
-        boneMesh.sendDatum(ack);
-      } else if(!AckMessage.isImplementedBy(json)) {
-        AckMessage ack = new AckMessage(json, true);
-        if(DiscoveryMessage.isImplementedBy(json)) {
-          logger.logDebug("HANDLER", "Received DiscoveryMessage.");
-          DiscoveryMessage message = new DiscoveryMessage(json); // deserialize discovery message
-          Node node = boneMesh.getNodeMap().getNodeByLabel(message.getFrom());
-          boneMesh.getNodeMap().setNodeNeighbors(message.getFrom(), message.getNodes());
-          if(node == null) {
-            node = new Node(message.getFrom(),
-                socket.getInetAddress().toString(),
-                message.getPort());
-            boneMesh.getNodeMap().addOrReplaceNode(node, true);
-          } else node.setIP(socket.getInetAddress().toString()).setPort(message.getPort());
-        } else {
-          GenericMessage message = new GenericMessage(json); // attempt to deserialize message
-          if(boneMesh.getInstanceLabel().equalsIgnoreCase(message.getTo())) // intended for us?
-            server.dispatchToListeners(json); // yes, dispatch to listeners
-          else boneMesh.sendDatum(message); // no, send to appropriate location
+      while((count = in.read(buffer)) >= 0) { // keep serving until the remote node hangs up
+        decoder.feed(buffer, 0, count, frames);
+        for(Frame frame : frames) {
+          Frame response = null;
+          try {
+            response = process(frame, socket.getInetAddress());
+          } catch(JSONException e) { // only this message is lost; the rest of the connection is fine
+            logger.logError("HANDLER", e.getMessage());
+          }
+          if(response != null) {
+            ByteBuffer data = response.encode();
+            out.write(data.array(), data.arrayOffset(), data.remaining());
+          }
         }
-        PrintWriter out = new PrintWriter(outputStream);
-        logger.logDebug("HANDLER", String.format("Sending data: %1$s", ack.toString()));
-        out.println(ack);
+        frames.clear();
         out.flush();
+        deliver(); // the acks are out, so a slow listener can't hold them up anymore
       }
-    } catch(JSONException | IOException e) {
-      logger.logError("HANDLER", e.getMessage());
+    } catch(SocketTimeoutException e) {
+      logger.logDebug("HANDLER", "Closing idle connection.");
+    } catch(IOException e) {
+      if(!Thread.currentThread().isInterrupted()) logger.logError("HANDLER", e.getMessage());
     }
+    close();
     server.killHandler(this);
   }
   
   /**
-   * Interrupts the thread for this handler instance.
+   * Processes a single incoming frame. This is independent of the way in
+   * which the frame was read off of the wire. A message that can't be
+   * processed is answered with a rejection if it can at least be told which
+   * message it was, so that one bad message doesn't cost the connection.
+   * Messages for this node's listeners are held back until
+   * {@link #deliver()} is called.
+   * 
+   * @param frame the incoming frame
+   * @param address the address of the remote node
+   * @return the response that needs to be written back to the remote node,
+   *         or <code>null</code> if no response is necessary
+   * @throws IOException if the frame was malformed
+   */
+  public Frame process(Frame frame, InetAddress address) throws IOException {
+    if((frame.getFlags() & Frame.FLAG_DEFLATE) != 0) {
+      if(compressor == null) compressor = new FrameCompressor(server.getCompressionStatistics());
+      frame = compressor.decompress(frame,
+          server.getMaxFrameLength(),
+          boneMesh.getCompressionDictionary());
+    }
+    
+    if(frame.getType() == Frame.TYPE_BATCH) { // one ack covers the whole batch
+      List<Frame> members = frame.unbatch();
+      List<Delivery> deliveries = new ArrayList<>();
+      String sender = null;
+      MessageCodec codec = getCodec(frame);
+      try { // nothing comes of the batch unless every message in it checks out
+        for(Frame member : members) {
+          Delivery delivery = prepare(member, address);
+          deliveries.add(delivery);
+          if(sender == null) {
+            sender = delivery.message.getString("from");
+            if(member.getType() != Frame.TYPE_BYTES) codec = getCodec(member); // reply in kind
+          }
+        }
+      } catch(IOException | JSONException e) {
+        logger.logError("HANDLER", String.format("Rejecting batch %1$d: %2$s", frame.getBatchID(), e.getMessage()));
+        return frame.reply(new AckMessage(boneMesh.getInstanceLabel(),
+            sender == null ? "" : sender,
+            frame.getBatchID()).reject(), codec);
+      }
+      for(Delivery delivery : deliveries) try {
+        delivery.action.run();
+      } catch(JSONException e) { // the rest of the batch went through, so it's acknowledged anyway
+        logger.logError("HANDLER", e.getMessage());
+      }
+      AckMessage ack = new AckMessage(boneMesh.getInstanceLabel(),
+          sender == null ? "" : sender,
+          frame.getBatchID());
+      logger.logDebug("HANDLER", String.format("Sending data: %1$s", ack.toString()));
+      return frame.reply(ack, codec);
+    }
+    
+    try {
+      Delivery delivery = prepare(frame, address);
+      delivery.action.run();
+      if(delivery.ack == null) return null;
+      logger.logDebug("HANDLER", String.format("Sending data: %1$s", delivery.ack.toString()));
+      return frame.reply(delivery.ack, getCodec(frame));
+    } catch(IOException | JSONException e) {
+      logger.logError("HANDLER", String.format("Rejecting message: %1$s", e.getMessage()));
+      return reject(frame);
+    }
+  }
+  
+  // answers a message that couldn't be processed, as long as its ID can be read;
+  // otherwise, the sender would pin the rejection on whichever message is oldest
+  private Frame reject(Frame frame) {
+    try {
+      MessageCodec codec = getCodec(frame);
+      JSONObject header = frame.getType() == Frame.TYPE_BYTES
+          ? BytesMessage.decode(frame.getBody())
+          : codec.decodeHeader(frame.getBody());
+      if(!header.has("id") || AckMessage.isImplementedBy(header)) return null;
+      return frame.reply(new AckMessage(header, true).reject(), codec);
+    } catch(IOException | JSONException e) {
+      return null;
+    }
+  }
+  
+  // reads and checks a message, and works out what to do with it without doing it yet
+  private Delivery prepare(Frame frame, InetAddress address) throws IOException, JSONException {
+    if(frame.getType() == Frame.TYPE_MESSAGE || frame.getType() == Frame.TYPE_LINE) {
+      // messages for other nodes are passed on as they arrived, after reading only their routing header
+      MessageCodec codec = getCodec(frame);
+      JSONObject header = codec.decodeHeader(frame.getBody());
+      String action = header.optString("action");
+      if(header.has("from") && header.has("to")
+          && !boneMesh.getInstanceLabel().equalsIgnoreCase(header.getString("to"))
+          && !action.equals("ack") && !action.equals("hello"))
+        return new Delivery(header, new AckMessage(header, true), () -> {
+          logger.logDebug("HANDLER", String.format("Forwarding %1$s to %2$s.",
+              GenericMessage.getCorrelationID(header), header.getString("to")));
+          boneMesh.forwardDatum(header, frame.getBody(), codec);
+        });
+    }
+    
+    // raw bytes are left as they are; only their routing header is parsed
+    JSONObject json = frame.getType() == Frame.TYPE_BYTES
+        ? BytesMessage.decode(frame.getBody())
+        : getCodec(frame).decode(frame.getBody());
+    logger.logDebug("HANDLER", String.format("Received data: %1$s", json.toString()));
+    if(AckMessage.isImplementedBy(json)) {
+      AckMessage ack = new AckMessage(json, false);
+      return new Delivery(json, null, () -> {
+        logger.logDebug("HANDLER", String.format("Kicking ack back to %1$s.", ack.getTo()));
+        boneMesh.sendDatum(ack);
+      });
+    }
+    
+    AckMessage ack = new AckMessage(json, true);
+    if(DiscoveryMessage.isImplementedBy(json)) {
+      DiscoveryMessage message = new DiscoveryMessage(json); // deserialize discovery message
+      return new Delivery(json, ack, () -> {
+        logger.logDebug("HANDLER", "Received DiscoveryMessage.");
+        boneMesh.discover(message, address);
+      });
+    } else if(json instanceof BytesMessage) {
+      BytesMessage message = (BytesMessage)json;
+      if(!boneMesh.getInstanceLabel().equalsIgnoreCase(message.getTo()))
+        return new Delivery(json, ack, () -> boneMesh.sendDatum(message)); // relayed as-is, without copying the bytes
+      else if(message instanceof StreamMessage)
+        return new Delivery(json, ack, () -> boneMesh.getStreamManager().receiveChunk((StreamMessage)message));
+      return new Delivery(json, ack, () -> deliveries.add(() -> server.dispatchToListeners(message)));
+    }
+    
+    GenericMessage message = new GenericMessage(json); // attempt to deserialize message
+    if(!boneMesh.getInstanceLabel().equalsIgnoreCase(message.getTo())) // intended for us?
+      return new Delivery(json, ack, () -> boneMesh.sendDatum(message)); // no, send to appropriate location
+    else if(StreamAckMessage.isImplementedBy(json)) {
+      StreamAckMessage streamAck = new StreamAckMessage(json);
+      return new Delivery(json, ack, () -> boneMesh.getStreamManager().receiveAck(streamAck));
+    } else if(BroadcastMessage.isImplementedBy(json)) {
+      BroadcastMessage broadcast = new BroadcastMessage(json);
+      return new Delivery(json, ack, () -> {
+        if(boneMesh.forwardBroadcast(broadcast)) { // deliver it as though it had been sent to us alone
+          GenericMessage delivered = broadcast.toGenericMessage(boneMesh.getInstanceLabel());
+          deliveries.add(() -> server.dispatchToListeners(delivered));
+        }
+      });
+    }
+    return new Delivery(json, ack, () -> deliveries.add(() -> server.dispatchToListeners(json))); // yes, dispatch to listeners
+  }
+  
+  private MessageCodec getCodec(Frame frame) throws IOException {
+    MessageCodec codec = boneMesh.getCodec(frame.getCodecID());
+    if(codec == null)
+      throw new IOException(String.format("Frame was written with unknown codec %1$d.", frame.getCodecID()));
+    return codec;
+  }
+  
+  /**
+   * Hands the messages that were processed since the last call over to the
+   * listeners. Engines call this once the responses to those messages have
+   * been written, so that a listener that has fallen behind can hold up the
+   * connection but not the acks that the sender is waiting on.
+   */
+  public void deliver() {
+    for(Runnable delivery : deliveries)
+      delivery.run();
+    deliveries.clear();
+  }
+  
+  /**
+   * Frees the resources that this handler holds for its connection. Engines
+   * that hand frames to {@link #process(Frame, InetAddress)} themselves call
+   * this once the connection is closed and the last frame was processed.
+   */
+  public void close() {
+    if(compressor != null) compressor.close();
+  }
+  
+  /**
+   * Interrupts the thread for this handler instance and closes its socket.
    */
   public void kill() {
-    thread.interrupt();
+    if(thread != null) thread.interrupt();
+    if(socket != null) try {
+      socket.close();
+    } catch(IOException e) { }
   }
 
+  // a message that has been read and checked, and what is to come of it
+  private static class Delivery {
+    
+    private AckMessage ack = null;
+    private JSONObject message = null;
+    private Runnable action = null;
+    
+    private Delivery(JSONObject message, AckMessage ack, Runnable action) {
+      this.message = message;
+      this.ack = ack;
+      this.action = action;
+    }
+    
+  }
+  
 }
@@ -0,0 +1,388 @@
+/*
+ * Copyright (c) 2020 Axonibyte Innovations, LLC. All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.axonibyte.bonemesh.socket;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.axonibyte.bonemesh.Logger;
+import com.axonibyte.bonemesh.listener.ByteListener;
+import com.axonibyte.bonemesh.listener.DataListener;
+import com.axonibyte.bonemesh.message.BytesMessage;
+
+/**
+ * Delivers incoming messages to data and byte listeners off of the connection
+ * handler threads. Every listener has its own bounded queue, so a slow
+ * listener can't hold up the others, and receives messages one at a time
+ * in the order in which they arrived. A listener whose queue fills up is
+ * dealt with according to its {@link OverflowPolicy}.
+ *
+ * @author Caleb L. Power
+ */
+public class ListenerDispatcher {
+
+  /**
+   * The number of messages that a listener's queue holds by default.
+   */
+  public static final int DEFAULT_CAPACITY = 1024;
+
+  private static final int DRAIN_LIMIT = 64; // messages delivered before yielding to other listeners
+
+  private List<ListenerQueue<BytesMessage>> byteQueues = null;
+  private List<ListenerQueue<JSONObject>> dataQueues = null;
+  private Logger logger = null;
+  private ThreadPoolExecutor executor = null;
+
+  /**
+   * Overloaded constructor.
+   *
+   * @param logger the logger
+   * @param threadCount the number of delivery threads
+   */
+  public ListenerDispatcher(Logger logger, int threadCount) {
+    this.logger = logger;
+    this.byteQueues = new CopyOnWriteArrayList<>();
+    this.dataQueues = new CopyOnWriteArrayList<>();
+    this.executor = new ThreadPoolExecutor(threadCount, threadCount,
+        0L, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<>(), // holds at most one task per listener
+        r -> {
+          Thread thread = new Thread(r);
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+
+  /**
+   * Adds a listener.
+   *
+   * @param listener the data listener
+   * @param capacity the number of messages that may wait for the listener
+   * @param overflowPolicy what to do with messages that arrive while the
+   *        listener's queue is full; {@link OverflowPolicy#BLOCK} holds up
+   *        the connection that the message came in on, and
+   *        {@link OverflowPolicy#FAIL} discards the new message
+   */
+  public void addListener(DataListener listener, int capacity, OverflowPolicy overflowPolicy) {
+    validate(capacity, overflowPolicy);
+    dataQueues.add(new ListenerQueue<JSONObject>(listener, capacity, overflowPolicy) {
+      @Override protected void deliver(JSONObject message) {
+        listener.digest(message);
+      }
+    });
+  }
+
+  /**
+   * Adds a byte listener.
+   *
+   * @param listener the byte listener
+   * @param capacity the number of messages that may wait for the listener
+   * @param overflowPolicy what to do with messages that arrive while the
+   *        listener's queue is full
+   */
+  public void addListener(ByteListener listener, int capacity, OverflowPolicy overflowPolicy) {
+    validate(capacity, overflowPolicy);
+    byteQueues.add(new ListenerQueue<BytesMessage>(listener, capacity, overflowPolicy) {
+      @Override protected void deliver(BytesMessage message) {
+        listener.digest(message.getFrom(), message.getData());
+      }
+    });
+  }
+
+  /**
+   * Removes a listener. Messages that were still waiting for it are discarded.
+   *
+   * @param listener the data listener
+   */
+  public void removeListener(DataListener listener) {
+    remove(dataQueues, listener);
+  }
+
+  /**
+   * Removes a byte listener. Messages that were still waiting for it are
+   * discarded.
+   *
+   * @param listener the byte listener
+   */
+  public void removeListener(ByteListener listener) {
+    remove(byteQueues, listener);
+  }
+
+  /**
+   * Hands a message to every listener. Each listener gets its own copy of
+   * the message, as the listeners run on threads of their own and the
+   * caller may still be reading the original.
+   *
+   * @param message the message
+   */
+  public void dispatch(JSONObject message) {
+    dispatch(message, true);
+  }
+
+  /**
+   * Hands a message to every listener, optionally without waiting on
+   * listeners that have fallen behind.
+   *
+   * @param message the message
+   * @param wait <code>false</code> to drop the message for any listener whose
+   *        queue is full, whatever its overflow policy
+   */
+  public void dispatch(JSONObject message, boolean wait) {
+    for(ListenerQueue<JSONObject> queue : dataQueues)
+      queue.offer(copy(message), wait);
+  }
+
+  /**
+   * Hands raw bytes to every byte listener. Each listener gets its own
+   * view of the bytes.
+   *
+   * @param message the bytes message
+   */
+  public void dispatch(BytesMessage message) {
+    for(ListenerQueue<BytesMessage> queue : byteQueues)
+      queue.offer(message, true);
+  }
+
+  /**
+   * Retrieves the number of messages waiting for a listener.
+   *
+   * @param listener the data listener
+   * @return the number of queued messages
+   */
+  public int getBacklog(DataListener listener) {
+    return getBacklog(find(dataQueues, listener));
+  }
+
+  /**
+   * Retrieves the number of messages waiting for a byte listener.
+   *
+   * @param listener the byte listener
+   * @return the number of queued messages
+   */
+  public int getBacklog(ByteListener listener) {
+    return getBacklog(find(byteQueues, listener));
+  }
+
+  /**
+   * Retrieves the number of messages that a listener missed because its
+   * queue was full.
+   *
+   * @param listener the data listener
+   * @return the number of dropped messages
+   */
+  public long getDropCount(DataListener listener) {
+    ListenerQueue<?> queue = find(dataQueues, listener);
+    return queue == null ? 0L : queue.drops.get();
+  }
+
+  /**
+   * Retrieves the number of messages that a byte listener missed because
+   * its queue was full.
+   *
+   * @param listener the byte listener
+   * @return the number of dropped messages
+   */
+  public long getDropCount(ByteListener listener) {
+    ListenerQueue<?> queue = find(byteQueues, listener);
+    return queue == null ? 0L : queue.drops.get();
+  }
+
+  /**
+   * Sets the number of threads that deliver messages to listeners.
+   *
+   * @param threadCount the number of delivery threads
+   */
+  public void setThreadCount(int threadCount) {
+    if(threadCount < 1)
+      throw new IllegalArgumentException("Thread count must be positive.");
+    if(threadCount > executor.getMaximumPoolSize()) {
+      executor.setMaximumPoolSize(threadCount);
+      executor.setCorePoolSize(threadCount);
+    } else {
+      executor.setCorePoolSize(threadCount);
+      executor.setMaximumPoolSize(threadCount);
+    }
+  }
+
+  /**
+   * Retrieves the number of threads that deliver messages to listeners.
+   *
+   * @return the number of delivery threads
+   */
+  public int getThreadCount() {
+    return executor.getCorePoolSize();
+  }
+
+  /**
+   * Stops delivering messages.
+   */
+  public void kill() {
+    executor.shutdownNow();
+    for(ListenerQueue<?> queue : dataQueues)
+      synchronized(queue) {
+        queue.notifyAll();
+      }
+    for(ListenerQueue<?> queue : byteQueues)
+      synchronized(queue) {
+        queue.notifyAll();
+      }
+  }
+
+  private void validate(int capacity, OverflowPolicy overflowPolicy) {
+    if(capacity < 1)
+      throw new IllegalArgumentException("Capacity must be positive.");
+    if(overflowPolicy == null)
+      throw new IllegalArgumentException("Overflow policy cannot be null.");
+  }
+
+  private <T> ListenerQueue<T> find(List<ListenerQueue<T>> queues, Object listener) {
+    for(ListenerQueue<T> queue : queues)
+      if(queue.listener == listener) return queue;
+    return null;
+  }
+
+  private <T> void remove(List<ListenerQueue<T>> queues, Object listener) {
+    ListenerQueue<T> queue = find(queues, listener);
+    if(queue == null) return;
+    queues.remove(queue);
+    synchronized(queue) {
+      queue.messages.clear();
+      queue.notifyAll();
+    }
+  }
+
+  private int getBacklog(ListenerQueue<?> queue) {
+    if(queue == null) return 0;
+    synchronized(queue) {
+      return queue.messages.size();
+    }
+  }
+
+  // copies the tree directly instead of encoding and parsing it again;
+  // anything other than an object or an array is immutable, so it is shared
+  private static JSONObject copy(JSONObject original) {
+    JSONObject copy = new JSONObject();
+    for(String key : original.keySet())
+      copy.put(key, copy(original.opt(key)));
+    return copy;
+  }
+
+  private static JSONArray copy(JSONArray original) {
+    JSONArray copy = new JSONArray();
+    for(int i = 0; i < original.length(); i++)
+      copy.put(copy(original.opt(i)));
+    return copy;
+  }
+
+  private static Object copy(Object value) {
+    if(value instanceof JSONObject) return copy((JSONObject)value);
+    if(value instanceof JSONArray) return copy((JSONArray)value);
+    return value;
+  }
+
+  private abstract class ListenerQueue<T> implements Runnable {
+
+    private boolean scheduled = false;
+    private int capacity;
+    private AtomicLong drops = new AtomicLong();
+    private LinkedList<T> messages = new LinkedList<>();
+    private Object listener = null;
+    private OverflowPolicy overflowPolicy = null;
+
+    private ListenerQueue(Object listener, int capacity, OverflowPolicy overflowPolicy) {
+      this.listener = listener;
+      this.capacity = capacity;
+      this.overflowPolicy = overflowPolicy;
+    }
+
+    protected abstract void deliver(T message);
+
+    private synchronized void offer(T message, boolean wait) {
+      while(messages.size() >= capacity) {
+        if(overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+          messages.removeFirst();
+        } else if(overflowPolicy == OverflowPolicy.BLOCK && wait && !executor.isShutdown() && isRegistered()) {
+          try {
+            wait(1000L); // wake up now and then in case the dispatcher was killed
+          } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            drop();
+            return;
+          }
+          continue;
+        } else {
+          drop();
+          return;
+        }
+        drop();
+      }
+
+      messages.add(message);
+      if(scheduled) return;
+      scheduled = true;
+      try {
+        executor.execute(this);
+      } catch(RejectedExecutionException e) { } // the dispatcher is shutting down
+    }
+
+    private boolean isRegistered() {
+      return dataQueues.contains(this) || byteQueues.contains(this);
+    }
+
+    private void drop() { // hold the lock
+      if(drops.getAndIncrement() % 1000L == 0L) // don't flood the log
+        logger.logError("DISPATCH", String.format("Listener %1$s is falling behind; %2$d message(s) dropped so far.",
+            listener.getClass().getName(), drops.get()));
+    }
+
+    @Override public void run() {
+      for(int i = 0; i < DRAIN_LIMIT; i++) {
+        T message = null;
+        synchronized(this) {
+          if(messages.isEmpty()) {
+            scheduled = false;
+            return;
+          }
+          message = messages.removeFirst();
+          notifyAll(); // let blocked handlers in
+        }
+
+        try {
+          deliver(message);
+        } catch(RuntimeException e) {
+          logger.logError("DISPATCH", String.format("Listener %1$s threw %2$s: %3$s",
+              listener.getClass().getName(), e.getClass().getSimpleName(), e.getMessage()));
+        }
+      }
+
+      try {
+        executor.execute(this); // give the other listeners a turn
+      } catch(RejectedExecutionException e) { }
+    }
+
+  }
+
+}
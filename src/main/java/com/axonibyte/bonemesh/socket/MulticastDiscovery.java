@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) 2020 Axonibyte Innovations, LLC. All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.axonibyte.bonemesh.socket;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+
+import com.axonibyte.bonemesh.BoneMesh;
+import com.axonibyte.bonemesh.Logger;
+import com.axonibyte.bonemesh.message.DiscoveryMessage;
+import com.axonibyte.bonemesh.message.MessageCodec;
+import com.axonibyte.bonemesh.node.Node;
+
+/**
+ * Discovers nodes on the same network segment over UDP multicast. Every
+ * node periodically announces itself and its routes to a multicast group,
+ * and learns about the other members from their announcements, so that
+ * nodes on the segment don't have to open a connection to each other just
+ * to say hello. A node that misses several announcements in a row is
+ * marked as dead.
+ *
+ * @author Caleb L. Power
+ */
+public class MulticastDiscovery implements Runnable {
+
+  /**
+   * The multicast group that nodes announce themselves to by default.
+   */
+  public static final String DEFAULT_GROUP = "239.255.66.77";
+
+  /**
+   * The port that nodes announce themselves to by default.
+   */
+  public static final int DEFAULT_PORT = 7766;
+
+  private static final int MAX_DATAGRAM = 65507; // the largest UDP payload over IPv4
+
+  private AtomicInteger maxMissed = null;
+  private AtomicLong interval = null;
+  private BoneMesh boneMesh = null;
+  private InetSocketAddress group = null;
+  private Logger logger = null;
+  private Map<String, Long> heardBy = null; // when each node last said that it hears us
+  private Map<String, Long> lastHeard = null;
+  private MulticastSocket socket = null;
+  private NetworkInterface networkInterface = null;
+  private Thread announcer = null;
+  private Thread thread = null;
+
+  private MulticastDiscovery(BoneMesh boneMesh, Logger logger,
+      InetSocketAddress group, NetworkInterface networkInterface) {
+    this.boneMesh = boneMesh;
+    this.logger = logger;
+    this.group = group;
+    this.networkInterface = networkInterface;
+    this.interval = new AtomicLong(5000L);
+    this.maxMissed = new AtomicInteger(3);
+    this.heardBy = new ConcurrentHashMap<>();
+    this.lastHeard = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Joins a multicast group and starts announcing this node to it.
+   *
+   * @param boneMesh the BoneMesh instance
+   * @param logger the logger
+   * @param group the multicast group and port
+   * @param networkInterface the interface to announce on, or
+   *        <code>null</code> to let the system choose
+   * @return a reference to the new multicast discovery object
+   * @throws IOException if the group couldn't be joined
+   */
+  public static MulticastDiscovery build(BoneMesh boneMesh, Logger logger,
+      InetSocketAddress group, NetworkInterface networkInterface) throws IOException {
+    MulticastDiscovery discovery = new MulticastDiscovery(boneMesh, logger, group, networkInterface);
+    discovery.socket = new MulticastSocket(group.getPort());
+    try {
+      discovery.socket.setTimeToLive(1); // stay on the segment
+      discovery.socket.setLoopbackMode(false); // false enables loopback, so nodes on one host see each other
+      if(networkInterface != null) discovery.socket.setNetworkInterface(networkInterface);
+      discovery.socket.joinGroup(group, networkInterface);
+    } catch(IOException e) {
+      discovery.socket.close();
+      throw e;
+    }
+    logger.logInfo("MULTICAST", String.format("Joined %1$s:%2$d", group.getHostString(), group.getPort()));
+    discovery.thread = new Thread(discovery);
+    discovery.thread.setDaemon(true);
+    discovery.thread.start();
+    discovery.announcer = new Thread(discovery.new Announcer());
+    discovery.announcer.setDaemon(true);
+    discovery.announcer.start();
+    return discovery;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override public void run() {
+    byte[] buffer = new byte[MAX_DATAGRAM];
+    while(!thread.isInterrupted()) {
+      DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+      try {
+        socket.receive(packet);
+      } catch(IOException e) {
+        if(socket.isClosed()) return;
+        logger.logError("MULTICAST", e.getMessage());
+        continue;
+      }
+
+      try {
+        List<Frame> frames = new ArrayList<>();
+        new FrameDecoder(MAX_DATAGRAM).feed(packet.getData(), packet.getOffset(), packet.getLength(), frames);
+        for(Frame frame : frames)
+          receive(frame, packet.getAddress());
+      } catch(IOException | JSONException e) {
+        logger.logError("MULTICAST", String.format("Ignored announcement from %1$s: %2$s",
+            packet.getAddress().getHostAddress(), e.getMessage()));
+      }
+    }
+  }
+
+  private void receive(Frame frame, InetAddress address) throws IOException, JSONException {
+    MessageCodec codec = boneMesh.getCodec(frame.getCodecID());
+    if(codec == null)
+      throw new IOException(String.format("Announcement was written with unknown codec %1$d.", frame.getCodecID()));
+    DiscoveryMessage message = new DiscoveryMessage(codec.decode(frame.getBody()));
+    if(message.getFrom().equalsIgnoreCase(boneMesh.getInstanceLabel())) return; // our own
+    logger.logDebug("MULTICAST", String.format("Received announcement from %1$s.", message.getFrom()));
+    boneMesh.discover(message, address);
+    lastHeard.put(message.getFrom().toLowerCase(Locale.ROOT), System.currentTimeMillis());
+    boneMesh.setNodeAlive(message.getFrom(), true);
+  }
+
+  /**
+   * Announces this node to the group right away.
+   */
+  public void announce() {
+    Map<String, String> nextHops = new HashMap<>();
+    DiscoveryMessage message = boneMesh.createDiscoveryMessage("*",
+        boneMesh.getNodeMap().getKnownNodes(null, nextHops))
+        .setNextHops(nextHops); // so that each member can leave out the routes through itself
+    ByteBuffer data = Frame.wrap(message, true, Payload.DEFAULT_CODEC).encode(); // every member can read JSON
+    if(data.remaining() > MAX_DATAGRAM) {
+      logger.logError("MULTICAST", String.format("Announcement is too large to send (%1$d bytes).", data.remaining()));
+      return;
+    }
+    try {
+      socket.send(new DatagramPacket(data.array(), data.arrayOffset() + data.position(), data.remaining(), group));
+    } catch(IOException e) {
+      if(!socket.isClosed()) logger.logError("MULTICAST", e.getMessage());
+    }
+  }
+
+  // nodes that have gone quiet are dead, and so are the routes through them
+  private void expire() {
+    long deadline = System.currentTimeMillis() - interval.get() * maxMissed.get();
+    heardBy.values().removeIf(heard -> heard < deadline);
+    for(Entry<String, Long> heard : lastHeard.entrySet())
+      if(heard.getValue() < deadline && lastHeard.remove(heard.getKey(), heard.getValue())) {
+        Node node = boneMesh.getNodeMap().getNodeByLabel(heard.getKey());
+        String label = node == null ? heard.getKey() : node.getLabel();
+        boneMesh.getNodeMap().setNodeNeighbors(label, null);
+        boneMesh.setNodeAlive(label, false);
+      }
+  }
+
+  /**
+   * Determines whether or not a node has announced itself recently.
+   *
+   * @param label the label of the node
+   * @return <code>true</code> if the node was heard from within the
+   *         expiry period
+   */
+  public boolean isHeard(String label) {
+    Long heard = lastHeard.get(label.toLowerCase(Locale.ROOT));
+    return heard != null && heard >= System.currentTimeMillis() - interval.get() * maxMissed.get();
+  }
+  
+  /**
+   * Retrieves the labels of the nodes that have announced themselves
+   * recently, so that they can be told that they're heard.
+   *
+   * @return a list of node labels
+   */
+  public List<String> getHeard() {
+    List<String> heard = new ArrayList<>();
+    for(String label : lastHeard.keySet())
+      if(isHeard(label)) heard.add(label);
+    return heard;
+  }
+  
+  /**
+   * Records whether or not a node says that it hears this node's
+   * announcements.
+   *
+   * @param label the label of the node
+   * @param heard <code>true</code> if the node hears this node
+   */
+  public void setHeardBy(String label, boolean heard) {
+    if(heard) heardBy.put(label.toLowerCase(Locale.ROOT), System.currentTimeMillis());
+    else heardBy.remove(label.toLowerCase(Locale.ROOT));
+  }
+  
+  /**
+   * Determines whether or not a node has said recently that it hears this
+   * node's announcements. Nodes that have don't need to be sent discovery
+   * messages over TCP.
+   *
+   * @param label the label of the node
+   * @return <code>true</code> if the node said so within the expiry period
+   */
+  public boolean isHeardBy(String label) {
+    Long heard = heardBy.get(label.toLowerCase(Locale.ROOT));
+    return heard != null && heard >= System.currentTimeMillis() - interval.get() * maxMissed.get();
+  }
+
+  /**
+   * Sets the time between announcements.
+   *
+   * @param interval the interval in milliseconds
+   */
+  public void setInterval(long interval) {
+    if(interval < 1L)
+      throw new IllegalArgumentException("Interval must be positive.");
+    this.interval.set(interval);
+  }
+
+  /**
+   * Retrieves the time between announcements.
+   *
+   * @return the interval in milliseconds
+   */
+  public long getInterval() {
+    return interval.get();
+  }
+
+  /**
+   * Sets the number of announcements in a row that a node may miss before
+   * it is marked as dead.
+   *
+   * @param maxMissed the number of missed announcements
+   */
+  public void setMaxMissed(int maxMissed) {
+    if(maxMissed < 1)
+      throw new IllegalArgumentException("Missed announcement count must be positive.");
+    this.maxMissed.set(maxMissed);
+  }
+
+  /**
+   * Retrieves the number of announcements in a row that a node may miss
+   * before it is marked as dead.
+   *
+   * @return the number of missed announcements
+   */
+  public int getMaxMissed() {
+    return maxMissed.get();
+  }
+
+  /**
+   * Retrieves the multicast group that this node announces itself to.
+   *
+   * @return the group address and port
+   */
+  public InetSocketAddress getGroup() {
+    return group;
+  }
+
+  /**
+   * Retrieves the interface that this node announces itself on.
+   *
+   * @return the network interface, or <code>null</code> if the system chose one
+   */
+  public NetworkInterface getNetworkInterface() {
+    return networkInterface;
+  }
+
+  /**
+   * Leaves the multicast group and stops announcing this node.
+   */
+  public void kill() {
+    thread.interrupt();
+    announcer.interrupt();
+    try {
+      socket.leaveGroup(group, networkInterface);
+    } catch(IOException e) { }
+    socket.close();
+  }
+
+  private class Announcer implements Runnable {
+    @Override public void run() {
+      try {
+        for(;;) {
+          announce();
+          expire();
+          TimeUnit.MILLISECONDS.sleep(interval.get());
+        }
+      } catch(InterruptedException e) { }
+    }
+  }
+
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright (c) 2020 Axonibyte Innovations, LLC. All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.axonibyte.bonemesh.socket;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.axonibyte.bonemesh.BoneMesh;
+import com.axonibyte.bonemesh.Logger;
+
+/**
+ * Non-blocking server engine. Incoming connections are multiplexed over a
+ * small, fixed set of selector threads, and messages are processed on a
+ * bounded pool of worker threads. Messages arriving on the same connection
+ * are always processed in order. A connection that delivers messages faster
+ * than the workers can process them stops being read until they catch up,
+ * so that one fast peer can neither fill the heap nor hold up the others.
+ *
+ * @author Caleb L. Power
+ */
+public class NioServerEngine {
+
+  private static final int INCOMING_HIGH_WATER = 64; // frames, at which a connection stops being read
+  private static final int INCOMING_LOW_WATER = 16; // frames, at which it's read again
+
+  private int ioThreadCount;
+  private int workerThreadCount;
+  private int workerQueueCapacity;
+  private BoneMesh boneMesh = null;
+  private IoLoop[] ioLoops = null;
+  private Logger logger = null;
+  private Queue<ChannelContext> backlog = new ConcurrentLinkedQueue<>();
+  private Selector acceptSelector = null;
+  private SocketServer server = null;
+  private ThreadPoolExecutor workers = null;
+
+  /**
+   * Null constructor. Uses two I/O threads and one worker per processor.
+   */
+  public NioServerEngine() {
+    this(2, Runtime.getRuntime().availableProcessors(), 1024);
+  }
+
+  /**
+   * Overloaded constructor.
+   *
+   * @param ioThreadCount the number of selector threads
+   * @param workerThreadCount the number of message-handling threads
+   * @param workerQueueCapacity the maximum number of connections that may be
+   *        queued for a worker; any others wait in line without holding up
+   *        the selector threads
+   */
+  public NioServerEngine(int ioThreadCount, int workerThreadCount, int workerQueueCapacity) {
+    if(ioThreadCount < 1 || workerThreadCount < 1 || workerQueueCapacity < 1)
+      throw new IllegalArgumentException("Thread counts and queue capacity must be positive.");
+    this.ioThreadCount = ioThreadCount;
+    this.workerThreadCount = workerThreadCount;
+    this.workerQueueCapacity = workerQueueCapacity;
+  }
+
+  /**
+   * Binds to the listening port and accepts connections until the engine is
+   * killed or the listening socket breaks.
+   *
+   * @param boneMesh the BoneMesh instance
+   * @param logger the logger
+   * @param server the socket server that owns this engine
+   * @throws IOException if the listening socket could not be opened or broke
+   */
+  public void listen(BoneMesh boneMesh, Logger logger, SocketServer server) throws IOException {
+    this.boneMesh = boneMesh;
+    this.logger = logger;
+    this.server = server;
+
+    synchronized(this) {
+      if(workers == null) {
+        workers = new ThreadPoolExecutor(workerThreadCount, workerThreadCount,
+            0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(workerQueueCapacity),
+            r -> {
+              Thread thread = new Thread(r);
+              thread.setDaemon(true);
+              return thread;
+            },
+            (r, executor) -> { // wait in line until a worker frees up
+              if(!executor.isShutdown()) backlog.add((ChannelContext)r);
+            });
+        ioLoops = new IoLoop[ioThreadCount];
+        for(int i = 0; i < ioLoops.length; i++) {
+          ioLoops[i] = new IoLoop(Selector.open());
+          Thread thread = new Thread(ioLoops[i]);
+          thread.setDaemon(true);
+          thread.start();
+        }
+      }
+    }
+
+    try(ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        Selector selector = Selector.open()) {
+      acceptSelector = selector;
+      serverChannel.bind(new InetSocketAddress(server.getPort()));
+      serverChannel.configureBlocking(false);
+      serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+      logger.logInfo("SERVER", String.format("Opened non-blocking engine on port %1$d", server.getPort()));
+
+      int next = 0;
+      while(!Thread.currentThread().isInterrupted()) {
+        selector.select();
+        selector.selectedKeys().clear();
+        SocketChannel channel = null;
+        while((channel = serverChannel.accept()) != null) {
+          logger.logDebug("SERVER", String.format("Accepted socket connection from %1$s",
+              channel.socket().getInetAddress().getHostAddress()));
+          channel.configureBlocking(false);
+          ioLoops[next++ % ioLoops.length].register(channel);
+        }
+      }
+    } catch(ClosedSelectorException e) { }
+  }
+
+  /**
+   * Stops accepting connections, closes all open connections, and shuts down
+   * the worker pool.
+   */
+  public void kill() {
+    if(acceptSelector != null) try {
+      acceptSelector.close();
+    } catch(IOException e) { }
+    synchronized(this) {
+      if(ioLoops != null)
+        for(IoLoop ioLoop : ioLoops)
+          ioLoop.kill();
+      if(workers != null) workers.shutdownNow();
+    }
+  }
+
+  // hands connections that were turned away by a full worker queue back to the workers
+  private void dispatchBacklog() {
+    ChannelContext context = null;
+    while(workers.getQueue().remainingCapacity() > 0 && (context = backlog.poll()) != null)
+      workers.execute(context);
+  }
+
+  private class IoLoop implements Runnable {
+
+    private Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+    private Queue<ChannelContext> pendingReads = new ConcurrentLinkedQueue<>();
+    private Queue<ChannelContext> pendingWrites = new ConcurrentLinkedQueue<>();
+    private Selector selector = null;
+
+    private IoLoop(Selector selector) {
+      this.selector = selector;
+    }
+
+    private void register(SocketChannel channel) {
+      pendingChannels.add(channel);
+      selector.wakeup();
+    }
+
+    private void requestRead(ChannelContext context) {
+      pendingReads.add(context);
+      selector.wakeup();
+    }
+
+    private void requestWrite(ChannelContext context) {
+      pendingWrites.add(context);
+      selector.wakeup();
+    }
+
+    @Override public void run() {
+      try {
+        while(selector.isOpen()) {
+          selector.select(1000L);
+
+          SocketChannel channel = null;
+          while((channel = pendingChannels.poll()) != null) try {
+            channel.register(selector, SelectionKey.OP_READ, new ChannelContext(this, channel));
+          } catch(IOException e) {
+            logger.logError("SERVER", e.getMessage());
+            close(channel);
+          }
+
+          ChannelContext context = null;
+          while((context = pendingReads.poll()) != null) {
+            SelectionKey key = context.channel.keyFor(selector);
+            if(key != null && key.isValid()) synchronized(context) {
+              if(!context.paused) key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+          }
+
+          while((context = pendingWrites.poll()) != null) {
+            SelectionKey key = context.channel.keyFor(selector);
+            if(key != null && key.isValid())
+              key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+          }
+
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while(keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            context = (ChannelContext)key.attachment();
+            try {
+              if(key.isValid() && key.isReadable()) context.read(key);
+              if(key.isValid() && key.isWritable() && context.write())
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            } catch(IOException e) {
+              logger.logDebug("HANDLER", String.format("Dropping connection: %1$s", e.getMessage()));
+              key.cancel();
+              context.close();
+            }
+          }
+
+          dispatchBacklog(); // in case the workers went idle before the line formed
+
+          long idleTimeout = server.getIdleTimeout();
+          if(idleTimeout > 0L) {
+            long cutoff = System.currentTimeMillis() - idleTimeout;
+            for(SelectionKey key : selector.keys()) {
+              context = (ChannelContext)key.attachment();
+              if(context.lastActivity < cutoff) {
+                logger.logDebug("HANDLER", "Closing idle connection.");
+                key.cancel();
+                context.close();
+              }
+            }
+          }
+        }
+      } catch(ClosedSelectorException e) {
+      } catch(IOException e) {
+        logger.logError("SERVER", e.getMessage());
+      }
+    }
+
+    private void kill() {
+      try {
+        List<SelectionKey> keys = new ArrayList<>(selector.keys());
+        selector.close();
+        for(SelectionKey key : keys)
+          ((ChannelContext)key.attachment()).close();
+      } catch(ClosedSelectorException | IOException e) { }
+    }
+
+  }
+
+  private class ChannelContext implements Runnable {
+
+    private boolean closed = false;
+    private boolean paused = false;
+    private boolean processing = false;
+    private volatile long lastActivity = System.currentTimeMillis();
+    private ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+    private FrameDecoder decoder = new FrameDecoder(server.getMaxFrameLength());
+    private IncomingSocketHandler handler = null;
+    private InetAddress address = null;
+    private IoLoop ioLoop = null;
+    private LinkedList<Frame> incoming = new LinkedList<>();
+    private Queue<ByteBuffer> outgoing = new ConcurrentLinkedQueue<>();
+    private SocketChannel channel = null;
+
+    private ChannelContext(IoLoop ioLoop, SocketChannel channel) {
+      this.ioLoop = ioLoop;
+      this.channel = channel;
+      this.address = channel.socket().getInetAddress();
+      this.handler = new IncomingSocketHandler(boneMesh, logger, server);
+    }
+
+    private void read(SelectionKey key) throws IOException { // selector thread only
+      readBuffer.clear();
+      int count = channel.read(readBuffer);
+      if(count < 0) throw new IOException("Connection closed by remote node.");
+      lastActivity = System.currentTimeMillis();
+
+      List<Frame> frames = new ArrayList<>();
+      decoder.feed(readBuffer.array(), 0, count, frames);
+
+      if(!frames.isEmpty()) {
+        boolean dispatch = false;
+        synchronized(this) {
+          if(closed) return;
+          incoming.addAll(frames);
+          if(!processing) dispatch = processing = true;
+          if(!paused && incoming.size() >= INCOMING_HIGH_WATER) { // let the workers catch up
+            paused = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+          }
+        }
+        if(dispatch) workers.execute(this);
+      }
+    }
+
+    private boolean write() throws IOException { // selector thread only
+      ByteBuffer buffer = null;
+      while((buffer = outgoing.peek()) != null) {
+        channel.write(buffer);
+        if(buffer.hasRemaining()) return false;
+        outgoing.poll();
+      }
+      lastActivity = System.currentTimeMillis();
+      return true;
+    }
+
+    @Override public void run() { // worker thread only
+      boolean release = false;
+      for(int processed = 0;; processed++) {
+        if(processed == INCOMING_HIGH_WATER) { // give the other connections a turn
+          workers.execute(this);
+          break;
+        }
+        Frame frame = null;
+        boolean resume = false;
+        synchronized(this) {
+          if(incoming.isEmpty()) {
+            processing = false;
+            release = closed;
+            break;
+          }
+          frame = incoming.removeFirst();
+          if(paused && incoming.size() <= INCOMING_LOW_WATER) {
+            paused = false;
+            resume = true;
+          }
+        }
+        if(resume) ioLoop.requestRead(this);
+        lastActivity = System.currentTimeMillis(); // a backed-up connection isn't an idle one
+
+        try {
+          Frame response = handler.process(frame, address);
+          if(response != null) {
+            outgoing.add(response.encode());
+            ioLoop.requestWrite(this);
+          }
+          handler.deliver(); // the selector thread writes the ack even if a listener holds this one up
+        } catch(IOException e) { // the frames can't be trusted anymore
+          logger.logError("HANDLER", e.getMessage());
+          close(); // the handler is released once the loop comes around
+        } catch(RuntimeException e) { // only this message is lost
+          logger.logError("HANDLER", e.getMessage());
+        }
+      }
+      if(release) handler.close();
+      dispatchBacklog();
+    }
+
+    private void close() { // any thread
+      NioServerEngine.close(channel);
+      boolean idle = false;
+      synchronized(this) {
+        closed = true;
+        incoming.clear();
+        idle = !processing;
+      }
+      if(idle) handler.close(); // otherwise the worker releases it when it's done with it
+    }
+
+  }
+
+  private static void close(SocketChannel channel) {
+    try {
+      channel.close();
+    } catch(IOException e) { }
+  }
+
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2020 Axonibyte Innovations, LLC. All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.axonibyte.bonemesh.socket;
+
+/**
+ * Determines what happens to a payload that is queued for a node whose
+ * outgoing queue is already full.
+ *
+ * @author Caleb L. Power
+ */
+public enum OverflowPolicy {
+
+  /**
+   * Wait for room in the queue.
+   */
+  BLOCK,
+
+  /**
+   * Refuse the new payload.
+   */
+  FAIL,
+
+  /**
+   * Discard the oldest queued payloads to make room for the new one.
+   */
+  DROP_OLDEST
+
+}
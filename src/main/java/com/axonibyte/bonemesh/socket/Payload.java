@@ -16,12 +16,18 @@
 
 package com.axonibyte.bonemesh.socket;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.axonibyte.bonemesh.listener.AckListener;
+import com.axonibyte.bonemesh.message.BytesMessage;
+import com.axonibyte.bonemesh.message.GenericMessage;
+import com.axonibyte.bonemesh.message.JsonCodec;
+import com.axonibyte.bonemesh.message.MessageCodec;
 
 /**
  * Wrapper object to wrap user data before sending it.
@@ -31,9 +37,22 @@ import com.axonibyte.bonemesh.listener.AckListener;
  */
 public class Payload {
   
+  static final MessageCodec DEFAULT_CODEC = new JsonCodec();
+  
+  private boolean headerOnly = false;
   private boolean requeueOnFailure;
+  private boolean willRetry = false;
+  private int attempts = 0;
+  private int maxAttempts = -1;
+  private long maxAge = -1L;
+  private long sentTime = -1L;
+  private long timestamp = System.currentTimeMillis();
+  private byte[] encodedData = null;
   private List<AckListener> ackListeners = null;
   private JSONObject data = null;
+  private MessageCodec codec = null;
+  private OverflowPolicy overflowPolicy = null;
+  private SharedPayload sharedPayload = null;
   private String target = null;
   
   /**
@@ -116,8 +135,29 @@ public class Payload {
     this.requeueOnFailure = requeueOnFailure;
   }
   
+  /**
+   * Overloaded constructor for a message that is passed on in the form in
+   * which it arrived. Only the message's routing header has been decoded;
+   * the rest is decoded only if the message has to be written with another
+   * codec. Does not requeue on failure.
+   * 
+   * @param header the routing header of the message
+   * @param encodedData the message as it arrived
+   * @param codec the codec that the message was written with
+   * @param target the target node
+   * @param ackListeners ack/nak listeners
+   */
+  public Payload(JSONObject header, byte[] encodedData, MessageCodec codec,
+      String target, List<AckListener> ackListeners) {
+    this(header, target, ackListeners, false);
+    this.encodedData = encodedData;
+    this.codec = codec;
+    this.headerOnly = true;
+  }
+  
   /**
    * Retrieves the wrapped data as a JSON object.
+   * Data that is passed on as it arrived only holds its routing header.
    * 
    * @return the data as a JSON object
    */
@@ -134,6 +174,71 @@ public class Payload {
     return data.toString();
   }
 
+  /**
+   * Retrieves the serialized data, in whichever codec it was last encoded
+   * with, or as JSON if it hasn't been encoded yet. Data that is a
+   * {@link BytesMessage} is always the body of a bytes frame.
+   * 
+   * @return the serialized data
+   */
+  public synchronized byte[] getEncodedData() {
+    return getEncodedData(codec == null ? DEFAULT_CODEC : codec);
+  }
+  
+  /**
+   * Retrieves the data as serialized by a particular codec. The data is only
+   * serialized again if the codec changes, so it must not be modified after
+   * the payload has been queued.
+   * 
+   * @param codec the codec
+   * @return the serialized data
+   */
+  public synchronized byte[] getEncodedData(MessageCodec codec) {
+    if(encodedData == null || this.codec.getID() != codec.getID()) {
+      if(headerOnly) try {
+        data = this.codec.decode(encodedData);
+        headerOnly = false;
+      } catch(IOException | JSONException e) {
+        return encodedData; // it can't be translated, so it goes as it is
+      }
+      byte[] shared = null;
+      if(data instanceof BytesMessage)
+        encodedData = ((BytesMessage)data).getBody();
+      else if(sharedPayload != null && (shared = sharedPayload.getEncodedPayload(codec)) != null)
+        encodedData = codec.encode(data, shared);
+      else encodedData = codec.encode(data);
+      this.codec = codec;
+    }
+    return encodedData;
+  }
+  
+  /**
+   * Retrieves the codec that the data was last encoded with.
+   * 
+   * @return the codec, or <code>null</code> if the data hasn't been encoded
+   */
+  public synchronized MessageCodec getCodec() {
+    return codec;
+  }
+  
+  /**
+   * Retrieves the size of the serialized data.
+   * 
+   * @return the size in bytes
+   */
+  public int getSize() {
+    return getEncodedData().length;
+  }
+
+  /**
+   * Retrieves the key that pairs the wrapped message with its acknowledgement.
+   * 
+   * @return the correlation ID
+   */
+  public String getCorrelationID() {
+    return GenericMessage.getCorrelationID(data);
+  }
+
   /**
    * Retrieves the ack/nak listeners.
    * 
@@ -152,6 +257,152 @@ public class Payload {
     return requeueOnFailure;
   }
   
+  /**
+   * Retrieves the number of times that this payload has failed to send.
+   * 
+   * @return the number of failed attempts
+   */
+  public int getAttempts() {
+    return attempts;
+  }
+  
+  /**
+   * Determines whether or not this payload will be sent again after its
+   * most recent failure. NAK listeners can use this to tell a transient
+   * failure from a final one.
+   * 
+   * @return <code>true</code> if a retry has been scheduled
+   */
+  public boolean willRetry() {
+    return willRetry;
+  }
+  
+  /**
+   * Retrieves the time at which this payload was created.
+   * 
+   * @return the time in milliseconds since the UNIX epoch
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+  
+  /**
+   * Retrieves the time at which this payload was last written to a node.
+   * Round trips are measured from this time to the time the ack arrives.
+   * 
+   * @return the value of {@link System#nanoTime()} at the time, or
+   *         <code>-1</code> if this payload hasn't been sent
+   */
+  public long getSentTime() {
+    return sentTime;
+  }
+  
+  /**
+   * Retrieves the number of times that this payload is attempted before it
+   * is discarded.
+   * 
+   * @return the maximum number of attempts, 0 for no limit, or
+   *         <code>-1</code> to defer to the retry scheduler's limit
+   */
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+  
+  /**
+   * Sets the number of times that this payload is attempted before it is
+   * discarded.
+   * 
+   * @param maxAttempts the maximum number of attempts, 0 for no limit, or
+   *        <code>-1</code> to defer to the retry scheduler's limit
+   * @return this Payload object
+   */
+  public Payload setMaxAttempts(int maxAttempts) {
+    this.maxAttempts = maxAttempts;
+    return this;
+  }
+  
+  /**
+   * Retrieves the age past which this payload is no longer retried.
+   * 
+   * @return the maximum age in milliseconds, 0 for no limit, or
+   *         <code>-1</code> to defer to the retry scheduler's limit
+   */
+  public long getMaxAge() {
+    return maxAge;
+  }
+  
+  /**
+   * Sets the age past which this payload is no longer retried.
+   * 
+   * @param maxAge the maximum age in milliseconds, 0 for no limit, or
+   *        <code>-1</code> to defer to the retry scheduler's limit
+   * @return this Payload object
+   */
+  public Payload setMaxAge(long maxAge) {
+    this.maxAge = maxAge;
+    return this;
+  }
+  
+  void recordFailure() {
+    attempts++;
+    willRetry = false;
+  }
+  
+  void recordSent() {
+    sentTime = System.nanoTime();
+  }
+  
+  void setWillRetry(boolean willRetry) {
+    this.willRetry = willRetry;
+  }
+  
+  /**
+   * Retrieves the policy that applies if this payload is queued for a node
+   * whose queue is full.
+   * 
+   * @return the overflow policy, or <code>null</code> to defer to the
+   *         socket client's policy
+   */
+  public OverflowPolicy getOverflowPolicy() {
+    return overflowPolicy;
+  }
+  
+  /**
+   * Sets the policy that applies if this payload is queued for a node
+   * whose queue is full.
+   * 
+   * @param overflowPolicy the overflow policy, or <code>null</code> to defer
+   *        to the socket client's policy
+   * @return this Payload object
+   */
+  public Payload setOverflowPolicy(OverflowPolicy overflowPolicy) {
+    this.overflowPolicy = overflowPolicy;
+    return this;
+  }
+  
+  /**
+   * Retrieves the payload that this payload's message shares with others.
+   * 
+   * @return the shared payload, or <code>null</code> if it isn't shared
+   */
+  public SharedPayload getSharedPayload() {
+    return sharedPayload;
+  }
+  
+  /**
+   * Marks the message's payload as shared with other payloads, so that it
+   * is encoded only once for all of them. The shared payload must be the
+   * one that the message carries.
+   * 
+   * @param sharedPayload the shared payload, or <code>null</code> if it
+   *        isn't shared
+   * @return this Payload object
+   */
+  public Payload setSharedPayload(SharedPayload sharedPayload) {
+    this.sharedPayload = sharedPayload;
+    return this;
+  }
+  
   /**
    * Retrieves the label of the target node.
    * 
@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2020 Axonibyte Innovations, LLC. All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.axonibyte.bonemesh.socket;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.axonibyte.bonemesh.Logger;
+import com.axonibyte.bonemesh.listener.AckListener;
+import com.axonibyte.bonemesh.node.Node;
+import com.axonibyte.bonemesh.node.NodeMap;
+
+/**
+ * Holds failed payloads back until their next attempt is due. The delay
+ * doubles with every failed attempt, up to a limit, and is jittered so that
+ * payloads that failed together don't all come back at once. Payloads whose
+ * next hop is marked as dead stay parked until the node comes back, until
+ * they outlive their maximum age, or until too many others are parked behind
+ * them. Either way, they keep their room in their node's outgoing queue
+ * while they wait, and if the scheduler is killed in the meantime, they
+ * are dropped.
+ *
+ * @author Caleb L. Power
+ */
+public class RetryScheduler {
+
+  private AtomicInteger maxAttempts = null;
+  private AtomicInteger maxParked = null;
+  private AtomicLong initialDelay = null;
+  private AtomicLong maxAge = null;
+  private AtomicLong maxDelay = null;
+  private Logger logger = null;
+  private Map<String, List<Payload>> parked = null;
+  private NodeMap nodeMap = null;
+  private ScheduledExecutorService timer = null;
+  private Set<Payload> waiting = null;
+  private SocketClient socketClient = null;
+
+  /**
+   * Overloaded constructor.
+   *
+   * @param socketClient the socket client that retried payloads go back to
+   * @param nodeMap the map that knows which nodes are dead
+   * @param timer the executor that runs delayed retries
+   * @param logger the logger
+   */
+  public RetryScheduler(SocketClient socketClient, NodeMap nodeMap, ScheduledExecutorService timer, Logger logger) {
+    this.socketClient = socketClient;
+    this.nodeMap = nodeMap;
+    this.timer = timer;
+    this.logger = logger;
+    this.initialDelay = new AtomicLong(1000L);
+    this.maxDelay = new AtomicLong(60000L);
+    this.maxAttempts = new AtomicInteger(10);
+    this.maxAge = new AtomicLong(300000L);
+    this.maxParked = new AtomicInteger(1000);
+    this.parked = new HashMap<>();
+    this.waiting = new HashSet<>();
+  }
+
+  /**
+   * Determines whether or not a failed payload has any attempts left.
+   *
+   * @param payload the payload that just failed
+   * @return <code>true</code> if the payload may be sent again
+   */
+  public boolean canRetry(Payload payload) {
+    if(!payload.doRequeueOnFailure()) return false;
+
+    int maxAttempts = payload.getMaxAttempts() < 0 ? this.maxAttempts.get() : payload.getMaxAttempts();
+    if(maxAttempts > 0 && payload.getAttempts() >= maxAttempts) return false;
+
+    long maxAge = getMaxAge(payload);
+    return maxAge <= 0L
+        || System.currentTimeMillis() + getDelay(payload.getAttempts()) / 2L
+            - payload.getTimestamp() <= maxAge;
+  }
+
+  /**
+   * Holds a failed payload back until its next attempt is due.
+   *
+   * @param payload the payload that just failed
+   * @return <code>true</code> if the retry was scheduled, or <code>false</code>
+   *         if the payload has no attempts left and was discarded
+   */
+  public boolean schedule(Payload payload) {
+    if(!canRetry(payload)) {
+      logger.logDebug("RETRY", String.format("Giving up on payload %1$s after %2$d attempt(s).",
+          payload.getCorrelationID(), payload.getAttempts()));
+      return false;
+    }
+
+    long delay = getDelay(payload.getAttempts());
+    delay = delay / 2L + ThreadLocalRandom.current().nextLong(delay / 2L + 1L);
+    synchronized(parked) {
+      try {
+        timer.schedule(() -> release(payload), delay, TimeUnit.MILLISECONDS);
+      } catch(RejectedExecutionException e) { // the client is shutting down
+        return false;
+      }
+      waiting.add(payload);
+    }
+    return true;
+  }
+
+  /**
+   * Sends every payload that was parked for a node straight back to the
+   * queue. This is called once the node has been found to be alive again.
+   *
+   * @param label the label of the node
+   */
+  public void resume(String label) {
+    List<Payload> payloads = null;
+    synchronized(parked) {
+      payloads = parked.remove(label.toLowerCase(Locale.ROOT));
+    }
+    if(payloads == null) return;
+    logger.logDebug("RETRY", String.format("Resuming %1$d payload(s) for %2$s.", payloads.size(), label));
+    for(Payload payload : payloads)
+      socketClient.requeuePayload(payload);
+  }
+
+  /**
+   * Drops every payload that is waiting to be retried or is parked. This is
+   * called once the timer has been shut down, so that the listeners of
+   * payloads that will never be sent again still hear about them.
+   */
+  public void kill() {
+    List<Payload> payloads = new ArrayList<>();
+    synchronized(parked) {
+      payloads.addAll(waiting);
+      waiting.clear();
+      for(List<Payload> parkedPayloads : parked.values())
+        payloads.addAll(parkedPayloads);
+      parked.clear();
+    }
+    for(Payload payload : payloads)
+      discard(payload, "was dropped because the client was killed");
+  }
+
+  /**
+   * Retrieves the number of payloads that are parked because their next hop
+   * is dead.
+   *
+   * @return the number of parked payloads
+   */
+  public int getParkedCount() {
+    int count = 0;
+    synchronized(parked) {
+      for(List<Payload> payloads : parked.values())
+        count += payloads.size();
+    }
+    return count;
+  }
+
+  /**
+   * Sets the number of payloads that may be parked for any one dead node.
+   * Once there are more, the oldest are discarded.
+   *
+   * @param maxParked the maximum number of parked payloads per node
+   */
+  public void setMaxParked(int maxParked) {
+    if(maxParked < 1)
+      throw new IllegalArgumentException("Parked payload limit must be positive.");
+    this.maxParked.set(maxParked);
+  }
+
+  /**
+   * Retrieves the number of payloads that may be parked for any one dead
+   * node.
+   *
+   * @return the maximum number of parked payloads per node
+   */
+  public int getMaxParked() {
+    return maxParked.get();
+  }
+
+  /**
+   * Computes the delay before a payload's next attempt, before jitter.
+   *
+   * @param attempts the number of attempts that have failed so far
+   * @return the delay in milliseconds
+   */
+  public long getDelay(int attempts) {
+    long delay = initialDelay.get();
+    long maxDelay = this.maxDelay.get();
+    for(int i = 1; i < attempts && delay < maxDelay; i++)
+      delay <<= 1;
+    return Math.min(delay, maxDelay);
+  }
+
+  /**
+   * Sets the delay before a payload's first retry. Each retry after that
+   * waits twice as long as the one before it.
+   *
+   * @param initialDelay the delay in milliseconds
+   */
+  public void setInitialDelay(long initialDelay) {
+    if(initialDelay < 1L)
+      throw new IllegalArgumentException("Retry delay must be positive.");
+    this.initialDelay.set(initialDelay);
+  }
+
+  /**
+   * Retrieves the delay before a payload's first retry.
+   *
+   * @return the delay in milliseconds
+   */
+  public long getInitialDelay() {
+    return initialDelay.get();
+  }
+
+  /**
+   * Sets the longest delay between two attempts.
+   *
+   * @param maxDelay the delay in milliseconds
+   */
+  public void setMaxDelay(long maxDelay) {
+    if(maxDelay < 1L)
+      throw new IllegalArgumentException("Retry delay must be positive.");
+    this.maxDelay.set(maxDelay);
+  }
+
+  /**
+   * Retrieves the longest delay between two attempts.
+   *
+   * @return the delay in milliseconds
+   */
+  public long getMaxDelay() {
+    return maxDelay.get();
+  }
+
+  /**
+   * Sets the number of times that a payload is attempted before it is
+   * discarded, unless the payload has a limit of its own.
+   *
+   * @param maxAttempts the maximum number of attempts, or 0 for no limit
+   */
+  public void setMaxAttempts(int maxAttempts) {
+    this.maxAttempts.set(maxAttempts);
+  }
+
+  /**
+   * Retrieves the number of times that a payload is attempted before it is
+   * discarded, unless the payload has a limit of its own.
+   *
+   * @return the maximum number of attempts, or 0 for no limit
+   */
+  public int getMaxAttempts() {
+    return maxAttempts.get();
+  }
+
+  /**
+   * Sets the age past which a payload is no longer retried, unless the
+   * payload has a limit of its own.
+   *
+   * @param maxAge the maximum age in milliseconds, or 0 for no limit
+   */
+  public void setMaxAge(long maxAge) {
+    this.maxAge.set(maxAge);
+  }
+
+  /**
+   * Retrieves the age past which a payload is no longer retried, unless the
+   * payload has a limit of its own.
+   *
+   * @return the maximum age in milliseconds, or 0 for no limit
+   */
+  public long getMaxAge() {
+    return maxAge.get();
+  }
+
+  private void release(Payload payload) {
+    Node node = nodeMap.getNodeByLabel(payload.getTarget());
+    List<Payload> evicted = Collections.emptyList();
+    boolean parking = false;
+    synchronized(parked) {
+      if(!waiting.remove(payload)) return; // already dropped by kill()
+      if(node != null && !nodeMap.isAlive(node)) { // wait for the node to come back
+        parking = true;
+        List<Payload> payloads = parked.computeIfAbsent(
+            payload.getTarget().toLowerCase(Locale.ROOT), k -> new ArrayList<>());
+        payloads.add(payload);
+        if(payloads.size() > maxParked.get()) { // make room by giving up on the oldest
+          evicted = new ArrayList<>(payloads.subList(0, payloads.size() - maxParked.get()));
+          payloads.subList(0, evicted.size()).clear();
+        }
+        long maxAge = getMaxAge(payload);
+        if(maxAge > 0L) try {
+          timer.schedule(() -> expire(payload),
+              Math.max(0L, payload.getTimestamp() + maxAge - System.currentTimeMillis()),
+              TimeUnit.MILLISECONDS);
+        } catch(RejectedExecutionException e) { }
+      }
+    }
+    if(!parking) socketClient.requeuePayload(payload);
+    for(Payload eviction : evicted)
+      discard(eviction, "was evicted while its node was dead");
+  }
+
+  private void expire(Payload payload) {
+    synchronized(parked) {
+      List<Payload> payloads = parked.get(payload.getTarget().toLowerCase(Locale.ROOT));
+      if(payloads == null || !payloads.remove(payload)) return; // already resumed or evicted
+      if(payloads.isEmpty()) parked.remove(payload.getTarget().toLowerCase(Locale.ROOT));
+    }
+    discard(payload, "expired while its node was dead");
+  }
+
+  // gives up on a held-back payload, and lets its listeners know
+  private void discard(Payload payload, String reason) {
+    logger.logDebug("RETRY", String.format("Payload %1$s %2$s.", payload.getCorrelationID(), reason));
+    socketClient.forgetPayload(payload);
+    if(payload.getAckListeners() != null)
+      for(AckListener listener : payload.getAckListeners())
+        listener.receiveDrop(payload);
+  }
+
+  private long getMaxAge(Payload payload) {
+    return payload.getMaxAge() < 0L ? maxAge.get() : payload.getMaxAge();
+  }
+
+}
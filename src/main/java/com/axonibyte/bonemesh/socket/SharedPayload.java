@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2020 Axonibyte Innovations, LLC. All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.axonibyte.bonemesh.socket;
+
+import org.json.JSONObject;
+
+import com.axonibyte.bonemesh.message.MessageCodec;
+
+/**
+ * A message payload that is shared by several payloads, such as the copies
+ * of a broadcast. The payload is encoded at most once per codec, and every
+ * message that carries it reuses those bytes behind its own routing header.
+ *
+ * @author Caleb L. Power
+ */
+public class SharedPayload {
+
+  private static final byte[] UNSUPPORTED = new byte[0];
+
+  private byte[][] encodings = new byte[MessageCodec.MAX_ID + 1][];
+  private JSONObject payload = null;
+
+  /**
+   * Overloaded constructor. The payload must not be modified afterwards.
+   *
+   * @param payload the shared payload
+   */
+  public SharedPayload(JSONObject payload) {
+    this.payload = payload;
+  }
+
+  /**
+   * Retrieves the shared payload.
+   *
+   * @return the payload
+   */
+  public JSONObject getPayload() {
+    return payload;
+  }
+
+  /**
+   * Retrieves the payload as encoded by a particular codec, encoding it if
+   * this is the first time that the codec has been asked for.
+   *
+   * @param codec the codec
+   * @return the encoded payload, or <code>null</code> if the codec can't
+   *         share encoded payloads
+   */
+  public synchronized byte[] getEncodedPayload(MessageCodec codec) {
+    byte[] encoding = encodings[codec.getID()];
+    if(encoding == null) {
+      encoding = codec.encodePayload(payload);
+      encodings[codec.getID()] = encoding = encoding == null ? UNSUPPORTED : encoding;
+    }
+    return encoding == UNSUPPORTED ? null : encoding;
+  }
+
+}
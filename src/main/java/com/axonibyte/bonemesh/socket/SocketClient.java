@@ -16,15 +16,25 @@
 
 package com.axonibyte.bonemesh.socket;
 
-import java.io.BufferedReader;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -33,112 +43,800 @@ import com.axonibyte.bonemesh.BoneMesh;
 import com.axonibyte.bonemesh.Logger;
 import com.axonibyte.bonemesh.listener.AckListener;
 import com.axonibyte.bonemesh.message.AckMessage;
+import com.axonibyte.bonemesh.message.MessageCodec;
+import com.axonibyte.bonemesh.node.Feature;
 import com.axonibyte.bonemesh.node.Node;
 
 /**
- * Sends out payloads.
+ * Sends out payloads. Every target node gets its own queue so that a slow
+ * or dead node can't hold up traffic to the others; the queues are drained
+ * by a shared pool of sender threads, and each queue is drained in order.
+ * Queues are bounded, and payloads that are waiting to be retried still
+ * count against their queue; an {@link OverflowPolicy} decides what happens
+ * to payloads that don't fit.
  * 
  * @author Caleb L. Power
  */
-public class SocketClient implements Runnable {
-
+public class SocketClient {
+  
+  private static final int DRAIN_LIMIT = 32; // payloads sent before yielding to other targets
+  
+  private AtomicInteger compressionThreshold = null;
+  private AtomicInteger maxBatchBytes = null;
+  private AtomicInteger maxBatchSize = null;
+  private AtomicInteger maxQueueSize = null;
+  private AtomicInteger pipelineWindow = null;
+  private AtomicLong batchLinger = null;
+  private AtomicLong maxQueueBytes = null;
+  private AtomicLong nextBatchID = null;
+  private BatchStatistics batchStatistics = null;
   private BoneMesh boneMesh = null;
-  private List<Payload> payloadQueue = null;
+  private CompressionStatistics compressionStatistics = null;
+  private AtomicReference<OverflowPolicy> overflowPolicy = null;
+  private ConnectionPool connectionPool = null;
   private Logger logger = null;
-  private Thread thread = null;
+  private Map<String, TargetQueue> targetQueues = null;
+  private RetryScheduler retryScheduler = null;
+  private ScheduledThreadPoolExecutor senders = null;
   
   private SocketClient(BoneMesh boneMesh, Logger logger) {
     this.boneMesh = boneMesh;
     this.logger = logger;
-    this.payloadQueue = new LinkedList<>();
+    this.compressionThreshold = new AtomicInteger(1024);
+    this.compressionStatistics = new CompressionStatistics();
+    this.maxBatchBytes = new AtomicInteger(64 * 1024);
+    this.maxBatchSize = new AtomicInteger(1);
+    this.pipelineWindow = new AtomicInteger(1);
+    this.batchLinger = new AtomicLong(1000L);
+    this.maxQueueSize = new AtomicInteger(10000);
+    this.maxQueueBytes = new AtomicLong(64L * 1024 * 1024);
+    this.overflowPolicy = new AtomicReference<>(OverflowPolicy.FAIL);
+    this.nextBatchID = new AtomicLong();
+    this.batchStatistics = new BatchStatistics();
+    this.targetQueues = new ConcurrentHashMap<>();
+    this.connectionPool = ConnectionPool.build(logger);
   }
   
   /**
-   * Builds and launches a socket client thread.
+   * Builds and launches a socket client and its sender threads.
    * 
    * @param boneMesh the BoneMesh instance
    * @param logger the logger
    * @return a reference to the new socket client object
    */
   public static SocketClient build(BoneMesh boneMesh, Logger logger) {
+    return build(boneMesh, logger, 4);
+  }
+  
+  /**
+   * Builds and launches a socket client and its sender threads.
+   * 
+   * @param boneMesh the BoneMesh instance
+   * @param logger the logger
+   * @param senderCount the number of sender threads
+   * @return a reference to the new socket client object
+   */
+  public static SocketClient build(BoneMesh boneMesh, Logger logger, int senderCount) {
     SocketClient socketClient = new SocketClient(boneMesh, logger);
-    socketClient.thread = new Thread(socketClient);
-    socketClient.thread.setDaemon(true);
-    socketClient.thread.start();
+    socketClient.senders = new ScheduledThreadPoolExecutor(senderCount, r -> {
+      Thread thread = new Thread(r);
+      thread.setDaemon(true);
+      return thread;
+    });
+    socketClient.retryScheduler = new RetryScheduler(socketClient,
+        boneMesh.getNodeMap(),
+        socketClient.senders,
+        logger);
     return socketClient;
   }
   
   /**
-   * {@inheritDoc}
+   * Queues up a payload for delivery. If the target node's queue is full,
+   * the payload's overflow policy decides what happens; payloads without a
+   * policy of their own follow the client's policy.
+   * 
+   * @param payload the payload with wrapped data
+   * @return <code>true</code> if the payload was queued, or <code>false</code>
+   *         if it was refused because the queue was full
    */
-  @Override public void run() {
-    try {
-      for(;;) {
-        Payload payload = null;
-        synchronized(payloadQueue) {
-          if(payloadQueue.size() == 0) {
-            payloadQueue.wait();
-            continue; // allow for multithreading on the same instance in the future
+  public boolean queuePayload(Payload payload) {
+    TargetQueue targetQueue = targetQueues.computeIfAbsent(
+        payload.getTarget().toLowerCase(Locale.ROOT),
+        k -> new TargetQueue(payload.getTarget()));
+    OverflowPolicy policy = payload.getOverflowPolicy();
+    if(policy == null) policy = overflowPolicy.get();
+    Node node = boneMesh.getNodeMap().getNodeByLabel(payload.getTarget());
+    if(node != null) payload.getEncodedData(boneMesh.getCodec(node)); // so the size is the size on the wire
+    int size = payload.getSize();
+    List<Payload> dropped = null;
+    boolean rejected = false;
+    
+    synchronized(targetQueue) {
+      while(!targetQueue.hasRoom(size, payload.doRequeueOnFailure())) {
+        if(policy == OverflowPolicy.DROP_OLDEST && !targetQueue.payloads.isEmpty()) {
+          if(dropped == null) dropped = new ArrayList<>();
+          dropped.add(targetQueue.poll());
+        } else if(policy == OverflowPolicy.BLOCK && !senders.isShutdown()) {
+          targetQueue.waiters++;
+          try {
+            targetQueue.wait(1000L); // wake up now and then in case the client was killed
+          } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            dropped = Collections.singletonList(payload);
+            break;
+          } finally {
+            targetQueue.waiters--;
           }
-          payload = payloadQueue.remove(0);
+        } else {
+          dropped = Collections.singletonList(payload);
+          break;
         }
-        
-        DataInputStream inputStream = null;
-        DataOutputStream outputStream = null;
-        Node node = boneMesh.getNodeMap().getNodeByLabel(payload.getTarget());
-        
-        if(node != null) try(Socket socket = new Socket(node.getIP(), node.getPort())) {
-          inputStream = new DataInputStream(socket.getInputStream());
-          outputStream = new DataOutputStream(socket.getOutputStream());
-          
-          PrintWriter out = new PrintWriter(outputStream);
-          logger.logDebug("CLIENT", String.format("Sending data: %1$s", payload.getRawData()));
-          out.println(payload.getRawData());
-          out.flush();
-          
-          BufferedReader in = new BufferedReader(new InputStreamReader(inputStream));
+      }
+      
+      if(dropped == null || dropped.get(0) != payload) {
+        targetQueue.payloads.add(payload);
+        targetQueue.bytes += size;
+        targetQueue.notifyAll(); // wake up a sender that's waiting to fill a batch
+        if(!targetQueue.scheduled) {
+          targetQueue.scheduled = true;
           try {
-            JSONObject json = new JSONObject(in.readLine());
-            logger.logDebug("CLIENT", String.format("Received data: %1$s", json.toString()));
-            if(payload.getAckListeners() != null
-                && AckMessage.isImplementedBy(json))
-              for(AckListener listener : payload.getAckListeners())
-                listener.receiveAck(payload);
-          } catch(JSONException e) {
-            logger.logError("CLIENT", e.getMessage());
+            senders.execute(targetQueue);
+          } catch(RejectedExecutionException e) { // the client is shutting down
+            rejected = true;
           }
-          
-          inputStream.close();
-          outputStream.close();
-        } catch(IOException e) {
-          logger.logError("CLIENT", String.format("Ran into issues sending data: %1$s", e.getMessage()));
-          if(payload.getAckListeners() != null)
-            for(AckListener listener : payload.getAckListeners())
-              listener.receiveNak(payload);
-          if(payload.doRequeueOnFailure()) queuePayload(payload); // try again later
         }
-        
       }
-    } catch(InterruptedException e) { }
+    }
+    
+    if(rejected) targetQueue.abandon();
+    
+    if(dropped != null) {
+      logger.logError("CLIENT", String.format("Queue for %1$s is full; dropped %2$d payload(s).",
+          targetQueue.label, dropped.size()));
+      reportDrops(dropped);
+      return dropped.get(0) != payload;
+    }
+    return true;
+  }
+  
+  // puts a payload that was waiting to be retried back at the front of its
+  // queue so that it stays ahead of the ones queued after it; the overflow
+  // policy still applies, but a retry never blocks
+  void requeuePayload(Payload payload) {
+    TargetQueue targetQueue = targetQueues.computeIfAbsent(
+        payload.getTarget().toLowerCase(Locale.ROOT),
+        k -> new TargetQueue(payload.getTarget()));
+    OverflowPolicy policy = payload.getOverflowPolicy();
+    if(policy == null) policy = overflowPolicy.get();
+    List<Payload> dropped = null;
+    boolean schedule = false;
+    
+    synchronized(targetQueue) {
+      targetQueue.release(payload);
+      while(!targetQueue.hasRoom(payload.getSize(), true)) {
+        if(policy == OverflowPolicy.DROP_OLDEST && !targetQueue.payloads.isEmpty()) {
+          if(dropped == null) dropped = new ArrayList<>();
+          dropped.add(targetQueue.poll());
+        } else {
+          dropped = Collections.singletonList(payload);
+          break;
+        }
+      }
+      
+      if(dropped == null || dropped.get(0) != payload) {
+        targetQueue.requeue(Collections.singletonList(payload));
+        targetQueue.notifyAll();
+        schedule = !targetQueue.scheduled;
+        targetQueue.scheduled = true;
+      }
+    }
+    
+    if(schedule) try {
+      senders.execute(targetQueue);
+    } catch(RejectedExecutionException e) {
+      targetQueue.abandon();
+    }
+    
+    if(dropped != null) {
+      logger.logError("CLIENT", String.format("Queue for %1$s is full; dropped %2$d retried payload(s).",
+          targetQueue.label, dropped.size()));
+      reportDrops(dropped);
+    }
+  }
+  
+  // gives back the room that a payload held while it waited to be retried
+  void forgetPayload(Payload payload) {
+    TargetQueue targetQueue = targetQueues.get(payload.getTarget().toLowerCase(Locale.ROOT));
+    if(targetQueue != null) synchronized(targetQueue) {
+      targetQueue.release(payload);
+    }
   }
   
   /**
-   * Queues up a payload for delivery
+   * Retrieves the number of payloads waiting to be sent to a node.
    * 
-   * @param payload the payload with wrapped data
+   * @param target the label of the node
+   * @return the number of queued payloads
    */
-  public synchronized void queuePayload(Payload payload) {
-    synchronized(payloadQueue) {
-      payloadQueue.add(payload);
-      payloadQueue.notifyAll();
+  public int getQueueDepth(String target) {
+    TargetQueue targetQueue = targetQueues.get(target.toLowerCase(Locale.ROOT));
+    if(targetQueue == null) return 0;
+    synchronized(targetQueue) {
+      return targetQueue.payloads.size();
     }
   }
   
   /**
-   * Interrupts the socket client thread.
+   * Retrieves the number of payloads waiting to be sent to each node.
+   * 
+   * @return a map of node labels and their queue depths
+   */
+  public Map<String, Integer> getQueueDepths() {
+    Map<String, Integer> queueDepths = new HashMap<>();
+    for(TargetQueue targetQueue : targetQueues.values())
+      synchronized(targetQueue) {
+        queueDepths.put(targetQueue.label, targetQueue.payloads.size());
+      }
+    return queueDepths;
+  }
+  
+  /**
+   * Sets the maximum number of payloads that may wait in any one node's queue.
+   * 
+   * @param maxQueueSize the maximum number of queued payloads per node
+   */
+  public void setMaxQueueSize(int maxQueueSize) {
+    if(maxQueueSize < 1)
+      throw new IllegalArgumentException("Queue size must be positive.");
+    this.maxQueueSize.set(maxQueueSize);
+  }
+  
+  /**
+   * Retrieves the maximum number of payloads that may wait in any one
+   * node's queue.
+   * 
+   * @return the maximum number of queued payloads per node
+   */
+  public int getMaxQueueSize() {
+    return maxQueueSize.get();
+  }
+  
+  /**
+   * Sets the maximum combined size of the payloads waiting in any one
+   * node's queue.
+   * 
+   * @param maxQueueBytes the queue size limit in bytes
+   */
+  public void setMaxQueueBytes(long maxQueueBytes) {
+    this.maxQueueBytes.set(maxQueueBytes);
+  }
+  
+  /**
+   * Retrieves the maximum combined size of the payloads waiting in any one
+   * node's queue.
+   * 
+   * @return the queue size limit in bytes
+   */
+  public long getMaxQueueBytes() {
+    return maxQueueBytes.get();
+  }
+  
+  /**
+   * Sets the policy that applies to payloads queued for a node whose queue
+   * is full, unless the payload has a policy of its own.
+   * 
+   * @param overflowPolicy the overflow policy
+   */
+  public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+    if(overflowPolicy == null)
+      throw new IllegalArgumentException("Overflow policy cannot be null.");
+    this.overflowPolicy.set(overflowPolicy);
+  }
+  
+  /**
+   * Retrieves the policy that applies to payloads queued for a node whose
+   * queue is full, unless the payload has a policy of its own.
+   * 
+   * @return the overflow policy
+   */
+  public OverflowPolicy getOverflowPolicy() {
+    return overflowPolicy.get();
+  }
+  
+  /**
+   * Sets the number of threads that send payloads.
+   * 
+   * @param senderCount the number of sender threads
+   */
+  public void setSenderCount(int senderCount) {
+    if(senderCount < 1)
+      throw new IllegalArgumentException("Sender count must be positive.");
+    senders.setCorePoolSize(senderCount);
+  }
+  
+  /**
+   * Retrieves the number of threads that send payloads.
+   * 
+   * @return the number of sender threads
+   */
+  public int getSenderCount() {
+    return senders.getCorePoolSize();
+  }
+  
+  /**
+   * Sets the number of payloads that may be sent down a connection before
+   * their acks come back. A window of 1 waits for every ack before sending
+   * the next payload. Larger windows should only be used once every node in
+   * the network tags its acks with message IDs.
+   * 
+   * @param pipelineWindow the maximum number of unacknowledged payloads
+   */
+  public void setPipelineWindow(int pipelineWindow) {
+    if(pipelineWindow < 1)
+      throw new IllegalArgumentException("Pipeline window must be positive.");
+    this.pipelineWindow.set(pipelineWindow);
+  }
+  
+  /**
+   * Retrieves the number of payloads that may be sent down a connection
+   * before their acks come back.
+   * 
+   * @return the maximum number of unacknowledged payloads
+   */
+  public int getPipelineWindow() {
+    return pipelineWindow.get();
+  }
+  
+  /**
+   * Sets the maximum number of payloads that are packed into one frame when
+   * several are queued for the same node. A size of 1 disables batching.
+   * Batches are only sent to nodes that advertise support for them.
+   * 
+   * @param maxBatchSize the maximum number of payloads per batch
+   */
+  public void setMaxBatchSize(int maxBatchSize) {
+    if(maxBatchSize < 1)
+      throw new IllegalArgumentException("Batch size must be positive.");
+    this.maxBatchSize.set(maxBatchSize);
+  }
+  
+  /**
+   * Retrieves the maximum number of payloads that are packed into one frame.
+   * 
+   * @return the maximum number of payloads per batch
+   */
+  public int getMaxBatchSize() {
+    return maxBatchSize.get();
+  }
+  
+  /**
+   * Sets the size at which a batch is sent even if it has room for more
+   * payloads.
+   * 
+   * @param maxBatchBytes the batch size limit in bytes
+   */
+  public void setMaxBatchBytes(int maxBatchBytes) {
+    this.maxBatchBytes.set(maxBatchBytes);
+  }
+  
+  /**
+   * Retrieves the size at which a batch is sent even if it has room for
+   * more payloads.
+   * 
+   * @return the batch size limit in bytes
+   */
+  public int getMaxBatchBytes() {
+    return maxBatchBytes.get();
+  }
+  
+  /**
+   * Sets the amount of time that a partial batch waits for more payloads
+   * before it is sent anyway.
+   * 
+   * @param batchLinger the linger time in microseconds
+   */
+  public void setBatchLinger(long batchLinger) {
+    this.batchLinger.set(batchLinger);
+  }
+  
+  /**
+   * Retrieves the amount of time that a partial batch waits for more
+   * payloads before it is sent anyway.
+   * 
+   * @return the linger time in microseconds
+   */
+  public long getBatchLinger() {
+    return batchLinger.get();
+  }
+  
+  /**
+   * Retrieves counters that describe how full outgoing batches get.
+   * 
+   * @return the batch statistics
+   */
+  public BatchStatistics getBatchStatistics() {
+    return batchStatistics;
+  }
+  
+  /**
+   * Sets the smallest frame that is worth compressing. Frames are only ever
+   * compressed on links where both nodes advertise support for compression,
+   * and only if it actually makes them smaller.
+   * 
+   * @param compressionThreshold the minimum frame body length in bytes
+   */
+  public void setCompressionThreshold(int compressionThreshold) {
+    this.compressionThreshold.set(compressionThreshold);
+  }
+  
+  /**
+   * Retrieves the smallest frame that is worth compressing.
+   * 
+   * @return the minimum frame body length in bytes
+   */
+  public int getCompressionThreshold() {
+    return compressionThreshold.get();
+  }
+  
+  /**
+   * Retrieves counters that describe how well outgoing frames compress and
+   * how much time is spent compressing them.
+   * 
+   * @return the compression statistics
+   */
+  public CompressionStatistics getCompressionStatistics() {
+    return compressionStatistics;
+  }
+  
+  /**
+   * Retrieves the scheduler that holds failed payloads back until their
+   * next attempt.
+   * 
+   * @return the RetryScheduler instance
+   */
+  public RetryScheduler getRetryScheduler() {
+    return retryScheduler;
+  }
+  
+  /**
+   * Retrieves the pool of outgoing connections.
+   * 
+   * @return the ConnectionPool instance
+   */
+  public ConnectionPool getConnectionPool() {
+    return connectionPool;
+  }
+  
+  /**
+   * Stops the sender threads and closes pooled connections. Payloads that
+   * are still queued or waiting to be retried are dropped.
    */
   public void kill() {
-    thread.interrupt();
+    senders.shutdownNow();
+    connectionPool.kill();
+    retryScheduler.kill();
+    for(TargetQueue targetQueue : targetQueues.values())
+      targetQueue.abandon();
+  }
+  
+  // lets the listeners know that payloads were discarded without being sent
+  private static void reportDrops(List<Payload> dropped) {
+    for(Payload drop : dropped)
+      if(drop.getAckListeners() != null)
+        for(AckListener listener : drop.getAckListeners())
+          listener.receiveDrop(drop);
+  }
+  
+  private class TargetQueue implements Runnable {
+    
+    private boolean scheduled = false;
+    private int failures = 0;
+    private int retrying = 0;
+    private int waiters = 0;
+    private long bytes = 0L;
+    private long retryingBytes = 0L;
+    private LinkedList<Payload> payloads = new LinkedList<>();
+    private String label = null;
+    
+    private TargetQueue(String label) {
+      this.label = label;
+    }
+    
+    // an empty queue always has room, so that oversized payloads can get through; payloads
+    // waiting to be retried only crowd out others that may end up waiting, so that heartbeats
+    // still get through to find out whether or not the node is back
+    private boolean hasRoom(int size, boolean retried) { // hold the lock
+      int count = retried ? retrying : 0;
+      long countedBytes = retried ? retryingBytes : 0L;
+      return payloads.isEmpty() && count == 0
+          || payloads.size() + count < maxQueueSize.get()
+              && bytes + countedBytes + size <= maxQueueBytes.get();
+    }
+    
+    private Payload poll() { // hold the lock
+      Payload payload = payloads.removeFirst();
+      bytes -= payload.getSize();
+      if(waiters > 0) notifyAll(); // let blocked callers in
+      return payload;
+    }
+    
+    private void hold(Payload payload) { // hold the lock
+      retrying++;
+      retryingBytes += payload.getSize();
+    }
+    
+    private void release(Payload payload) { // hold the lock
+      retrying--;
+      retryingBytes -= payload.getSize();
+      if(waiters > 0) notifyAll();
+    }
+    
+    private void requeue(List<Payload> requeued) { // hold the lock
+      payloads.addAll(0, requeued);
+      for(Payload payload : requeued)
+        bytes += payload.getSize();
+    }
+    
+    // empties the queue and stops draining it
+    private List<Payload> drain() {
+      List<Payload> dropped = null;
+      synchronized(this) {
+        dropped = new ArrayList<>(payloads);
+        payloads.clear();
+        bytes = 0L;
+        scheduled = false;
+        notifyAll();
+      }
+      return dropped;
+    }
+    
+    // drops whatever is left in the queue once the senders have shut down
+    private void abandon() {
+      List<Payload> dropped = drain();
+      if(!dropped.isEmpty()) {
+        logger.logError("CLIENT", String.format("Client was killed; dropped %1$d payload(s) for %2$s.",
+            dropped.size(), label));
+        reportDrops(dropped);
+      }
+    }
+    
+    @Override public void run() {
+      Node node = boneMesh.getNodeMap().getNodeByLabel(label);
+      if(node == null) { // nowhere to send these
+        List<Payload> dropped = drain();
+        if(!dropped.isEmpty()) {
+          logger.logError("CLIENT", String.format("No route to %1$s; dropped %2$d payload(s).",
+              label, dropped.size()));
+          reportDrops(dropped);
+        }
+        return;
+      }
+      
+      Connection connection = null;
+      Map<String, List<Payload>> inFlight = new LinkedHashMap<>();
+      Set<String> inFlightIDs = new HashSet<>();
+      boolean reused = false;
+      boolean binary = node.hasFeature(Feature.BINARY_FRAMING);
+      try {
+        connection = connectionPool.borrow(node);
+        reused = connection.isReused();
+        boolean batching = binary && node.hasFeature(Feature.BATCHING) && maxBatchSize.get() > 1;
+        boolean compressing = binary
+            && node.hasFeature(Feature.COMPRESSION)
+            && boneMesh.getFeatures().contains(Feature.COMPRESSION);
+        byte[] dictionary = boneMesh.getCompressionDictionary();
+        if(node.getDictionaryID() != FrameCompressor.getDictionaryID(dictionary))
+          dictionary = null; // the remote node wouldn't be able to read it
+        MessageCodec codec = boneMesh.getCodec(node);
+        if(compressing && connection.getCompressor() == null)
+          connection.setCompressor(new FrameCompressor(compressionStatistics));
+        int sent = 0;
+        int limit = binary ? DRAIN_LIMIT : 1; // older nodes only read one message per connection
+        
+        for(;;) {
+          while(inFlight.size() < pipelineWindow.get() && sent < limit) { // fill the window
+            List<Payload> batch = new ArrayList<>();
+            List<Frame> frames = new ArrayList<>();
+            boolean full = takeBatch(batching, binary, codec, inFlightIDs, batch, frames);
+            if(batch.isEmpty()) break;
+            
+            String id = null;
+            Frame frame = null;
+            if(batch.size() == 1) {
+              id = batch.get(0).getCorrelationID();
+              frame = frames.get(0);
+            } else {
+              long batchID = nextBatchID.getAndIncrement();
+              id = AckMessage.formatBatchID(batchID);
+              frame = Frame.batch(batchID, frames);
+              batchStatistics.record(batch.size(), frame.getBody().length, full);
+            }
+            
+            for(Payload payload : batch) {
+              logger.logDebug("CLIENT", String.format("Sending %1$s (%2$d bytes).",
+                  payload.getCorrelationID(), payload.getSize()));
+              inFlightIDs.add(payload.getCorrelationID());
+              payload.recordSent();
+            }
+            inFlight.put(id, batch);
+            if(compressing)
+              frame = connection.getCompressor().compress(frame, compressionThreshold.get(), dictionary);
+            connection.send(frame);
+            sent += batch.size();
+          }
+          
+          if(inFlight.isEmpty()) break;
+          
+          Frame response = connection.receive();
+          failures = 0;
+          if((response.getFlags() & Frame.FLAG_DEFLATE) != 0) {
+            if(connection.getCompressor() == null)
+              connection.setCompressor(new FrameCompressor(compressionStatistics));
+            response = connection.getCompressor().decompress(response,
+                Frame.DEFAULT_MAX_LENGTH,
+                boneMesh.getCompressionDictionary());
+          }
+          reused = false; // the connection is evidently still good
+          List<Payload> batch = null;
+          try {
+            MessageCodec responseCodec = boneMesh.getCodec(response.getCodecID());
+            if(responseCodec == null)
+              throw new IOException(String.format("Response was written with unknown codec %1$d.",
+                  response.getCodecID()));
+            JSONObject json = responseCodec.decode(response.getBody());
+            logger.logDebug("CLIENT", String.format("Received data: %1$s", json.toString()));
+            String id = AckMessage.getAcknowledgedID(json);
+            batch = id == null // older nodes don't tag their acks
+                ? inFlight.remove(inFlight.keySet().iterator().next())
+                : inFlight.remove(id);
+            if(batch == null)
+              logger.logError("CLIENT", String.format("Received unexpected ack for %1$s.", id));
+            else if(AckMessage.isImplementedBy(json) && AckMessage.isRejection(json)) { // sending it again won't help
+              logger.logError("CLIENT", String.format("%1$s could not process %2$s; dropped %3$d payload(s).",
+                  node.getLabel(), id, batch.size()));
+              reportDrops(batch);
+            } else if(AckMessage.isImplementedBy(json)) {
+              boneMesh.getNodeMap().recordRoundTrip(node, System.nanoTime() - batch.get(0).getSentTime());
+              for(Payload payload : batch)
+                if(payload.getAckListeners() != null)
+                  for(AckListener listener : payload.getAckListeners())
+                    listener.receiveAck(payload);
+            }
+          } catch(JSONException e) { // can't tell which payload this was for, so assume the oldest
+            logger.logError("CLIENT", e.getMessage());
+            batch = inFlight.remove(inFlight.keySet().iterator().next());
+          }
+          if(batch != null)
+            for(Payload payload : batch)
+              inFlightIDs.remove(payload.getCorrelationID());
+        }
+        
+        if(binary) connectionPool.release(connection);
+        else connectionPool.invalidate(connection);
+      } catch(IOException | RuntimeException e) { // a bad address or codec mustn't wedge the queue
+        List<Payload> unacknowledged = new ArrayList<>();
+        for(List<Payload> batch : inFlight.values())
+          unacknowledged.addAll(batch);
+        if(connection != null) connectionPool.invalidate(connection);
+        
+        if(reused && e instanceof IOException && !(e instanceof SocketTimeoutException)) {
+          // the remote node probably closed an idle connection, so reconnect; a timeout can't be
+          // told apart from a slow node that already has the payloads, so it counts as a failure
+          logger.logDebug("CLIENT", String.format("Reconnecting to %1$s.", node.getLabel()));
+          synchronized(this) {
+            requeue(unacknowledged);
+          }
+        } else {
+          logger.logError("CLIENT", String.format("Ran into issues sending data: %1$s", e.getMessage()));
+          synchronized(this) {
+            if(connection == null) { // the node is unreachable, so everything for it has failed
+              unacknowledged.addAll(payloads);
+              payloads.clear();
+              bytes = 0L;
+            }
+            for(Payload payload : unacknowledged)
+              hold(payload); // until it's retried, it keeps its room in the queue
+          }
+          for(Payload payload : unacknowledged) {
+            payload.recordFailure();
+            boolean retrying = retryScheduler.schedule(payload);
+            if(!retrying) synchronized(this) {
+              release(payload);
+            }
+            payload.setWillRetry(retrying);
+            if(payload.getAckListeners() != null)
+              for(AckListener listener : payload.getAckListeners())
+                listener.receiveNak(payload);
+          }
+          
+          failures++;
+          synchronized(this) {
+            if(payloads.isEmpty()) {
+              scheduled = false;
+              return;
+            }
+          }
+          try { // hold back the rest of the queue instead of hammering the node
+            senders.schedule(this, retryScheduler.getDelay(failures), TimeUnit.MILLISECONDS);
+          } catch(RejectedExecutionException f) {
+            abandon();
+          }
+          return;
+        }
+      } catch(InterruptedException e) { // the client is probably being killed
+        if(connection != null) connectionPool.invalidate(connection); // its acks can't be matched up anymore
+        List<Payload> unacknowledged = new ArrayList<>();
+        for(List<Payload> batch : inFlight.values())
+          unacknowledged.addAll(batch);
+        synchronized(this) {
+          requeue(unacknowledged);
+          scheduled = false;
+          notifyAll();
+        }
+        if(senders.isShutdown()) abandon(); // nothing is going to send them anymore
+        Thread.currentThread().interrupt();
+        return;
+      }
+      
+      synchronized(this) {
+        if(payloads.isEmpty()) {
+          scheduled = false;
+          return;
+        }
+      }
+      
+      try {
+        senders.execute(this); // give the other nodes a turn
+      } catch(RejectedExecutionException e) {
+        abandon();
+      }
+    }
+    
+    // takes the next payload off of the queue, and if batching, keeps taking
+    // payloads until the batch is full or the linger deadline passes
+    private boolean takeBatch(boolean batching, boolean binary, MessageCodec codec, Set<String> inFlightIDs,
+        List<Payload> batch, List<Frame> frames) throws InterruptedException {
+      int bytes = 0;
+      long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(batchLinger.get());
+      for(;;) {
+        Payload payload = null;
+        synchronized(this) {
+          for(;;) {
+            payload = payloads.peekFirst();
+            if(payload != null) {
+              if(inFlightIDs.contains(payload.getCorrelationID()))
+                return false; // wait for the duplicate's ack before sending this
+              poll();
+              break;
+            }
+            long remaining = deadline - System.nanoTime();
+            if(!batching || batch.isEmpty() || remaining <= 0L) return false;
+            try {
+              TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            } catch(InterruptedException e) { // the batch goes back to where it came from
+              requeue(batch);
+              throw e;
+            }
+          }
+        }
+        
+        Frame frame = null;
+        try {
+          frame = Frame.wrap(payload, binary, codec);
+        } catch(RuntimeException e) { // it can never be sent, so it mustn't hold up the rest
+          logger.logError("CLIENT", String.format("Could not encode %1$s: %2$s",
+              payload.getCorrelationID(), e.getMessage()));
+          reportDrops(Collections.singletonList(payload));
+          continue;
+        }
+        batch.add(payload);
+        frames.add(frame);
+        bytes += frame.getBody().length;
+        if(!batching) return false;
+        if(batch.size() >= maxBatchSize.get() || bytes >= maxBatchBytes.get()) return true;
+      }
+    }
+    
   }
   
 }
@@ -22,12 +22,16 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.json.JSONObject;
 
 import com.axonibyte.bonemesh.BoneMesh;
 import com.axonibyte.bonemesh.Logger;
+import com.axonibyte.bonemesh.listener.ByteListener;
 import com.axonibyte.bonemesh.listener.DataListener;
+import com.axonibyte.bonemesh.message.BytesMessage;
 
 /**
  * Accepts incoming sockets and sends them to the handler.
@@ -36,17 +40,28 @@ import com.axonibyte.bonemesh.listener.DataListener;
  */
 public class SocketServer implements Runnable {
   
+  private static final long MAX_RETRY_DELAY = 10000L; // longest wait before listening again after a failure
+  
   private int port;
+  private AtomicInteger maxFrameLength = null;
+  private AtomicLong idleTimeout = null;
   private BoneMesh boneMesh = null;
-  private List<DataListener> dataListeners = null;
+  private CompressionStatistics compressionStatistics = null;
+  private DatagramTransport datagramTransport = null;
   private List<IncomingSocketHandler> handlers = null;
+  private ListenerDispatcher dispatcher = null;
   private Logger logger = null;
+  private NioServerEngine engine = null;
   private ServerSocket serverSocket = null;
   private Thread thread = null;
   
-  private SocketServer(BoneMesh boneMesh, Logger logger, int port) {
+  private SocketServer(BoneMesh boneMesh, Logger logger, int port, NioServerEngine engine) {
     this.port = port;
-    this.dataListeners = new CopyOnWriteArrayList<>();
+    this.engine = engine;
+    this.idleTimeout = new AtomicLong(60000L);
+    this.maxFrameLength = new AtomicInteger(Frame.DEFAULT_MAX_LENGTH);
+    this.compressionStatistics = new CompressionStatistics();
+    this.dispatcher = new ListenerDispatcher(logger, 2);
     this.handlers = new CopyOnWriteArrayList<>();
     this.logger = logger;
     this.boneMesh = boneMesh;
@@ -61,7 +76,26 @@ public class SocketServer implements Runnable {
    * @return a reference to the new socket server object
    */
   public static SocketServer build(BoneMesh boneMesh, Logger logger, int port) {
-    SocketServer socketServer = new SocketServer(boneMesh, logger, port);
+    return build(boneMesh, logger, port, null);
+  }
+  
+  /**
+   * Builds and launches a socket server thread.
+   * 
+   * @param boneMesh the BoneMesh instance
+   * @param logger the logger
+   * @param port the listening port
+   * @param engine the non-blocking engine to serve connections with, or
+   *        <code>null</code> to dedicate a thread to each connection
+   * @return a reference to the new socket server object
+   */
+  public static SocketServer build(BoneMesh boneMesh, Logger logger, int port, NioServerEngine engine) {
+    SocketServer socketServer = new SocketServer(boneMesh, logger, port, engine);
+    try {
+      socketServer.datagramTransport = DatagramTransport.build(boneMesh, logger, socketServer, port);
+    } catch(IOException e) { // carry on without datagrams; they aren't advertised
+      logger.logError("SERVER", String.format("Could not open datagram port %1$d: %2$s", port, e.getMessage()));
+    }
     socketServer.thread = new Thread(socketServer);
     socketServer.thread.setDaemon(true);
     socketServer.thread.start();
@@ -72,13 +106,29 @@ public class SocketServer implements Runnable {
    * {@inheritDoc}
    */
   @Override public void run() {
+    int failures = 0;
     while(!thread.isInterrupted()) { // keep the server alive
+      if(engine != null) {
+        try {
+          engine.listen(boneMesh, logger, this);
+          failures = 0;
+        } catch(BindException e) {
+          logger.logError("SERVER", e.getMessage());
+          throw new RuntimeException(e);
+        } catch(IOException e) {
+          logger.logError("SERVER", e.getMessage());
+          if(!backOff(++failures)) return;
+        }
+        continue;
+      }
+      
       try {
         serverSocket = new ServerSocket(port);
         logger.logInfo("SERVER", String.format("Opened on port %1$d", port));
         Socket socket = null;
         serverSocket.setSoTimeout(0);
         while((socket = serverSocket.accept()) != null) {
+          failures = 0;
           logger.logDebug("SERVER", String.format("Accepted socket connection from %1$s",
               socket.getInetAddress().getHostAddress()));
           IncomingSocketHandler handler = new IncomingSocketHandler(boneMesh, logger);
@@ -95,18 +145,55 @@ public class SocketServer implements Runnable {
       if(serverSocket != null) try {
         serverSocket.close();
       } catch(IOException e) { }
+      if(!backOff(++failures)) return;
+    }
+  }
+  
+  // waits a little longer after each consecutive failure so that a lasting
+  // problem, like running out of file descriptors, doesn't turn into a spin;
+  // returns false if the server was killed in the meantime
+  private boolean backOff(int failures) {
+    long delay = Math.min(100L << Math.min(failures - 1, 16), MAX_RETRY_DELAY);
+    try {
+      Thread.sleep(delay);
+      return true;
+    } catch(InterruptedException e) {
+      return false;
     }
   }
   
   /**
    * Dispatches received messages to the listeners.
-   * Called exclusively by handlers.
+   * Called exclusively by handlers. Listeners are run on the dispatcher's
+   * own threads, so this only blocks if a listener with the
+   * {@link OverflowPolicy#BLOCK} policy has fallen behind.
    * 
    * @param json the payload.
    */
   public void dispatchToListeners(JSONObject json) {
-    for(DataListener listener : dataListeners)
-      listener.digest(json); // potentially blocking, TODO fix later
+    dispatcher.dispatch(json);
+  }
+  
+  /**
+   * Dispatches received messages to the listeners, optionally without
+   * waiting on listeners that have fallen behind.
+   * 
+   * @param json the payload
+   * @param wait <code>false</code> to drop the message for any listener
+   *        whose queue is full, whatever its overflow policy
+   */
+  public void dispatchToListeners(JSONObject json, boolean wait) {
+    dispatcher.dispatch(json, wait);
+  }
+  
+  /**
+   * Dispatches received raw bytes to the byte listeners.
+   * Called exclusively by handlers.
+   * 
+   * @param message the bytes message
+   */
+  public void dispatchToListeners(BytesMessage message) {
+    dispatcher.dispatch(message);
   }
   
   /**
@@ -123,6 +210,9 @@ public class SocketServer implements Runnable {
    */
   public void kill() {
     thread.interrupt();
+    dispatcher.kill();
+    if(datagramTransport != null) datagramTransport.kill();
+    if(engine != null) engine.kill();
     if(serverSocket != null) try {
       serverSocket.close();
     } catch(IOException e) { }
@@ -131,12 +221,26 @@ public class SocketServer implements Runnable {
   }
   
   /**
-   * Adds a data listener to the workflow.
+   * Adds a data listener to the workflow. The listener gets a queue of
+   * default capacity, and holds up incoming connections, though not their
+   * acks, if it falls behind.
    * 
    * @param listener the data listener
    */
   public void addDataListener(DataListener listener) {
-    dataListeners.add(listener);
+    addDataListener(listener, ListenerDispatcher.DEFAULT_CAPACITY, OverflowPolicy.BLOCK);
+  }
+  
+  /**
+   * Adds a data listener to the workflow.
+   * 
+   * @param listener the data listener
+   * @param capacity the number of messages that may wait for the listener
+   * @param overflowPolicy what to do with messages that arrive while the
+   *        listener's queue is full
+   */
+  public void addDataListener(DataListener listener, int capacity, OverflowPolicy overflowPolicy) {
+    dispatcher.addListener(listener, capacity, overflowPolicy);
   }
   
   /**
@@ -145,7 +249,109 @@ public class SocketServer implements Runnable {
    * @param listener the data listener
    */
   public void removeDataListener(DataListener listener) {
-    dataListeners.remove(listener);
+    dispatcher.removeListener(listener);
+  }
+  
+  /**
+   * Adds a byte listener to the workflow. The listener gets a queue of
+   * default capacity, and holds up incoming connections, though not their
+   * acks, if it falls behind.
+   * 
+   * @param listener the byte listener
+   */
+  public void addByteListener(ByteListener listener) {
+    addByteListener(listener, ListenerDispatcher.DEFAULT_CAPACITY, OverflowPolicy.BLOCK);
+  }
+  
+  /**
+   * Adds a byte listener to the workflow.
+   * 
+   * @param listener the byte listener
+   * @param capacity the number of messages that may wait for the listener
+   * @param overflowPolicy what to do with messages that arrive while the
+   *        listener's queue is full
+   */
+  public void addByteListener(ByteListener listener, int capacity, OverflowPolicy overflowPolicy) {
+    dispatcher.addListener(listener, capacity, overflowPolicy);
+  }
+  
+  /**
+   * Removes a particular byte listener from the workflow.
+   * 
+   * @param listener the byte listener
+   */
+  public void removeByteListener(ByteListener listener) {
+    dispatcher.removeListener(listener);
+  }
+  
+  /**
+   * Retrieves the transport that sends and receives best-effort datagrams.
+   * 
+   * @return the DatagramTransport instance, or <code>null</code> if the
+   *         datagram port couldn't be opened
+   */
+  public DatagramTransport getDatagramTransport() {
+    return datagramTransport;
+  }
+  
+  /**
+   * Retrieves the stage that delivers messages to data listeners.
+   * 
+   * @return the ListenerDispatcher instance
+   */
+  public ListenerDispatcher getListenerDispatcher() {
+    return dispatcher;
+  }
+  
+  /**
+   * Sets the amount of time that an incoming connection may sit idle before
+   * it is closed. This should be longer than the idle timeout of the remote
+   * nodes' connection pools.
+   * 
+   * @param idleTimeout the timeout in milliseconds, or 0 to never time out
+   */
+  public void setIdleTimeout(long idleTimeout) {
+    this.idleTimeout.set(idleTimeout);
+  }
+  
+  /**
+   * Retrieves the amount of time that an incoming connection may sit idle
+   * before it is closed.
+   * 
+   * @return the timeout in milliseconds
+   */
+  public long getIdleTimeout() {
+    return idleTimeout.get();
+  }
+  
+  /**
+   * Retrieves counters that describe the time spent decompressing
+   * incoming frames.
+   * 
+   * @return the compression statistics
+   */
+  public CompressionStatistics getCompressionStatistics() {
+    return compressionStatistics;
+  }
+  
+  /**
+   * Sets the largest frame that will be accepted from a remote node.
+   * Connections that send larger frames are dropped. The limit also
+   * applies to frames after they've been decompressed.
+   * 
+   * @param maxFrameLength the maximum frame body length in bytes
+   */
+  public void setMaxFrameLength(int maxFrameLength) {
+    this.maxFrameLength.set(maxFrameLength);
+  }
+  
+  /**
+   * Retrieves the largest frame that will be accepted from a remote node.
+   * 
+   * @return the maximum frame body length in bytes
+   */
+  public int getMaxFrameLength() {
+    return maxFrameLength.get();
   }
   
   /**
@@ -0,0 +1,564 @@
+/*
+ * Copyright (c) 2020 Axonibyte Innovations, LLC. All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.axonibyte.bonemesh.socket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.axonibyte.bonemesh.BoneMesh;
+import com.axonibyte.bonemesh.Logger;
+import com.axonibyte.bonemesh.listener.StreamListener;
+import com.axonibyte.bonemesh.message.StreamAckMessage;
+import com.axonibyte.bonemesh.message.StreamMessage;
+
+/**
+ * Sends and receives streams that are too large to be held in memory as a
+ * single message. A stream is cut into numbered chunks that travel as raw
+ * bytes, so relays pass them on without reassembling or parsing them. The
+ * receiver sends credit back as the chunks are read, and the sender never
+ * has more than a window's worth of chunks unaccounted for, so no node on
+ * the path ever holds more than that for any one stream. Chunks that go
+ * missing are sent again once the stream has been quiet for too long.
+ *
+ * @author Caleb L. Power
+ */
+public class StreamManager {
+
+  private static final AtomicLong nextID = new AtomicLong(new SecureRandom().nextLong() >>> 1);
+  private static final int MAX_FINISHED = 1024; // recently finished streams remembered for late duplicates
+  private static final long CANCELLED = -2L;
+
+  private AtomicInteger chunkSize = null;
+  private AtomicInteger maxInboundStreams = null;
+  private AtomicInteger maxStalls = null;
+  private AtomicInteger window = null;
+  private AtomicLong timeout = null;
+  private AtomicReference<StreamListener> listener = null;
+  private BoneMesh boneMesh = null;
+  private ExecutorService executor = null;
+  private Logger logger = null;
+  private Map<Long, OutboundStream> outbound = null;
+  private Map<String, InboundStream> inbound = null;
+  private Map<String, Long> finished = null;
+
+  /**
+   * Overloaded constructor.
+   *
+   * @param boneMesh the BoneMesh instance
+   * @param logger the logger
+   */
+  public StreamManager(BoneMesh boneMesh, Logger logger) {
+    this.boneMesh = boneMesh;
+    this.logger = logger;
+    this.chunkSize = new AtomicInteger(64 * 1024);
+    this.window = new AtomicInteger(16);
+    this.timeout = new AtomicLong(30000L);
+    this.maxStalls = new AtomicInteger(3);
+    this.maxInboundStreams = new AtomicInteger(64);
+    this.listener = new AtomicReference<>();
+    this.outbound = new ConcurrentHashMap<>();
+    this.inbound = new ConcurrentHashMap<>();
+    this.finished = Collections.synchronizedMap(new LinkedHashMap<String, Long>() {
+      private static final long serialVersionUID = 1L;
+      @Override protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+        return size() > MAX_FINISHED;
+      }
+    });
+    this.executor = Executors.newCachedThreadPool(r -> {
+      Thread thread = new Thread(r);
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Streams the contents of a channel to a node. The channel is read on a
+   * thread of its own, one chunk at a time, and only as fast as the
+   * receiver reads. The channel should be in blocking mode, and is not
+   * closed once the stream ends.
+   *
+   * @param target the recipient node
+   * @param channel the channel to read from
+   * @return a future that completes with the number of bytes sent once the
+   *         receiver has read all of them, and fails if the stream couldn't
+   *         be read, was cancelled by the receiver, or stalled; cancelling
+   *         the future aborts the stream
+   */
+  public CompletableFuture<Long> send(String target, ReadableByteChannel channel) {
+    OutboundStream stream = new OutboundStream(target, channel);
+    outbound.put(stream.id, stream);
+    try {
+      executor.execute(stream);
+    } catch(RejectedExecutionException e) {
+      outbound.remove(stream.id);
+      stream.future.completeExceptionally(new IOException("Stream manager has been shut down."));
+    }
+    return stream.future;
+  }
+
+  /**
+   * Takes in a chunk that was addressed to this node. This never blocks;
+   * chunks are held until the stream's reader gets to them.
+   *
+   * @param message the chunk
+   */
+  public void receiveChunk(StreamMessage message) {
+    String key = String.format("%1$s#%2$d", message.getFrom().toLowerCase(Locale.ROOT), message.getStreamID());
+    InboundStream stream = inbound.get(key);
+    if(stream == null) {
+      Long last = finished.get(key);
+      if(last != null) { // a late duplicate, perhaps because our last credit went missing
+        sendAck(message.getFrom(), message.getStreamID(), last == CANCELLED ? -1L : last, last == CANCELLED);
+        return;
+      }
+      if(message.isAbort()) return;
+
+      StreamListener listener = this.listener.get();
+      if(listener == null || inbound.size() >= maxInboundStreams.get()) {
+        logger.logError("STREAM", String.format("Refusing stream %1$s.", key));
+        finished.put(key, CANCELLED);
+        sendAck(message.getFrom(), message.getStreamID(), -1L, true);
+        return;
+      }
+
+      InboundStream newStream = new InboundStream(key, message.getFrom(), message.getStreamID());
+      stream = inbound.putIfAbsent(key, newStream);
+      if(stream == null) {
+        stream = newStream;
+        try {
+          executor.execute(() -> {
+            try {
+              listener.receiveStream(newStream.from, newStream.id, newStream);
+            } catch(RuntimeException e) {
+              logger.logError("STREAM", String.format("Listener threw %1$s: %2$s",
+                  e.getClass().getSimpleName(), e.getMessage()));
+            } finally {
+              newStream.close();
+            }
+          });
+        } catch(RejectedExecutionException e) {
+          inbound.remove(key);
+          return;
+        }
+      }
+    }
+    stream.offer(message);
+  }
+
+  /**
+   * Takes in credit for a stream that this node is sending.
+   *
+   * @param message the stream acknowledgement
+   */
+  public void receiveAck(StreamAckMessage message) {
+    OutboundStream stream = outbound.get(message.getStreamID());
+    if(stream == null || !stream.target.equalsIgnoreCase(message.getFrom())) return;
+    synchronized(stream) {
+      if(message.isCancel()) stream.cancelled = true;
+      if(message.getSequence() > stream.acked) {
+        stream.acked = message.getSequence();
+        while(!stream.unacked.isEmpty() && stream.unacked.peekFirst().getSequence() <= stream.acked)
+          stream.unacked.removeFirst();
+      }
+      stream.notifyAll();
+    }
+  }
+
+  /**
+   * Sets the listener that incoming streams are handed to. Streams that
+   * arrive while there is no listener are refused.
+   *
+   * @param listener the stream listener, or <code>null</code> for none
+   */
+  public void setStreamListener(StreamListener listener) {
+    this.listener.set(listener);
+  }
+
+  /**
+   * Retrieves the listener that incoming streams are handed to.
+   *
+   * @return the stream listener, or <code>null</code> if there is none
+   */
+  public StreamListener getStreamListener() {
+    return listener.get();
+  }
+
+  /**
+   * Sets the size of the chunks that outgoing streams are cut into.
+   *
+   * @param chunkSize the chunk size in bytes
+   */
+  public void setChunkSize(int chunkSize) {
+    if(chunkSize < 1 || chunkSize > Frame.DEFAULT_MAX_LENGTH / 2)
+      throw new IllegalArgumentException("Chunk size is out of range.");
+    this.chunkSize.set(chunkSize);
+  }
+
+  /**
+   * Retrieves the size of the chunks that outgoing streams are cut into.
+   *
+   * @return the chunk size in bytes
+   */
+  public int getChunkSize() {
+    return chunkSize.get();
+  }
+
+  /**
+   * Sets the number of chunks that an outgoing stream may have in flight
+   * before it waits for credit. Each node on the path holds at most this
+   * many chunks of the stream at once. Incoming streams are held to the
+   * same window, whatever their senders advertise.
+   *
+   * @param window the window in chunks
+   */
+  public void setWindow(int window) {
+    if(window < 1)
+      throw new IllegalArgumentException("Window must be positive.");
+    this.window.set(window);
+  }
+
+  /**
+   * Retrieves the number of chunks that an outgoing stream may have in
+   * flight before it waits for credit.
+   *
+   * @return the window in chunks
+   */
+  public int getWindow() {
+    return window.get();
+  }
+
+  /**
+   * Sets the amount of time that a stream may go quiet. A sender that
+   * hears nothing for this long sends its unacknowledged chunks again, and
+   * a reader that receives nothing for this long gives up.
+   *
+   * @param timeout the timeout in milliseconds
+   */
+  public void setTimeout(long timeout) {
+    if(timeout < 1L)
+      throw new IllegalArgumentException("Timeout must be positive.");
+    this.timeout.set(timeout);
+  }
+
+  /**
+   * Retrieves the amount of time that a stream may go quiet.
+   *
+   * @return the timeout in milliseconds
+   */
+  public long getTimeout() {
+    return timeout.get();
+  }
+
+  /**
+   * Sets the number of times in a row that a sender may time out before it
+   * gives up on a stream.
+   *
+   * @param maxStalls the maximum number of consecutive timeouts
+   */
+  public void setMaxStalls(int maxStalls) {
+    this.maxStalls.set(maxStalls);
+  }
+
+  /**
+   * Retrieves the number of times in a row that a sender may time out
+   * before it gives up on a stream.
+   *
+   * @return the maximum number of consecutive timeouts
+   */
+  public int getMaxStalls() {
+    return maxStalls.get();
+  }
+
+  /**
+   * Sets the number of incoming streams that may be open at once. Streams
+   * beyond that are refused.
+   *
+   * @param maxInboundStreams the maximum number of incoming streams
+   */
+  public void setMaxInboundStreams(int maxInboundStreams) {
+    this.maxInboundStreams.set(maxInboundStreams);
+  }
+
+  /**
+   * Retrieves the number of incoming streams that may be open at once.
+   *
+   * @return the maximum number of incoming streams
+   */
+  public int getMaxInboundStreams() {
+    return maxInboundStreams.get();
+  }
+
+  /**
+   * Retrieves the number of streams that this node is sending.
+   *
+   * @return the number of outgoing streams
+   */
+  public int getOutboundCount() {
+    return outbound.size();
+  }
+
+  /**
+   * Retrieves the number of streams that this node is receiving.
+   *
+   * @return the number of incoming streams
+   */
+  public int getInboundCount() {
+    return inbound.size();
+  }
+
+  /**
+   * Aborts every stream and stops the stream threads.
+   */
+  public void kill() {
+    executor.shutdownNow();
+    for(OutboundStream stream : outbound.values())
+      stream.future.completeExceptionally(new IOException("Stream manager has been shut down."));
+    for(InboundStream stream : inbound.values())
+      synchronized(stream) {
+        stream.aborted = true;
+        stream.notifyAll();
+      }
+  }
+
+  private void sendAck(String to, long streamID, long sequence, boolean cancel) {
+    boneMesh.sendDatum(new StreamAckMessage(boneMesh.getInstanceLabel(), to, streamID, sequence, cancel),
+        true,
+        OverflowPolicy.FAIL); // a lost ack is made up for when the sender times out
+  }
+
+  private class OutboundStream implements Runnable {
+
+    private boolean cancelled = false;
+    private int window;
+    private long acked = -1L;
+    private long id = nextID.getAndIncrement() & Long.MAX_VALUE;
+    private ArrayDeque<StreamMessage> unacked = new ArrayDeque<>();
+    private CompletableFuture<Long> future = new CompletableFuture<>();
+    private ReadableByteChannel channel = null;
+    private String target = null;
+
+    private OutboundStream(String target, ReadableByteChannel channel) {
+      this.target = target;
+      this.channel = channel;
+      this.window = StreamManager.this.window.get();
+      future.whenComplete((r, e) -> { // wake the sender if the caller cancels
+        synchronized(this) {
+          notifyAll();
+        }
+      });
+    }
+
+    @Override public void run() {
+      long sequence = 0L;
+      long total = 0L;
+      try {
+        ByteBuffer buffer = ByteBuffer.allocate(chunkSize.get());
+        boolean eof = false;
+        while(!eof) {
+          awaitAck(sequence - window); // wait for room in the window
+          buffer.clear();
+          while(buffer.hasRemaining() && !eof) {
+            int count = channel.read(buffer);
+            if(count < 0) eof = true;
+            else if(count == 0) Thread.yield(); // the channel isn't blocking
+          }
+          buffer.flip();
+          total += buffer.remaining();
+          StreamMessage chunk = new StreamMessage(boneMesh.getInstanceLabel(),
+              target, id, sequence++, window, eof, false, buffer);
+          synchronized(this) {
+            unacked.addLast(chunk);
+          }
+          send(chunk);
+        }
+        awaitAck(sequence - 1L); // wait for the receiver to read everything
+        logger.logDebug("STREAM", String.format("Sent %1$d bytes to %2$s in %3$d chunk(s).", total, target, sequence));
+        future.complete(total);
+      } catch(IOException e) {
+        logger.logError("STREAM", String.format("Stream to %1$s failed: %2$s", target, e.getMessage()));
+        abort(sequence);
+        future.completeExceptionally(e);
+      } catch(InterruptedException e) {
+        abort(sequence);
+        future.completeExceptionally(new IOException("Stream was interrupted."));
+      } finally {
+        outbound.remove(id);
+      }
+    }
+
+    private void awaitAck(long sequence) throws IOException, InterruptedException {
+      int stalls = 0;
+      for(;;) {
+        List<StreamMessage> resend = null;
+        synchronized(this) {
+          long before = acked;
+          long deadline = System.currentTimeMillis() + timeout.get();
+          for(;;) {
+            if(acked >= sequence) return;
+            if(cancelled) throw new IOException("Stream was cancelled by the receiver.");
+            if(future.isDone()) throw new IOException("Stream was cancelled.");
+            if(acked > before) break;
+            long remaining = deadline - System.currentTimeMillis();
+            if(remaining <= 0L) break;
+            wait(remaining);
+          }
+          if(acked > before) stalls = 0;
+          else if(++stalls > maxStalls.get()) throw new IOException("Stream stalled.");
+          else resend = new ArrayList<>(unacked);
+        }
+        if(resend != null) {
+          logger.logDebug("STREAM", String.format("Stream %1$d stalled; resending %2$d chunk(s).", id, resend.size()));
+          for(StreamMessage chunk : resend)
+            send(chunk);
+        }
+      }
+    }
+
+    private void send(StreamMessage chunk) throws IOException {
+      if(!boneMesh.sendDatum(chunk, true, OverflowPolicy.BLOCK)) // block rather than outrun the network
+        throw new IOException(String.format("Couldn't queue chunk %1$d for %2$s.", chunk.getSequence(), target));
+    }
+
+    private void abort(long sequence) {
+      synchronized(this) {
+        if(cancelled) return; // the receiver already knows
+      }
+      boneMesh.sendDatum(new StreamMessage(boneMesh.getInstanceLabel(),
+          target, id, sequence, window, true, true, ByteBuffer.allocate(0)),
+          true,
+          OverflowPolicy.FAIL);
+    }
+
+  }
+
+  private class InboundStream extends InputStream {
+
+    private boolean aborted = false;
+    private boolean closed = false;
+    private int window = 1;
+    private long id;
+    private long lastAcked = -1L;
+    private long lastSequence = -1L;
+    private long nextSequence = 0L;
+    private long lastActivity = System.currentTimeMillis();
+    private ByteBuffer current = null;
+    private String from = null;
+    private String key = null;
+    private TreeMap<Long, StreamMessage> pending = new TreeMap<>();
+
+    private InboundStream(String key, String from, long id) {
+      this.key = key;
+      this.from = from;
+      this.id = id;
+    }
+
+    private synchronized void offer(StreamMessage message) {
+      if(closed) return;
+      long sequence = message.getSequence();
+      window = Math.max(1, Math.min(message.getWindow(), StreamManager.this.window.get())); // our memory, our limit
+      lastActivity = System.currentTimeMillis();
+      if(message.isAbort()) {
+        aborted = true;
+      } else if(sequence < nextSequence || pending.containsKey(sequence)) {
+        sendAck(from, id, nextSequence - 1L, false); // a resend; our credit may have gone missing
+      } else if(sequence <= nextSequence + window) { // anything further out breaks the window
+        pending.put(sequence, message);
+        if(message.isLast()) lastSequence = sequence;
+      }
+      notifyAll();
+    }
+
+    @Override public int read() throws IOException {
+      byte[] b = new byte[1];
+      int count = read(b, 0, 1);
+      return count < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override public synchronized int read(byte[] b, int off, int len) throws IOException {
+      if(off < 0 || len < 0 || len > b.length - off) throw new IndexOutOfBoundsException();
+      if(len == 0) return 0;
+      while(current == null || !current.hasRemaining()) {
+        if(closed) throw new IOException("Stream closed.");
+        if(lastSequence >= 0L && nextSequence > lastSequence) return -1;
+        StreamMessage message = pending.remove(nextSequence);
+        if(message != null) {
+          current = message.getData();
+          if(nextSequence - lastAcked >= Math.max(1, window / 2) || nextSequence == lastSequence) {
+            sendAck(from, id, nextSequence, false);
+            lastAcked = nextSequence;
+          }
+          nextSequence++;
+          continue;
+        }
+        if(aborted) throw new IOException("Stream was aborted by the sender.");
+        long remaining = lastActivity + timeout.get() - System.currentTimeMillis();
+        if(remaining <= 0L) throw new IOException("Stream timed out.");
+        try {
+          wait(remaining);
+        } catch(InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Stream read was interrupted.");
+        }
+      }
+      int count = Math.min(len, current.remaining());
+      current.get(b, off, count);
+      return count;
+    }
+
+    @Override public synchronized int available() {
+      return current == null ? 0 : current.remaining();
+    }
+
+    @Override public void close() {
+      boolean complete = false;
+      boolean aborted = false;
+      synchronized(this) {
+        if(closed) return;
+        closed = true;
+        aborted = this.aborted;
+        complete = lastSequence >= 0L && nextSequence > lastSequence;
+        pending.clear();
+        current = null;
+        notifyAll();
+      }
+      inbound.remove(key);
+      finished.put(key, complete ? lastSequence : CANCELLED);
+      if(!complete && !aborted) sendAck(from, id, -1L, true); // tell the sender to stop
+    }
+
+  }
+
+}